@@ -0,0 +1,90 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The count, sum, average, minimum and maximum of the numeric values of a field, as computed by
+ * {@link Query#aggregate(String, Filter)}. Values which are not numbers are not counted. All the numbers are
+ * aggregated as double, as they are compared by the indexes.
+ */
+public final class Aggregation {
+    private long count;
+    private double sum;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    Aggregation() {}
+
+    Aggregation(long count, double sum, double min, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Returns the number of documents in which the field is a number.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the values, 0 if there is none.
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * Returns the average of the values, NaN if there is none.
+     */
+    public double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Returns the smallest value, NaN if there is none.
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the largest value, NaN if there is none.
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Adds a value of the field, if it is a number.
+     */
+    void add(Object value) {
+        if (!(value instanceof Number))
+            return;
+        var number = ((Number) value).doubleValue();
+        min = count == 0 ? number : Math.min(min, number);
+        max = count == 0 ? number : Math.max(max, number);
+        sum += number;
+        count++;
+    }
+
+    /**
+     * Adds the values aggregated by another aggregation.
+     */
+    void merge(@NonNull Aggregation other) {
+        if (other.count == 0)
+            return;
+        min = count == 0 ? other.min : Math.min(min, other.min);
+        max = count == 0 ? other.max : Math.max(max, other.max);
+        sum += other.sum;
+        count += other.count;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "count=" + count + ", sum=" + sum + ", avg=" + getAverage() + ", min=" + min + ", max=" + max;
+    }
+}
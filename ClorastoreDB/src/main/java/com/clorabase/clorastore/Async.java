@@ -0,0 +1,82 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the asynchronous operations of the databases. By default, every operation runs on its own virtual thread when the
+ * JVM supports them (Java 21 or later), so thousands of operations can wait for the disk at the same time without holding
+ * a platform thread each. On older JVMs and on Android, operations run on a shared pool of daemon threads, which grows
+ * as needed and shrinks when idle.
+ */
+final class Async {
+    private static volatile Executor defaultExecutor;
+
+    private Async() {}
+
+    /**
+     * Returns the default executor, shared by all the databases.
+     */
+    @NonNull
+    static Executor defaultExecutor() {
+        var executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (Async.class) {
+                if (defaultExecutor == null)
+                    defaultExecutor = create();
+                executor = defaultExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Runs the operation on the executor, completing the future with its result or with the exception it throws. Unlike
+     * {@link CompletableFuture#supplyAsync(Supplier, Executor)}, the exception is not wrapped, so the future completes
+     * with the {@link ClorastoreException} of a failed write itself.
+     */
+    @NonNull
+    static <T> CompletableFuture<T> supply(@NonNull Executor executor, @NonNull Supplier<T> operation) {
+        var future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @NonNull
+    static CompletableFuture<Void> run(@NonNull Executor executor, @NonNull Runnable operation) {
+        return supply(executor, () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    private static Executor create() {
+        try {
+            // Looked up reflectively, as the library is compiled for Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            var count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "Clorastore-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replaces files atomically. The new content is written to a temporary file next to the target, which is then renamed
+ * over the target. Readers, and a process restarted after a crash, see either the old content or the new one, never a
+ * truncated file. A temporary file left behind by a crash is overwritten by the next write of the same file.
+ */
+final class AtomicFile {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private AtomicFile() {}
+
+    /**
+     * Replaces the content of the file.
+     *
+     * @param sync Whether to sync the new content to the device before renaming it. The directory is not synced, see {@link #syncDirectory(File)}.
+     */
+    static void write(@NonNull File file, @NonNull byte[] content, boolean sync) throws IOException {
+        var temp = writeTemp(file, content);
+        try {
+            if (sync)
+                sync(temp);
+            rename(temp, file);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the new content of the file to its temporary file, which must then be renamed over the file.
+     *
+     * @return The temporary file.
+     */
+    @NonNull
+    static File writeTemp(@NonNull File file, @NonNull byte[] content) throws IOException {
+        var temp = new File(file.getPath() + TEMP_SUFFIX);
+        try (var out = new FileOutputStream(temp)) {
+            out.write(content);
+        } catch (IOException e) {
+            // The directory of the file may not exist yet
+            var dir = temp.getParentFile();
+            if (dir.isDirectory() || !dir.mkdirs())
+                throw e;
+            try (var out = new FileOutputStream(temp)) {
+                out.write(content);
+            }
+        }
+        return temp;
+    }
+
+    /**
+     * Renames the source over the target, atomically if the file system supports it.
+     */
+    static void rename(@NonNull File source, @NonNull File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Syncs the content of an existing file to the device. A file which was deleted meanwhile is ignored.
+     */
+    static void sync(@NonNull File file) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // Deleted, the deletion is synced with the directory
+        }
+    }
+
+    /**
+     * Syncs a directory, so that the files renamed, created or deleted in it are on the device. Not every platform
+     * supports syncing a directory, it is then ignored.
+     */
+    static void syncDirectory(@NonNull File dir) {
+        try (var channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported by this platform (e.g Windows), or the directory was deleted
+        }
+    }
+}
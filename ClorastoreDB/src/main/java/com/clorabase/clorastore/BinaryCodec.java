@@ -0,0 +1,316 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compact binary format of the documents. A document starts with a magic number, followed by a table of its fields
+ * (their name and the offset of their value) and then by the values. Every value is tagged with its type, so numbers
+ * are read back with the exact type they were written with. Integers are written as zig-zag varints, strings are
+ * length-prefixed UTF-8, and lists of a single type are written with their element type once.
+ * <p>
+ * Thanks to the field table, a single field is read by jumping to its value, without decoding the others.
+ */
+final class BinaryCodec {
+    static final byte[] MAGIC = {'C', 'S', 'B', 1};
+    private static final int NULL = 0, FALSE = 1, TRUE = 2, BYTE = 3, SHORT = 4, INT = 5, LONG = 6, FLOAT = 7, DOUBLE = 8,
+            BIG_INTEGER = 9, BIG_DECIMAL = 10, STRING = 11, LIST = 12, TYPED_LIST = 13, MAP = 14;
+
+    private BinaryCodec() {}
+
+    /**
+     * Returns whether the content of a document file is in the binary format.
+     */
+    static boolean isBinary(@NonNull byte[] content) {
+        if (content.length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (content[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    static byte[] encode(@NonNull Map<String, ?> data) {
+        var table = new Output();
+        var values = new Output();
+        table.varint(data.size());
+        for (var entry : data.entrySet()) {
+            table.string(entry.getKey());
+            table.varint(values.size());
+            values.value(entry.getValue());
+        }
+
+        var out = new Output();
+        out.write(MAGIC, 0, MAGIC.length);
+        out.varint(table.size());
+        out.append(table);
+        out.append(values);
+        return out.toByteArray();
+    }
+
+    @NonNull
+    static Map<String, Object> decode(@NonNull byte[] content) {
+        return decode(content, null);
+    }
+
+    /**
+     * Decodes only the provided fields of the document. Values of the other fields are not decoded at all.
+     *
+     * @param fields The fields to decode, or null to decode all of them.
+     */
+    @NonNull
+    static Map<String, Object> decode(@NonNull byte[] content, Set<String> fields) {
+        var in = new Input(content, MAGIC.length);
+        var tableSize = (int) in.varint();
+        var valuesStart = in.position + tableSize;
+        var count = (int) in.varint();
+
+        var data = new HashMap<String, Object>();
+        for (int i = 0; i < count && (fields == null || data.size() < fields.size()); i++) {
+            var name = in.string();
+            var offset = (int) in.varint();
+            if (fields == null || fields.contains(name))
+                data.put(name, new Input(content, valuesStart + offset).value());
+        }
+        return data;
+    }
+
+
+    private static final class Output extends ByteArrayOutputStream {
+
+        void append(Output other) {
+            write(other.buf, 0, other.count);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void signed(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        void fixed(long value, int bytes) {
+            for (int i = 0; i < bytes; i++)
+                write((int) (value >>> (8 * i)));
+        }
+
+        void string(String value) {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        void value(Object value) {
+            var tag = tagOf(value);
+            if (tag == LIST) {
+                var list = (List<?>) value;
+                var element = elementTag(list);
+                if (element != NULL) {
+                    write(TYPED_LIST);
+                    write(element);
+                    varint(list.size());
+                    for (Object item : list)
+                        payload(element, item);
+                    return;
+                }
+            }
+            write(tag);
+            payload(tag, value);
+        }
+
+        private void payload(int tag, Object value) {
+            switch (tag) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    signed(((Number) value).longValue());
+                    break;
+                case FLOAT:
+                    fixed(Float.floatToIntBits((Float) value), 4);
+                    break;
+                case DOUBLE:
+                    fixed(Double.doubleToLongBits(((Number) value).doubleValue()), 8);
+                    break;
+                case BIG_INTEGER:
+                case BIG_DECIMAL:
+                case STRING:
+                    string(value.toString());
+                    break;
+                case LIST:
+                    var list = (List<?>) value;
+                    varint(list.size());
+                    for (Object item : list)
+                        value(item);
+                    break;
+                case MAP:
+                    var map = (Map<?, ?>) value;
+                    varint(map.size());
+                    for (var entry : map.entrySet()) {
+                        string(String.valueOf(entry.getKey()));
+                        value(entry.getValue());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Returns the tag shared by all the elements of the list, if they can be written without their own tag, or NULL.
+         */
+        private static int elementTag(List<?> list) {
+            if (list.isEmpty())
+                return NULL;
+            var tag = tagOf(list.get(0));
+            if (tag < BYTE || tag > STRING)
+                return NULL;
+            for (Object item : list) {
+                if (tagOf(item) != tag)
+                    return NULL;
+            }
+            return tag;
+        }
+
+        private static int tagOf(Object value) {
+            if (value == null)
+                return NULL;
+            else if (value instanceof Boolean)
+                return (Boolean) value ? TRUE : FALSE;
+            else if (value instanceof Byte)
+                return BYTE;
+            else if (value instanceof Short)
+                return SHORT;
+            else if (value instanceof Integer)
+                return INT;
+            else if (value instanceof Long)
+                return LONG;
+            else if (value instanceof Float)
+                return FLOAT;
+            else if (value instanceof BigInteger)
+                return BIG_INTEGER;
+            else if (value instanceof BigDecimal)
+                return BIG_DECIMAL;
+            else if (value instanceof Number)
+                return DOUBLE;
+            else if (value instanceof List)
+                return LIST;
+            else if (value instanceof Map)
+                return MAP;
+            else
+                return STRING;
+        }
+    }
+
+
+    private static final class Input {
+        private final byte[] content;
+        private int position;
+
+        Input(byte[] content, int position) {
+            this.content = content;
+            this.position = position;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                var b = content[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+        }
+
+        long signed() {
+            var value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long fixed(int bytes) {
+            long value = 0;
+            for (int i = 0; i < bytes; i++)
+                value |= (long) (content[position++] & 0xFF) << (8 * i);
+            return value;
+        }
+
+        String string() {
+            var length = (int) varint();
+            var value = new String(content, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        Object value() {
+            var tag = content[position++];
+            if (tag == TYPED_LIST) {
+                var element = content[position++];
+                var size = (int) varint();
+                var list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(payload(element));
+                return list;
+            }
+            return payload(tag);
+        }
+
+        private Object payload(int tag) {
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return false;
+                case TRUE:
+                    return true;
+                case BYTE:
+                    return (byte) signed();
+                case SHORT:
+                    return (short) signed();
+                case INT:
+                    return (int) signed();
+                case LONG:
+                    return signed();
+                case FLOAT:
+                    return Float.intBitsToFloat((int) fixed(4));
+                case DOUBLE:
+                    return Double.longBitsToDouble(fixed(8));
+                case BIG_INTEGER:
+                    return new BigInteger(string());
+                case BIG_DECIMAL:
+                    return new BigDecimal(string());
+                case STRING:
+                    return string();
+                case LIST:
+                    var size = (int) varint();
+                    var list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++)
+                        list.add(value());
+                    return list;
+                case MAP:
+                    var entries = (int) varint();
+                    var map = new HashMap<String, Object>();
+                    for (int i = 0; i < entries; i++)
+                        map.put(string(), value());
+                    return map;
+                default:
+                    throw new IllegalStateException("Unknown type " + tag + " in binary document");
+            }
+        }
+    }
+}
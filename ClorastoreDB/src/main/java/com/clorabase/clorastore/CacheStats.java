@@ -0,0 +1,72 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A point-in-time snapshot of the statistics of the document cache of a database. Use it to size the cache
+ * using {@link Clorastore#setCacheLimits(int, long)}.
+ */
+public final class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+    private final long bytes;
+
+    CacheStats(long hits, long misses, long evictions, int size, long bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Returns the number of documents which were served from the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of documents which were not in the cache and had to be read from the disk.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of documents which were removed from the cache to keep it under its limits.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of documents currently in the cache.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the approximate size of the documents currently in the cache, in bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the ratio of hits to the total lookups, or 0 if there was no lookup.
+     */
+    public double getHitRate() {
+        var total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + ", bytes=" + bytes + "}";
+    }
+}
@@ -0,0 +1,127 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the manifests of every collection of a database. The manifest of a collection is loaded lazily,
+ * the first time the collection is listed or one of its documents is written, and is then kept up to date by
+ * every creation and deletion of a document or a sub-collection.
+ */
+class Catalog {
+    private final Map<File, Manifest> manifests = new ConcurrentHashMap<>();
+    private final Clorastore db;
+
+    Catalog(@NonNull Clorastore db) {
+        this.db = db;
+    }
+
+    /**
+     * Returns the manifest of the collection.
+     */
+    @NonNull
+    Manifest of(@NonNull File collection) {
+        return manifests.computeIfAbsent(collection.getAbsoluteFile(), this::load);
+    }
+
+    /**
+     * Returns the version of the document recorded in the manifest of its collection, 0 if it is not known.
+     */
+    long version(@NonNull File document) {
+        return of(document.getParentFile()).version(Document.nameOf(document));
+    }
+
+    /**
+     * Records a document which is created without being written yet.
+     */
+    void onCreate(@NonNull File document) {
+        var manifest = of(document.getParentFile());
+        var name = Document.nameOf(document);
+        if (!manifest.contains(name))
+            manifest.put(name, db.storage.size(document), 0);
+    }
+
+    /**
+     * Records the new size and version of a document after a write.
+     */
+    void onWrite(@NonNull File document, long size, long version) {
+        of(document.getParentFile()).put(Document.nameOf(document), size, version);
+    }
+
+    void onDelete(@NonNull File document) {
+        of(document.getParentFile()).remove(Document.nameOf(document));
+    }
+
+    /**
+     * Creates the directory of the collection and of its missing parents, recording each of them in the manifest of its parent.
+     *
+     * @return true if the collection exists, false if it could not be created.
+     */
+    boolean mkdirs(@NonNull File collection) {
+        if (collection.isDirectory())
+            return true;
+        db.checkWritable();
+        var parent = collection.getAbsoluteFile().getParentFile();
+        if (parent == null || !mkdirs(parent) || !(collection.mkdir() || collection.isDirectory()))
+            return false;
+        of(parent).addCollection(collection.getName());
+        return true;
+    }
+
+    void onDeleteCollection(@NonNull File collection) {
+        var manifest = manifests.remove(collection.getAbsoluteFile());
+        if (manifest != null)
+            manifest.discard();
+        of(collection.getParentFile()).removeCollection(collection.getName());
+    }
+
+    /**
+     * Writes the snapshot of every loaded manifest which was changed. Used by a {@link Snapshot} while the writes are blocked.
+     */
+    void flush() {
+        manifests.values().forEach(Manifest::flush);
+    }
+
+    /**
+     * Writes the snapshot of every loaded manifest, recording the current state of their directories.
+     */
+    void close() {
+        manifests.values().forEach(Manifest::close);
+    }
+
+    /**
+     * Forgets all the loaded manifests. Used when the database directory is deleted or cleaned.
+     */
+    void clear() {
+        manifests.values().forEach(Manifest::discard);
+        manifests.clear();
+    }
+
+    /**
+     * Forgets all the loaded manifests and deletes the saved ones, so that they are rebuilt from the directories when they are
+     * loaded again. Used when the documents are rewritten without recording them in the manifests.
+     */
+    void invalidate(@NonNull File root) {
+        clear();
+        for (File file : FileUtils.listFiles(root, FileFilterUtils.prefixFileFilter(Manifest.SNAPSHOT_FILE), TrueFileFilter.INSTANCE))
+            FileUtils.deleteQuietly(file);
+    }
+
+    private Manifest load(File collection) {
+        var manifest = new Manifest(db, collection);
+        try {
+            manifest.load();
+        } catch (IOException e) {
+            throw new ClorastoreException("Unable to load the manifest of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        return manifest;
+    }
+}
@@ -0,0 +1,23 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Receives the changes of a document, a collection or a query. Changes are delivered in the order they were made,
+ * on a background thread of the database shared by all the listeners, so a listener should return quickly.
+ *
+ * @see Document#addSnapshotListener(ChangeListener)
+ * @see Collection#addSnapshotListener(ChangeListener)
+ * @see Query#addSnapshotListener(java.util.function.Predicate, ChangeListener)
+ */
+public interface ChangeListener {
+
+    /**
+     * Called with the changes. The first call receives the current state, every existing document being added.
+     *
+     * @param changes The changes, never empty.
+     */
+    void onChange(@NonNull List<DocumentChange> changes);
+}
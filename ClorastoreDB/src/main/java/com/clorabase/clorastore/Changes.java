@@ -0,0 +1,403 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * The change feed of a database. Every write made through the library is published here, and dispatched to the
+ * listeners of the document, of its collection and of the live queries covering it, on a single background thread
+ * so that the changes are received in the order they were made. Publishing costs nothing while there is no listener.
+ * <p>
+ * When enabled, the directories of the listeners are also watched, so that changes made to the document files
+ * outside of the library are published too.
+ */
+final class Changes {
+    private final Clorastore db;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "Clorastore-listeners");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final Map<File, Integer> published = new ConcurrentHashMap<>();
+    private volatile WatchService watcher;
+
+    Changes(@NonNull Clorastore db) {
+        this.db = db;
+    }
+
+    /**
+     * Publishes a write to a document. Must be called while holding the lock of the document, so that the writes
+     * of a document are published in order.
+     *
+     * @param data The new data of the document, or null if it is deleted.
+     */
+    void publish(@NonNull File document, Map<String, Object> data) {
+        if (subscriptions.isEmpty())
+            return;
+
+        var file = document.getAbsoluteFile();
+        var copy = data == null ? null : new HashMap<>(data);
+        if (watcher != null) {
+            // Only a hash of the data is kept, for the documents which can be watched
+            if (copy == null || subscriptions.stream().noneMatch(subscription -> subscription.covers(file)))
+                published.remove(file);
+            else
+                published.put(file, normalize(copy).hashCode());
+        }
+        dispatcher.execute(() -> {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.covers(file))
+                    subscription.deliver(file, copy);
+            }
+        });
+    }
+
+    @NonNull
+    ListenerRegistration document(@NonNull File document, @NonNull ChangeListener listener) {
+        return subscribe(new DocumentSubscription(document.getAbsoluteFile(), listener));
+    }
+
+    @NonNull
+    ListenerRegistration collection(@NonNull File collection, @NonNull ChangeListener listener) {
+        return subscribe(new QuerySubscription(collection.getAbsoluteFile(), false, null, listener));
+    }
+
+    @NonNull
+    ListenerRegistration query(@NonNull File collection, @NonNull Predicate<Map<String, ? super Object>> condition, @NonNull ChangeListener listener) {
+        return subscribe(new QuerySubscription(collection.getAbsoluteFile(), true, condition, listener));
+    }
+
+    /**
+     * Starts or stops watching the directories of the listeners for changes made outside of the library.
+     */
+    synchronized void watch(boolean enabled) {
+        if (enabled == (watcher != null))
+            return;
+
+        if (!enabled) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // The watcher is dropped anyway
+            }
+            watcher = null;
+            watched.clear();
+            published.clear();
+            return;
+        }
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new ClorastoreException("Unable to watch the database for changes .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        var thread = new Thread(() -> poll(watcher), "Clorastore-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        for (Subscription subscription : subscriptions)
+            register(subscription);
+    }
+
+    private ListenerRegistration subscribe(Subscription subscription) {
+        synchronized (this) {
+            if (watcher != null)
+                register(subscription);
+        }
+        // Added by the dispatcher just before the current state is read, so the changes published from then on are
+        // delivered after the current state, and none is delivered before it
+        dispatcher.execute(() -> {
+            synchronized (subscription) {
+                if (subscription.removed)
+                    return;
+                subscriptions.add(subscription);
+            }
+            synchronized (this) {
+                if (watcher != null) {
+                    try {
+                        register(subscription);
+                    } catch (ClorastoreException e) {
+                        // The listener still receives the changes made through the library
+                    }
+                }
+            }
+            subscription.start();
+        });
+        return () -> {
+            synchronized (subscription) {
+                subscription.removed = true;
+                subscriptions.remove(subscription);
+            }
+        };
+    }
+
+    private void register(Subscription subscription) {
+        var dir = subscription.directory().toPath();
+        try {
+            if (subscription.recursive) {
+                try (var dirs = Files.find(dir, Integer.MAX_VALUE, (path, attributes) -> attributes.isDirectory() && !path.endsWith(Collection.METADATA_DIR))) {
+                    for (Path path : (Iterable<Path>) dirs::iterator)
+                        register(path);
+                }
+            } else {
+                register(dir);
+            }
+        } catch (IOException e) {
+            throw new ClorastoreException("Unable to watch collection " + subscription.directory().getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        if (!watched.containsValue(dir))
+            watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+    }
+
+    /**
+     * Publishes the changes of the watched directories which were not made by the library. A change is recognized as
+     * made by the library if the document has the hash of the data which was last published for it.
+     */
+    private void poll(WatchService watcher) {
+        try {
+            while (true) {
+                var key = watcher.take();
+                var dir = watched.get(key);
+                for (var event : key.pollEvents()) {
+                    if (dir == null || !(event.context() instanceof Path) || !event.context().toString().endsWith(".doc"))
+                        continue;
+                    external(dir.resolve((Path) event.context()).toFile().getAbsoluteFile());
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The watcher is closed
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void external(File file) {
+        Map<String, Object> data = null;
+        if (file.exists()) {
+            try {
+                data = db.storage.read(file);
+            } catch (IOException | RuntimeException e) {
+                // The file is being written, the end of the write is another event
+                return;
+            }
+        }
+
+        try (var lock = db.versions.write(file)) {
+            var last = published.get(file);
+            if (data == null ? last == null && !file.exists() : last != null && last == normalize(data).hashCode())
+                return;
+            db.cache.invalidate(file);
+            var version = db.versions.increment(file);
+            if (data == null)
+                db.catalog.onDelete(file);
+            else
+                db.catalog.onWrite(file, file.length(), version);
+            publish(file, data);
+        }
+    }
+
+    /**
+     * Converts all the numbers to doubles, as a number read from a JSON document is always a double.
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value instanceof List)
+            return ((List<?>) value).stream().map(Changes::normalize).collect(Collectors.toList());
+        if (value instanceof Map) {
+            var map = new HashMap<Object, Object>();
+            ((Map<?, ?>) value).forEach((key, item) -> map.put(key, normalize(item)));
+            return map;
+        }
+        return value;
+    }
+
+    private Map<String, Object> read(File file) {
+        if (!db.storage.exists(file))
+            return null;
+        try {
+            return db.storage.read(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * A listener and the documents it covers. All the methods are called on the dispatcher thread.
+     */
+    private abstract static class Subscription {
+        final File dir;
+        final boolean recursive;
+        final ChangeListener listener;
+        /**
+         * Whether the listener was removed, guarded by the subscription.
+         */
+        boolean removed;
+
+        Subscription(File dir, boolean recursive, ChangeListener listener) {
+            this.dir = dir;
+            this.recursive = recursive;
+            this.listener = listener;
+        }
+
+        /**
+         * Returns the directory holding the documents covered by the subscription.
+         */
+        File directory() {
+            return dir;
+        }
+
+        boolean covers(File document) {
+            return recursive ? document.toPath().startsWith(dir.toPath()) : dir.equals(document.getParentFile());
+        }
+
+        /**
+         * Delivers the current state, as the first change.
+         */
+        abstract void start();
+
+        abstract void deliver(File document, Map<String, Object> data);
+
+        void notify(List<DocumentChange> changes) {
+            if (changes.isEmpty())
+                return;
+            try {
+                listener.onChange(changes);
+            } catch (RuntimeException e) {
+                // A failing listener must not prevent the others to receive the change
+            }
+        }
+
+        static DocumentChange change(DocumentChange.Type type, File document, Map<String, Object> data) {
+            // The data may be shared with the cache, the listeners receive their own copy of its lists
+            return new DocumentChange(type, Document.nameOf(document), document.getParentFile().getName(), data == null ? null : Document.copyOf(data));
+        }
+    }
+
+
+    private final class DocumentSubscription extends Subscription {
+        private boolean exists;
+
+        DocumentSubscription(File document, ChangeListener listener) {
+            super(document, false, listener);
+        }
+
+        @Override
+        File directory() {
+            return dir.getParentFile();
+        }
+
+        @Override
+        boolean covers(File document) {
+            return dir.equals(document);
+        }
+
+        @Override
+        void start() {
+            var data = read(dir);
+            exists = data != null;
+            if (exists)
+                notify(List.of(change(DocumentChange.Type.ADDED, dir, data)));
+        }
+
+        @Override
+        void deliver(File document, Map<String, Object> data) {
+            DocumentChange.Type type;
+            if (data == null)
+                type = DocumentChange.Type.REMOVED;
+            else
+                type = exists ? DocumentChange.Type.MODIFIED : DocumentChange.Type.ADDED;
+            if (data == null && !exists)
+                return;
+            exists = data != null;
+            notify(List.of(change(type, document, data)));
+        }
+    }
+
+
+    /**
+     * The listener of a collection, or of a live query. The documents which match are tracked by name, so a change is
+     * evaluated on the changed document only.
+     */
+    private final class QuerySubscription extends Subscription {
+        private final Predicate<Map<String, ? super Object>> condition;
+        private final Set<File> matched = new HashSet<>();
+
+        QuerySubscription(File dir, boolean recursive, Predicate<Map<String, ? super Object>> condition, ChangeListener listener) {
+            super(dir, recursive, listener);
+            this.condition = condition;
+        }
+
+        @Override
+        void start() {
+            var changes = new ArrayList<DocumentChange>();
+            if (recursive) {
+                try (var documents = new Query(new Collection(db, dir)).stream(condition)) {
+                    documents.forEach(document -> {
+                        matched.add(document.document.getAbsoluteFile());
+                        changes.add(change(DocumentChange.Type.ADDED, document.document, document.data));
+                    });
+                }
+            } else {
+                for (String name : new Collection(db, dir).getDocuments()) {
+                    var document = new File(dir, name + ".doc");
+                    var data = read(document);
+                    if (data != null) {
+                        matched.add(document);
+                        changes.add(change(DocumentChange.Type.ADDED, document, data));
+                    }
+                }
+            }
+            notify(changes);
+        }
+
+        @Override
+        void deliver(File document, Map<String, Object> data) {
+            var matches = data != null && (condition == null || test(data));
+            var matchedBefore = matched.contains(document);
+            if (matches)
+                matched.add(document);
+            else
+                matched.remove(document);
+
+            if (matches)
+                notify(List.of(change(matchedBefore ? DocumentChange.Type.MODIFIED : DocumentChange.Type.ADDED, document, data)));
+            else if (matchedBefore)
+                notify(List.of(change(DocumentChange.Type.REMOVED, document, data)));
+        }
+
+        private boolean test(Map<String, Object> data) {
+            try {
+                return condition.test(data);
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.clorabase.clorastore;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * This is the top-level class of the whole database. Every database operation
@@ -16,28 +20,96 @@ import java.io.IOException;
  * @see <a href="https://github.com/ErrorxCode/ClorastoreDB">Github</a> for more info.
  */
 public class Clorastore {
-    private static Clorastore instance;
-    private static File root;
+    /**
+     * Default maximum number of documents kept in the document cache.
+     */
+    public static final int DEFAULT_CACHE_DOCUMENTS = 1000;
+    /**
+     * Default maximum approximate size, in bytes, of the documents kept in the document cache.
+     */
+    public static final long DEFAULT_CACHE_BYTES = 32 * 1024 * 1024;
+    /**
+     * Default maximum number of documents waiting to be written by the background writer.
+     */
+    public static final int DEFAULT_WRITE_QUEUE_CAPACITY = 1024;
+    /**
+     * Default interval, in milliseconds, at which the writes are synced to the device with {@link Durability#PERIODIC}.
+     */
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+    static final String LOCK_FILE = "documents.lock";
+    private static final String PACKED_FILE = "documents.packed";
+    private static final String LOGGED_FILE = "documents.logged";
+    private static final Map<File, Clorastore> instances = new ConcurrentHashMap<>();
+    private final File root;
+    final Events events = new Events();
+    final IndexManager indexes = new IndexManager(this);
+    final Catalog catalog = new Catalog(this);
+    final Versions versions = new Versions(this);
+    final Changes changes = new Changes(this);
+    final Expirations expirations;
+    final Snapshots snapshots;
+    final boolean readOnly;
+    final DocumentCache cache = new DocumentCache(DEFAULT_CACHE_DOCUMENTS, DEFAULT_CACHE_BYTES);
+    final DocumentWriter writer = new DocumentWriter(DEFAULT_WRITE_QUEUE_CAPACITY, DEFAULT_SYNC_INTERVAL, events);
+    volatile Storage storage = new FileStorage(writer, DocumentFormat.JSON, events);
+    volatile Executor executor = Async.defaultExecutor();
+    private volatile ProcessLock processLock;
+    private StorageMode mode = StorageMode.FILES;
+    private DocumentFormat format = DocumentFormat.JSON;
+    private Durability durability = Durability.PERIODIC;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
 
-    private Clorastore(){}
+    private Clorastore(File root, boolean readOnly){
+        this.root = root;
+        this.readOnly = readOnly;
+        // A snapshot is only read, the database it was taken from is locked already
+        if (!readOnly)
+            processLock = lock();
+        // Packed documents are not readable by the other engines, so a packed database is opened packed. The changes
+        // left in the logs are only read by the log engine, so a logged database is opened logged too.
+        if (new File(Collection.metadataDir(root), PACKED_FILE).exists()) {
+            storage = storage(StorageMode.PACKED);
+            mode = StorageMode.PACKED;
+        } else if (new File(Collection.metadataDir(root), LOGGED_FILE).exists()) {
+            storage = storage(StorageMode.LOG);
+            mode = StorageMode.LOG;
+        }
+        if (readOnly)
+            storage = new ReadOnlyStorage(storage);
+        expirations = new Expirations(this, root);
+        snapshots = new Snapshots(this, root);
+    }
 
     /**
-     * Returns the singleton instance of the class.
+     * Returns the instance of the database. Every database has its own instance, independent of the others, so several
+     * databases can be used at the same time. Calling this method again for the same database returns the same instance.
+     * A database is used by a single process at a time: it stays locked against the other processes until this process exits,
+     * or until the database is deleted.
      * @param dir The directory of your database
      * @return instance of the class.
-     * @throws ClorastoreException - if database was not created successfully.
+     * @throws ClorastoreException - if database was not created successfully, or with {@link Reasons#DATABASE_LOCKED}
+     * if it is used by another process.
      */
     public static Clorastore getInstance(File dir,String name){
-        if (instance == null)
-            instance = new Clorastore();
         if (!dir.isDirectory() || !dir.canWrite())
             throw new ClorastoreException("The directory is a file or not writable",Reasons.DATABSE_DIRECTORY_NOT_WRITABLE);
 
-        root = new File(dir,name);
+        var root = new File(dir,name);
         if (!root.exists() && !root.mkdir())
             throw new ClorastoreException("There was an error while creating the database.",Reasons.ERROR_CREATING_DATABASE);
 
-        return instance;
+        File key;
+        try {
+            key = root.getCanonicalFile();
+        } catch (IOException e) {
+            key = root.getAbsoluteFile();
+        }
+        return instances.computeIfAbsent(key, file -> {
+            var instance = new Clorastore(root, false);
+            WriteBatch.recover(instance, root);
+            instance.snapshots.recover();
+            return instance;
+        });
     }
 
 
@@ -46,7 +118,7 @@ public class Clorastore {
      * @return {@link Collection}
      */
     public Collection getDatabase(){
-        return new Collection(root);
+        return new Collection(this, root);
     }
 
     /**
@@ -58,19 +130,373 @@ public class Clorastore {
      */
     public Collection getDatabase(String relativePath){
         if (new File(root,relativePath).isDirectory())
-            return new Collection(new File(root,relativePath));
+            return new Collection(this, new File(root,relativePath));
         else
             throw new ClorastoreException("Path is not relative or does not denotes a collection",Reasons.NO_COLLECTION_EXIST);
     }
 
 
     /**
-     * Deletes the current database.
+     * Creates a batch of writes, which can write documents of any collection of the database and commits them together.
+     * @return {@link WriteBatch}
+     */
+    public WriteBatch batch(){
+        return new WriteBatch(this, root);
+    }
+
+
+    /**
+     * Takes a snapshot of the database: a read-only view of all its collections and documents, as they are now, which
+     * queries and reads use while the database keeps being written. The snapshot is consistent: it holds either all or
+     * none of the changes of every write and of every {@link WriteBatch}.
+     * <p>
+     * The snapshot is made of hard links to the files of the database, which are never modified in place, so taking it
+     * does not copy the documents. Only the small files which are appended to, such as the journals, are copied. The
+     * writes wait while the snapshot is taken, the reads do not. On a file system without hard links, the files are copied.
+     * @return {@link Snapshot}, to close once it is not used anymore.
+     * @throws ClorastoreException If an IO error occurred while taking the snapshot.
+     */
+    public Snapshot snapshot(){
+        var start = System.nanoTime();
+        var time = System.currentTimeMillis();
+        File dir;
+        try {
+            dir = snapshots.take();
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while taking a snapshot of the database .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        var snapshot = new Snapshot(new Clorastore(dir, true), dir, time);
+        events.since(Operation.SNAPSHOT, start);
+        return snapshot;
+    }
+
+
+    /**
+     * Backs up the database into the directory, from a snapshot of it, so the database is written meanwhile. The directory
+     * then holds a copy of the database, which is opened with {@link #getInstance(File, String)} to restore it.
+     * <p>
+     * Backups are incremental: the snapshot of the last backup made into a directory is kept, and the next backup into
+     * the same directory copies only the files which changed since it, and deletes the deleted ones. The time and the
+     * data copied then depend on the number of documents written since the last backup, not on the size of the database.
+     * The first backup into a directory copies the whole database.
+     * @param dir The directory of the backup.
+     * @return The number of files copied.
+     * @throws ClorastoreException If an IO error occurred.
+     */
+    public long backup(File dir){
+        var start = System.nanoTime();
+        try {
+            return snapshots.backup(dir);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while backing up the database .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        } finally {
+            events.since(Operation.BACKUP, start);
+        }
+    }
+
+
+    /**
+     * Throws if the database is the read-only view of a {@link Snapshot}.
+     */
+    void checkWritable(){
+        if (readOnly)
+            throw new ClorastoreException("A snapshot is read-only", Reasons.READ_ONLY);
+    }
+
+
+    /**
+     * Sets the limits of the document cache. Documents read or written recently are kept in the memory, parsed,
+     * until any of the limit exceeds. Then the least recently used documents are evicted. Pass 0 to disable the cache.
+     * @param maxDocuments The maximum number of documents to cache. Default is {@link #DEFAULT_CACHE_DOCUMENTS}
+     * @param maxBytes The maximum approximate size of the cached documents, in bytes. Default is {@link #DEFAULT_CACHE_BYTES}
+     */
+    public void setCacheLimits(int maxDocuments, long maxBytes){
+        cache.setLimits(maxDocuments, maxBytes);
+    }
+
+
+    /**
+     * Returns the statistics of the document cache, which can be used to size it.
+     * @return {@link CacheStats}
+     */
+    public CacheStats getCacheStats(){
+        return cache.stats();
+    }
+
+
+    /**
+     * Sets a listener which receives the events of the database, such as the operations and their latency, the documents
+     * read and written and the background writes which failed. The events are also always recorded in the {@link #getMetrics() metrics}.
+     * @param listener The listener, or null to remove it.
+     */
+    public void setListener(ClorastoreListener listener){
+        events.listener = listener;
+    }
+
+
+    /**
+     * Returns the metrics of the database, which are recorded since it was opened or since they were reset.
+     * @return {@link Metrics}
+     */
+    public Metrics getMetrics(){
+        return events.metrics;
+    }
+
+
+    /**
+     * Sets whether the snapshot listeners also receive the changes made to the document files outside of this library,
+     * for example by another process. The directories of the listeners are then watched by a {@link java.nio.file.WatchService}.
+     * Sub-collections created after a listener was added are not watched.
+     * @param enabled true to watch the changes made outside of this library. Default is false.
+     * @throws ClorastoreException If the directories can not be watched.
+     */
+    public void setWatchExternalChanges(boolean enabled){
+        changes.watch(enabled);
+    }
+
+
+    /**
+     * Sets the maximum number of documents waiting to be written by the background writer. A document modified again
+     * before it is written takes only one place in the queue. When the queue is full, writes block until the writer catches up.
+     * @param capacity The capacity of the queue. Default is {@link #DEFAULT_WRITE_QUEUE_CAPACITY}
+     */
+    public void setWriteQueueCapacity(int capacity){
+        writer.setCapacity(capacity);
+    }
+
+
+    /**
+     * Sets the executor which runs the asynchronous operations of the database, such as {@link Document#putAsync(String, Object)}
+     * or {@link Query#whereAsync(Filter)}. By default, every operation runs on its own virtual thread on Java 21 and later,
+     * and on a shared pool of daemon threads otherwise. Pass the executor of your application to bound the number of
+     * operations running at the same time, or to run them on a specific thread.
+     * @param executor The executor, or null to use the default one.
+     */
+    public void setExecutor(Executor executor){
+        this.executor = executor == null ? Async.defaultExecutor() : executor;
+    }
+
+
+    /**
+     * Returns the executor which runs the asynchronous operations of the database.
+     * @return {@link Executor}
+     */
+    public Executor getExecutor(){
+        return executor;
+    }
+
+
+    /**
+     * Sets the storage engine of the database. The engine should be chosen before using the database. When switching
+     * from an engine to another, all the changes of the previous engine are first written to the document files,
+     * which are understood by every engine. The packed documents are written back to their files too.
+     * <p>
+     * A database switched to {@link StorageMode#PACKED} or {@link StorageMode#LOG} is opened again in this mode, until it is switched to another one.
+     * @param mode The storage engine. Default is {@link StorageMode#FILES}
+     * @throws ClorastoreException If writing the changes of the previous engine failed.
+     */
+    public synchronized void setStorageMode(StorageMode mode){
+        if (mode == this.mode)
+            return;
+
+        try {
+            if (this.mode == StorageMode.PACKED)
+                ((PackedStorage) storage).unpack();
+            else
+                storage.close();
+            markMode(mode);
+        } catch (IOException e) {
+            throw new ClorastoreException("Unable to switch the storage mode of the database .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        storage = storage(mode);
+        this.mode = mode;
+    }
+
+
+    /**
+     * Returns the storage engine of the database.
+     * @return {@link StorageMode}
+     */
+    public StorageMode getStorageMode(){
+        return mode;
+    }
+
+
+    /**
+     * Sets how the writes are synced to the storage device. Documents are always replaced atomically, so a crash of the
+     * process never leaves a document half written, the durability decides which writes survive a power loss and
+     * how long a write waits for the device.
+     * @param durability The durability of the writes. Default is {@link Durability#PERIODIC}
+     */
+    public synchronized void setDurability(Durability durability){
+        storage.setDurability(durability, syncInterval);
+        this.durability = durability;
+    }
+
+
+    /**
+     * Returns how the writes are synced to the storage device.
+     * @return {@link Durability}
+     */
+    public Durability getDurability(){
+        return durability;
+    }
+
+
+    /**
+     * Sets the interval at which the writes are synced to the device with {@link Durability#PERIODIC}. At most the writes
+     * of the last interval are lost on a power loss.
+     * @param millis The interval, in milliseconds. Default is {@link #DEFAULT_SYNC_INTERVAL}
+     */
+    public synchronized void setSyncInterval(long millis){
+        if (millis < 1)
+            throw new IllegalArgumentException("Sync interval must be at least 1 ms");
+        storage.setDurability(durability, millis);
+        this.syncInterval = millis;
+    }
+
+
+    /**
+     * Sets the format in which the documents are written. Documents already written in the other format are still read,
+     * and are converted the next time they are written. Use {@link #migrate(DocumentFormat)} to convert all of them at once.
+     * @param format The format of the documents. Default is {@link DocumentFormat#JSON}
+     */
+    public synchronized void setDocumentFormat(DocumentFormat format){
+        storage.setFormat(format);
+        this.format = format;
+    }
+
+
+    /**
+     * Returns the format in which the documents are written.
+     * @return {@link DocumentFormat}
+     */
+    public DocumentFormat getDocumentFormat(){
+        return format;
+    }
+
+
+    /**
+     * Converts all the documents of the database to the provided format, and writes the new documents in this format.
+     * Every document is converted to a temporary file first, which then replaces it, so a document is never left half converted.
+     * @param format The new format of the documents.
+     * @return The number of documents which are converted.
+     * @throws ClorastoreException If reading or writing any document failed.
+     */
+    public synchronized int migrate(DocumentFormat format){
+        setDocumentFormat(format);
+        storage.close();
+        cache.clear();
+        var migrated = 0;
+        if (mode == StorageMode.PACKED) {
+            try {
+                migrated += ((PackedStorage) storage).migrate(format);
+            } catch (IOException e) {
+                throw new ClorastoreException("An IO error occurred while migrating the packed documents .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+        for (File document : FileUtils.listFiles(root, FileFilterUtils.suffixFileFilter(".doc"), FileFilterUtils.notFileFilter(FileFilterUtils.nameFileFilter(Collection.METADATA_DIR)))) {
+            try {
+                var content = FileUtils.readFileToByteArray(document);
+                if (BinaryCodec.isBinary(content) == (format == DocumentFormat.BINARY))
+                    continue;
+
+                AtomicFile.write(document, FileStorage.encode(FileStorage.decode(content), format), durability != Durability.NONE);
+                migrated++;
+            } catch (IOException e) {
+                throw new ClorastoreException("An IO error occurred while migrating document " + document.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+        // The sizes of the documents changed, the manifests are rebuilt when they are loaded again
+        catalog.invalidate(root);
+        return migrated;
+    }
+
+
+    /**
+     * Blocks until all the modified documents are written to the disk, and synced to the device whatever the {@link Durability} is.
+     * @throws ClorastoreException If writing any document failed since the last flush.
+     */
+    public void flush(){
+        storage.flush();
+    }
+
+
+    /**
+     * Writes all the modified documents to the disk and stops the background writer. The database can still be used
+     * after closing it, the writer is started again by the next write. Pending writes are also flushed when the JVM exits normally.
+     * The manifests and the indexes of the collections are saved too, so they are not rebuilt when the database is opened again.
+     * @throws ClorastoreException If writing any document failed since the last flush.
+     */
+    public void close(){
+        expirations.close();
+        storage.close();
+        indexes.close();
+        catalog.close();
+    }
+
+
+    /**
+     * Records the storage mode of the database, so that it is opened in this mode again.
+     */
+    private void markMode(StorageMode mode) throws IOException {
+        mark(PACKED_FILE, mode == StorageMode.PACKED);
+        mark(LOGGED_FILE, mode == StorageMode.LOG);
+    }
+
+
+    private void mark(String name, boolean marked) throws IOException {
+        var marker = new File(Collection.metadataDir(root), name);
+        if (!marked) {
+            marker.delete();
+        } else if (!marker.exists()) {
+            marker.getParentFile().mkdirs();
+            marker.createNewFile();
+        }
+    }
+
+
+    /**
+     * Locks the database against the other processes, see {@link ProcessLock}.
+     */
+    private ProcessLock lock(){
+        try {
+            return new ProcessLock(new File(Collection.metadataDir(root), LOCK_FILE));
+        } catch (IOException e) {
+            throw new ClorastoreException("Unable to open the lock file of the database .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+
+    private Storage storage(StorageMode mode){
+        switch (mode) {
+            case LOG:
+                return new LogStorage(LogStorage.DEFAULT_COMPACTION_THRESHOLD, format, durability, syncInterval, events);
+            case PACKED:
+                return new PackedStorage(root, format, durability, syncInterval, events);
+            default:
+                return new FileStorage(writer, format, events);
+        }
+    }
+
+
+    /**
+     * Deletes the current database. The database is unlocked, get its instance again to create it again.
      * @return true if succeed, false otherwise (IOException occurred)
      */
     public boolean delete(){
+        storage.discard();
         try {
             FileUtils.deleteDirectory(root);
+            indexes.clear();
+            expirations.clear();
+            catalog.clear();
+            cache.clear();
+            versions.clear();
+            instances.values().remove(this);
+            if (processLock != null)
+                processLock.close();
+            processLock = null;
             return true;
         } catch (IOException e) {
            return false;
@@ -84,8 +510,20 @@ public class Clorastore {
      * @return true if succeed, false otherwise (IOException occurred)
      */
     public boolean clean(){
+        storage.discard();
         try {
             FileUtils.cleanDirectory(root);
+            // The lock file was deleted with the metadata of the database
+            if (processLock != null) {
+                processLock.close();
+                processLock = lock();
+            }
+            markMode(mode);
+            indexes.clear();
+            expirations.clear();
+            catalog.clear();
+            cache.clear();
+            versions.clear();
             return true;
         } catch (IOException e) {
             return false;
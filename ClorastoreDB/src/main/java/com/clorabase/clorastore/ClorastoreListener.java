@@ -0,0 +1,58 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives the events of a database, to monitor or trace it. All the methods do nothing by default, implement only
+ * the ones you need. Methods are called on the thread performing the operation, including the background threads of
+ * the database, so they must be fast and must not throw.
+ *
+ * @see Clorastore#setListener(ClorastoreListener)
+ * @see Metrics
+ */
+public interface ClorastoreListener {
+
+    /**
+     * Called when an operation completes.
+     *
+     * @param operation The operation.
+     * @param nanos     How long the operation took, in nanoseconds.
+     */
+    default void onOperation(@NonNull Operation operation, long nanos) {}
+
+    /**
+     * Called when a document file is read from the disk.
+     *
+     * @param document The name of the document.
+     * @param bytes    The number of bytes read.
+     */
+    default void onRead(@NonNull String document, long bytes) {}
+
+    /**
+     * Called when a document, or a change to it, is written to the disk.
+     *
+     * @param document The name of the document.
+     * @param bytes    The number of bytes written.
+     * @param queued   The number of documents still waiting to be written.
+     */
+    default void onWrite(@NonNull String document, long bytes, int queued) {}
+
+    /**
+     * Called when writing a document in the background failed. The error is also thrown by the next
+     * {@link Clorastore#flush()}.
+     *
+     * @param document The name of the document.
+     * @param error    The cause of the failure.
+     */
+    default void onWriteFailed(@NonNull String document, @NonNull Exception error) {}
+
+    /**
+     * Called when a query completes, that is when all its results are returned or its stream is closed.
+     *
+     * @param collection The name of the queried collection.
+     * @param scanned    The number of documents read to evaluate the query.
+     * @param returned   The number of documents returned.
+     * @param nanos      How long the query took, in nanoseconds.
+     */
+    default void onQuery(@NonNull String collection, long scanned, long returned, long nanos) {}
+}
@@ -2,14 +2,19 @@ package com.clorabase.clorastore;
 
 import androidx.annotation.NonNull;
 
-import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
@@ -17,9 +22,15 @@ import java.util.function.Consumer;
  * A collections can have sub-collections in it.
  */
 public class Collection {
+    /**
+     * Name of the hidden directory, inside every collection, which holds the internal files of the database (e.g indexes).
+     */
+    static final String METADATA_DIR = ".clorastore";
+    protected final Clorastore db;
     protected final File root;
 
-    protected Collection(File root) {
+    protected Collection(Clorastore db, File root) {
+        this.db = db;
         this.root = root;
     }
 
@@ -32,24 +43,41 @@ public class Collection {
      */
     public @NonNull Collection collection(String name) {
         File file = new File(root, name);
-        if (!file.isDirectory() && !file.mkdir())
+        if (!db.catalog.mkdirs(file))
             throw new ClorastoreException("Unknown error occurred while creating document.", Reasons.ERROR_UNKNOWN);
-        return new Collection(file);
+        return new Collection(db, file);
     }
 
 
     public @NonNull Document document(@NonNull String name){
         File file = new File(root, name + ".doc");
+        db.expirations.reap(root);
         try {
-            file.createNewFile();
-            return new Document(file);
+            db.storage.create(file);
+            db.catalog.onCreate(file);
+            return new Document(db, file);
         } catch (IOException e) {
             throw new ClorastoreException("Unknown error occurred while creating document.", Reasons.ERROR_UNKNOWN);
         }
     }
 
+    /**
+     * Same as {@link #document(String)}, but opens the document on the {@link Clorastore#setExecutor(java.util.concurrent.Executor) executor}
+     * of the database.
+     * @param name The name of the document
+     * @return A future completed with the document, or with the {@link ClorastoreException} thrown while opening it.
+     */
+    public @NonNull CompletableFuture<Document> documentAsync(@NonNull String name){
+        return Async.supply(db.executor, () -> document(name));
+    }
+
+    /**
+     * Opens the document on the executor of the database, and passes it to the callback.
+     * @param name The name of the document
+     * @param callback The callback, which runs on the executor of the database
+     */
     public void documentAsync(@NonNull String name, Consumer<Document> callback){
-        new Thread(() -> callback.accept(document(name))).start();
+        documentAsync(name).thenAccept(callback);
     }
 
     /**
@@ -59,28 +87,50 @@ public class Collection {
      */
     public @NonNull List<Collection> getCollections() {
         List<Collection> collections = new ArrayList<>();
-        String[] files = root.list(FileFilterUtils.directoryFileFilter());
-        if (files != null) {
-            for (String file : files)
-                collections.add(new Collection(new File(root, file)));
-        }
+        for (String name : db.catalog.of(root).collections())
+            collections.add(new Collection(db, new File(root, name)));
         return collections;
     }
 
     /**
-     * Returns document names present in the current collection.
+     * Returns document names present in the current collection, in the order of their name. The names are read from the
+     * manifest of the collection, without listing its directory.
      * @return {@link List<String>}. May be empty, but never null
      */
     public @NonNull List<String> getDocuments() {
-        String[] files = root.list(FileFilterUtils.suffixFileFilter(".doc"));
-        if (files == null)
-            return new ArrayList<>();
-        else {
-            for (int i = 0; i < files.length; i++) {
-                files[i] = files[i].replace(".doc","");
-            }
-            return Arrays.asList(files);
-        }
+        db.expirations.reap(root);
+        return db.catalog.of(root).documents(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a page of the document names present in the current collection, in the order of their name.
+     * Pass the last name of a page to get the next one.
+     * @param startAfter The name after which the page starts, or null for the first page
+     * @param limit The maximum number of names in the page
+     * @return {@link List<String>}. Empty after the last page, but never null
+     */
+    public @NonNull List<String> getDocuments(String startAfter, int limit) {
+        db.expirations.reap(root);
+        return db.catalog.of(root).documents(startAfter, limit);
+    }
+
+    /**
+     * Returns the number of documents present in the current collection, not counting the documents of its sub-collections.
+     * @return The number of documents
+     */
+    public long count() {
+        db.expirations.reap(root);
+        return db.catalog.of(root).count();
+    }
+
+    /**
+     * Checks whether a document exists in the current collection, without opening it.
+     * @param name The name of the document
+     * @return true if the document exists, false otherwise
+     */
+    public boolean exists(@NonNull String name) {
+        db.expirations.reap(root);
+        return db.catalog.of(root).contains(name);
     }
 
     /**
@@ -94,12 +144,267 @@ public class Collection {
 
     /**
      * Deletes a document or a collection. This do not delete to current collection
-     * in which you are currently in.
+     * in which you are currently in. A collection is deleted only if it has no document and no sub-collection.
      * @param name The name of the doc or collection
      * @return true if delete succeed, false otherwise
      */
+    @SuppressWarnings("try")
     public boolean delete(String name){
-        return new File(root,name).delete();
+        db.checkWritable();
+        var file = new File(root,name);
+        if (!name.endsWith(".doc")) {
+            var manifest = db.catalog.of(file);
+            if (manifest.count() > 0 || !manifest.collections().isEmpty())
+                return false;
+            db.storage.forget(file);
+            FileUtils.deleteQuietly(metadataDir(file));
+            if (!file.delete())
+                return false;
+            db.indexes.forget(file);
+            db.expirations.forget(file);
+            db.catalog.onDeleteCollection(file);
+            return true;
+        }
+
+        try (var lock = db.versions.write(file)) {
+            db.cache.invalidate(file);
+            if (!db.storage.delete(file))
+                return false;
+            db.indexes.onDelete(file);
+            db.expirations.onDelete(file);
+            db.catalog.onDelete(file);
+            db.versions.increment(file);
+            db.changes.publish(file, null);
+        }
+        db.storage.commit(file);
+        return true;
+    }
+
+
+    /**
+     * Creates a sorted index on the field for the documents of this collection, or rebuilds it if it already exist.
+     * Queries on this collection which compare the field using {@link Query#whereEqual(String, Object)},
+     * {@link Query#whereGreater(String, double)} or {@link Query#whereSmaller(String, double)} are then answered
+     * from the index without reading the documents which does not match. The index is kept up to date by the
+     * write operations of {@link Document}. Changes made to the document files outside of this library are not indexed.
+     * The index also keeps the count and the sum of the numeric values of the field up to date, so that
+     * {@link Query#aggregate(String, Filter)} and {@link Query#groupBy(String, Filter)} read them without going through the documents.
+     * <p>
+     * An index covers only the documents directly inside this collection, sub-collections must be indexed separately.
+     * All the numbers are indexed as double, so <code>5</code> and <code>5.0</code> are equal for an index.
+     *
+     * @param field The name of the field to index
+     * @throws ClorastoreException If an IO error occurred while building the index.
+     */
+    public void createIndex(@NonNull String field) {
+        db.checkWritable();
+        Map<String, Object> values = new HashMap<>();
+        for (String name : getDocuments())
+            values.put(name, new Document(db, new File(root, name + ".doc")).data.get(field));
+
+        try {
+            db.indexes.create(root, field, values);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while creating index of field '" + field + "'. Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    /**
+     * Deletes the index on the field, if exists.
+     *
+     * @param field The name of the indexed field
+     * @return true if the index was deleted, false if the field was not indexed.
+     */
+    public boolean dropIndex(@NonNull String field) {
+        db.checkWritable();
+        return db.indexes.drop(root, field);
+    }
+
+    /**
+     * Returns the fields which are indexed in this collection.
+     *
+     * @return {@link List<String>}. May be empty, but never null
+     */
+    public @NonNull List<String> getIndexes() {
+        return new ArrayList<>(db.indexes.of(root).keySet());
+    }
+
+    /**
+     * Creates an inverted index of the words of the field for the documents of this collection, or rebuilds it if it
+     * already exist. Queries on this collection using {@link Query#whereContains(String, String)},
+     * {@link Query#whereStartsWith(String, String)}, {@link Filter#contains(String, String)} or {@link Filter#containsPrefix(String, String)}
+     * on the field are then answered from the index, without reading the documents which do not match. Like {@link #createIndex(String)},
+     * the index is kept up to date by the write operations of {@link Document} and covers only the documents directly inside this collection.
+     * <p>
+     * Only the strings, and the strings of a list, are indexed. They are split into words on every character which is not
+     * a letter or a digit, and the words are indexed in lower case and without accents.
+     *
+     * @param field The name of the field to index
+     * @throws ClorastoreException If an IO error occurred while building the index.
+     */
+    public void createTextIndex(@NonNull String field) {
+        db.checkWritable();
+        Map<String, Object> values = new HashMap<>();
+        for (String name : getDocuments())
+            values.put(name, new Document(db, new File(root, name + ".doc")).data.get(field));
+
+        try {
+            db.indexes.createText(root, field, values);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while creating text index of field '" + field + "'. Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    /**
+     * Deletes the text index on the field, if exists.
+     *
+     * @param field The name of the indexed field
+     * @return true if the index was deleted, false if the field had no text index.
+     */
+    public boolean dropTextIndex(@NonNull String field) {
+        db.checkWritable();
+        return db.indexes.dropText(root, field);
+    }
+
+    /**
+     * Returns the fields which have a text index in this collection.
+     *
+     * @return {@link List<String>}. May be empty, but never null
+     */
+    public @NonNull List<String> getTextIndexes() {
+        return new ArrayList<>(db.indexes.textsOf(root).keySet());
+    }
+
+    /**
+     * Sets the time to live of the documents of this collection. A document then expires after this time since it was
+     * last written, and is deleted. Expired documents are never read, listed, counted or returned by a query, even
+     * before they are deleted: they are deleted by a background reaper at their expiry time, with a precision of a second,
+     * or before the collection is read if the reaper did not get to them yet. The snapshot listeners receive them as removed.
+     * <p>
+     * The documents already in the collection, which do not expire yet, expire after the time to live from now.
+     * Setting the time to live to 0 stops setting the expiry of the written documents, the documents which already
+     * expire keep their expiry time. See {@link Document#expireAt(long)} to set the expiry of a single document.
+     * <p>
+     * The expiry times are kept sorted in an index of the collection, so expiring documents costs nothing for the
+     * documents which do not expire yet, whatever the size of the collection is.
+     *
+     * @param duration The time to live, or 0 for the documents to not expire when they are written.
+     * @param unit     The unit of the duration.
+     * @throws ClorastoreException If an IO error occurred.
+     */
+    public void setTimeToLive(long duration, @NonNull TimeUnit unit) {
+        if (duration < 0)
+            throw new IllegalArgumentException("The time to live can not be negative");
+        db.checkWritable();
+        db.expirations.setTtl(root, unit.toMillis(duration));
+    }
+
+    /**
+     * Returns the time to live of the documents of this collection.
+     *
+     * @return The time to live in milliseconds, 0 if the written documents do not expire.
+     */
+    public long getTimeToLive() {
+        return db.expirations.of(root).getTtl();
+    }
+
+    /**
+     * Writes all the documents of this collection to the stream as newline delimited JSON, one line per document, e.g
+     * <code>{"id":"user1","data":{"name":"John","age":25}}</code>. Documents are read one by one in the order of their
+     * name, so the memory used does not depend on the size of the collection. Sub-collections are not exported.
+     * The stream is flushed but not closed.
+     *
+     * @param out The stream to write to.
+     * @return The number of exported documents.
+     * @throws ClorastoreException If an IO error occurred.
+     */
+    public long exportTo(@NonNull OutputStream out) {
+        return exportTo(out, DocumentFormat.JSON);
+    }
+
+    /**
+     * Same as {@link #exportTo(OutputStream)}, in the provided format. With {@link DocumentFormat#BINARY}, the documents
+     * are written in their compact binary format, which is faster to import and keeps the exact type of the numbers.
+     *
+     * @param out    The stream to write to.
+     * @param format The format of the stream.
+     * @return The number of exported documents.
+     * @throws ClorastoreException If an IO error occurred.
+     */
+    public long exportTo(@NonNull OutputStream out, @NonNull DocumentFormat format) {
+        try {
+            return Transfer.export(db, root, out, format);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while exporting collection " + getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    /**
+     * Reads the documents of a stream written by {@link #exportTo(OutputStream)}, or any newline delimited JSON holding
+     * an object per line with the name of the document in <code>id</code> and its fields in <code>data</code>, and writes
+     * them to this collection. Existing documents are replaced.
+     * <p>
+     * The stream is read on the calling thread, while the documents are parsed and written in parallel, in chunks, on the
+     * {@link Clorastore#setExecutor(java.util.concurrent.Executor) executor} of the database. Only a few chunks are held in
+     * the memory at once. Unlike a {@link WriteBatch}, an import is not atomic: if it fails, the documents of the chunks
+     * written before the failure are kept. If a document appears several times in the stream, the last one is kept.
+     * The stream is not closed.
+     *
+     * @param in The stream to read from.
+     * @return The number of imported documents.
+     * @throws ClorastoreException If the stream is invalid, if a document contains a value that is not a valid datatype,
+     *                             or if an IO error occurred.
+     */
+    public long importFrom(@NonNull InputStream in) {
+        return importFrom(in, DocumentFormat.JSON);
+    }
+
+    /**
+     * Same as {@link #importFrom(InputStream)}, for a stream written by {@link #exportTo(OutputStream, DocumentFormat)}
+     * in the provided format.
+     *
+     * @param in     The stream to read from.
+     * @param format The format of the stream.
+     * @return The number of imported documents.
+     * @throws ClorastoreException If the stream is invalid, if a document contains a value that is not a valid datatype,
+     *                             or if an IO error occurred.
+     */
+    public long importFrom(@NonNull InputStream in, @NonNull DocumentFormat format) {
+        db.checkWritable();
+        try {
+            return Transfer.ingest(db, root, in, format);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while importing into collection " + getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    /**
+     * Returns the directory which holds the internal files of the collection.
+     */
+    static File metadataDir(File collection) {
+        return new File(collection, METADATA_DIR);
+    }
+
+
+    /**
+     * Listens to the changes of the documents of this collection. The listener first receives all the existing documents
+     * as added, then the documents which are created, modified or deleted. Sub-collections are not included.
+     *
+     * @param listener The listener
+     * @return The registration, to remove the listener.
+     */
+    public @NonNull ListenerRegistration addSnapshotListener(@NonNull ChangeListener listener) {
+        return db.changes.collection(root, listener);
+    }
+
+
+    /**
+     * Creates a batch of writes. The batch can write documents of this collection as well as of any other collection of the database.
+     *
+     * @return {@link WriteBatch}
+     */
+    public @NonNull WriteBatch batch() {
+        return db.batch();
     }
 
 
@@ -8,29 +8,56 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.reflect.TypeToken;
 
-import org.apache.commons.io.FileUtils;
-
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class Document {
+    protected final Clorastore db;
     protected final File document;
     protected Map<String, Object> data;
     public static final int DOCUMENT_MAX_SIZE = 5*1024*1024;
-    private final Executor executor = Executors.newSingleThreadExecutor();
+    private boolean shared;
+    private boolean projected;
+    private long version;
     private final Gson gson = new Gson();
 
-    protected Document(File root) {
+    @SuppressWarnings("try")
+    protected Document(Clorastore db, File root) {
+        this.db = db;
         this.document = root;
-        data = getData();
+        var start = System.nanoTime();
+        try (var lock = db.versions.read(document)) {
+            version = db.versions.get(document);
+            data = latest();
+        }
+        shared = true;
+        db.events.since(Operation.READ, start);
+    }
+
+    /**
+     * Creates a document holding only some of its fields, as selected by a query. The other fields are read
+     * when the document is modified.
+     */
+    @SuppressWarnings("try")
+    Document(Clorastore db, File root, Set<String> fields) {
+        this.db = db;
+        this.document = root;
+        try (var lock = db.versions.read(root)) {
+            this.version = db.versions.get(root);
+            this.data = readFields(db, root, fields);
+        }
+        this.projected = true;
     }
 
     /**
@@ -41,41 +68,69 @@ public class Document {
      * @throws ClorastoreException There are Many possibilities, Some are :-
      *                             1) When value is not a valid datatype
      *                             2) When an IO exception occurred
-     *                             3) When document does not exist
+     *                             3) When the document would exceed {@link #DOCUMENT_MAX_SIZE}, it is then left as it was
      */
+    @SuppressWarnings("try")
     public void put(@NonNull String field, @NonNull Object value) {
         validateDatatype(value);
 
-        if (document.length() > DOCUMENT_MAX_SIZE && document.delete())
-            throw new ClorastoreException("Document size exceed 5 MB, it must be less then 5 MB.", Reasons.DOC_SIZE_EXCEED);
-
-        data.put(field,value);
-        setData(data);
+        var start = System.nanoTime();
+        try (var lock = db.versions.write(document)) {
+            refresh();
+            mutableData().put(field,copyValue(value));
+            shared = true;
+            long size;
+            try {
+                size = db.storage.update(document, data, field);
+            } catch (ClorastoreException e) {
+                // The document is left as it was, the field is not written
+                db.cache.invalidate(document);
+                reload();
+                throw e;
+            }
+            db.cache.put(document, data, size);
+            db.indexes.onWrite(document, data);
+            db.expirations.onWrite(document);
+            version = db.versions.increment(document);
+            db.catalog.onWrite(document, size, version);
+            db.changes.publish(document, data);
+        }
+        db.storage.commit(document);
+        db.events.since(Operation.UPDATE, start);
     }
 
 
     /**
      * Creates field in the document. Creates document if not already exist. This will overwrite previously written data the document
-     * Use put() to update the data, add() to add element into the list. The method runs on a background thread
+     * Use put() to update the data, add() to add element into the list. The document is written to the disk
+     * on the background writer of the database, use {@link Clorastore#flush()} to wait until it is written.
+     * With {@link Durability#GROUP_COMMIT} or {@link Durability#ALWAYS}, this waits until the document is synced to the device.
+     * The data is copied, modifying the map afterwards does not modify the document.
      *
      * @param fields The data to store in the document
-     * @throws ClorastoreException If fields contain a value that is not a valid datatype or if an IO error occurred.
+     * @throws ClorastoreException If fields contain a value that is not a valid datatype, if the document would exceed
+     *                             {@link #DOCUMENT_MAX_SIZE} or if an IO error occurred.
      */
+    @SuppressWarnings("try")
     public void setData(@NonNull Map<String, Object> fields) {
-        fields.values().forEach(this::validateDatatype);
-
-        if (document.length() > DOCUMENT_MAX_SIZE && document.delete())
-            throw new ClorastoreException("Document size exceed 5 MB, it must be less then 5 MB.", Reasons.DOC_SIZE_EXCEED);
-
-        var json = gson.toJsonTree(fields).getAsJsonObject();
-        data = fields;
-        executor.execute(() -> {
-            try {
-                FileUtils.writeStringToFile(document, json.toString(), Charset.defaultCharset(), false);
-            } catch (IOException e) {
-                throw new ClorastoreException("An IO error occurred while creating/writing document in " + document.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
-            }
-        });
+        fields.values().forEach(Document::validateDatatype);
+        fields = copyOf(fields);
+
+        var start = System.nanoTime();
+        try (var lock = db.versions.write(document)) {
+            var size = db.storage.write(document, fields);
+            data = fields;
+            shared = true;
+            projected = false;
+            db.cache.put(document, fields, size);
+            db.indexes.onWrite(document, fields);
+            db.expirations.onWrite(document);
+            version = db.versions.increment(document);
+            db.catalog.onWrite(document, size, version);
+            db.changes.publish(document, fields);
+        }
+        db.storage.commit(document);
+        db.events.since(Operation.WRITE, start);
     }
 
 
@@ -87,12 +142,7 @@ public class Document {
     @NonNull
     protected Map<String, ? super Object> getData() {
         try {
-            var content = FileUtils.readFileToString(document, Charset.defaultCharset());
-            if (content == null || content.isEmpty())
-                return new HashMap<>();
-
-            var type = new TypeToken<Map<String, Object>>(){}.getType();
-            return gson.fromJson(content,type);
+            return db.storage.read(document);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
@@ -110,35 +160,176 @@ public class Document {
         return (boolean) data.getOrDefault(filed,defaultValue);
     }
 
+    /**
+     * Returns a copy of the list, modifying it does not modify the document.
+     */
     public List getList(String filed,List defaultValue){
-        return (List) data.getOrDefault(filed,defaultValue);
+        var list = data.get(filed);
+        return list == null ? defaultValue : (List) copyValue(list);
+    }
+
+    /**
+     * Returns the version of the data held by this document. The version of a document increases every time it is written,
+     * by this object or by any other one of the same document.
+     * @return The version, 0 if the document was not written since the database was opened.
+     */
+    public long getVersion() {
+        return version;
     }
 
     /**
-     * Adds a value to the list. If list does not exist, it will be created.
+     * Sets the time at which this document expires. The document is then deleted at that time, and is never read, listed,
+     * counted or returned by a query after it, even before it is deleted. The expiry is kept when the document is written,
+     * unless its collection has a {@link Collection#setTimeToLive(long, TimeUnit) time to live}, which sets it again.
+     * @param time The expiry time, in milliseconds since the epoch, or 0 for the document to never expire.
+     * @throws ClorastoreException If the document does not exist or if an IO error occurred.
+     */
+    @SuppressWarnings("try")
+    public void expireAt(long time){
+        db.checkWritable();
+        try (var lock = db.versions.write(document)) {
+            if (!db.storage.exists(document))
+                throw new ClorastoreException("The document " + getName() + " does not exist", Reasons.NO_DOC_EXIST);
+            db.expirations.expire(document, Math.max(time, 0));
+        }
+    }
+
+    /**
+     * Sets this document to expire after the duration, from now. See {@link #expireAt(long)}.
+     * @param duration The duration after which the document expires.
+     * @param unit The unit of the duration.
+     * @throws ClorastoreException If the document does not exist or if an IO error occurred.
+     */
+    public void expireAfter(long duration, @NonNull TimeUnit unit){
+        expireAt(System.currentTimeMillis() + unit.toMillis(Math.max(duration, 0)));
+    }
+
+    /**
+     * Returns the time at which this document expires.
+     * @return The expiry time, in milliseconds since the epoch, or 0 if the document never expires.
+     */
+    public long getExpiry(){
+        return db.expirations.expiry(document);
+    }
+
+    /**
+     * Adds a value to the list. If list does not exist, it will be created. The value is added atomically,
+     * even if other threads modify the list at the same time.
      * @param listName Name of the list
      * @param value Value to be added
      */
     public void addItem(String listName,Object value){
         validateDatatype(value);
-        var list = (List) data.getOrDefault(listName,new ArrayList<>());
-        try {
+        update(fields -> {
+            var list = new ArrayList<Object>(listOf(fields, listName));
             list.add(value);
-        } catch (UnsupportedOperationException e){
-            var mutable = new ArrayList<>(list);
-            mutable.add(value);
-            list = mutable;
-            put(listName,mutable);
-        }
-        data.put(listName,list);
-        setData(data);
+            fields.put(listName, list);
+        });
     }
 
+    /**
+     * Removes the first occurrence of the value from the list, atomically.
+     * @param listName Name of the list
+     * @param value Value to be removed
+     */
     public void removeItem(String listName,Object value) {
-        var list = (List) data.getOrDefault(listName, new ArrayList<>());
-        list.remove(value);
-        data.put(listName, list);
-        setData(data);
+        update(fields -> {
+            var list = new ArrayList<Object>(listOf(fields, listName));
+            list.remove(value);
+            fields.put(listName, list);
+        });
+    }
+
+    /**
+     * Adds the values which are not already in the list, atomically. If list does not exist, it will be created.
+     * @param listName Name of the list
+     * @param values The values to add
+     */
+    public void arrayUnion(@NonNull String listName, @NonNull Object... values){
+        for (Object value : values)
+            validateDatatype(value);
+        update(fields -> {
+            var list = new ArrayList<Object>(listOf(fields, listName));
+            for (Object value : values) {
+                if (list.stream().noneMatch(item -> equal(item, value)))
+                    list.add(value);
+            }
+            fields.put(listName, list);
+        });
+    }
+
+    /**
+     * Removes all the occurrences of the values from the list, atomically.
+     * @param listName Name of the list
+     * @param values The values to remove
+     */
+    public void arrayRemove(@NonNull String listName, @NonNull Object... values){
+        update(fields -> {
+            var list = new ArrayList<Object>(listOf(fields, listName));
+            for (Object value : values)
+                list.removeIf(item -> equal(item, value));
+            fields.put(listName, list);
+        });
+    }
+
+    /**
+     * Adds a number to the value of a numeric field, atomically. A missing field counts as 0. The result is a long if both
+     * numbers are integers, a double otherwise, so counters written by many threads stay exact.
+     * @param field The name of the field
+     * @param amount The number to add, negative to subtract
+     * @return The new value of the field.
+     * @throws ClorastoreException If the field is not a number, or with {@link Reasons#INVALID_DATATYPE} if both numbers
+     *                             are integers and their sum overflows a long. The field is then left as it was.
+     */
+    public Number increment(@NonNull String field, @NonNull Number amount){
+        var result = new Number[1];
+        update(fields -> {
+            var current = fields.getOrDefault(field, 0L);
+            if (!(current instanceof Number))
+                throw new ClorastoreException("Field '" + field + "' is not a number", Reasons.INVALID_DATATYPE);
+            try {
+                result[0] = add((Number) current, amount);
+            } catch (ArithmeticException e) {
+                throw new ClorastoreException("Adding " + amount + " to field '" + field + "' overflows a long", Reasons.INVALID_DATATYPE);
+            }
+            fields.put(field, result[0]);
+        });
+        return result[0];
+    }
+
+    /**
+     * Modifies the document atomically. The mutator receives a copy of the latest data of the document and modifies it.
+     * If the document is written by someone else meanwhile, the mutator is called again on the new data, until the
+     * modification is written without conflict. The mutator must then have no side effect.
+     * @param mutator The function modifying the data
+     * @return The new version of the document.
+     * @throws ClorastoreException If the mutator puts a value that is not a valid datatype.
+     */
+    public long update(@NonNull Consumer<Map<String, Object>> mutator){
+        while (true) {
+            var expected = db.versions.get(document);
+            if (update(expected, latest(), mutator))
+                return version;
+        }
+    }
+
+    /**
+     * Modifies the document only if it is still at the expected version, that is if nobody wrote it since it was read
+     * at this version. The mutator receives a copy of the latest data of the document and modifies it.
+     * @param expectedVersion The version at which the document was read, as returned by {@link #getVersion()}
+     * @param mutator The function modifying the data
+     * @return true if the document was modified, false if its version changed. The document then holds its latest data.
+     * @throws ClorastoreException If the mutator puts a value that is not a valid datatype.
+     */
+    public boolean update(long expectedVersion, @NonNull Consumer<Map<String, Object>> mutator){
+        if (db.versions.get(document) != expectedVersion) {
+            reload();
+            return false;
+        }
+        if (update(expectedVersion, latest(), mutator))
+            return true;
+        reload();
+        return false;
     }
 
 
@@ -149,7 +340,6 @@ public class Document {
      * @throws ClassCastException If the object is not compatible with the class provided
      */
     public <T> T getAsObject(@NonNull Class<T> clazz) throws IOException, ClassCastException {
-        System.out.println(data);
         return gson.fromJson(gson.toJsonTree(data),clazz);
     }
 
@@ -171,11 +361,82 @@ public class Document {
      * Deletes the document. Any operation performed on this document after deleting this may cause
      * {@link java.io.FileNotFoundException}. This should be last call on this document.
      */
+    @SuppressWarnings("try")
     public void delete() {
-        document.delete();
+        var start = System.nanoTime();
+        try (var lock = db.versions.write(document)) {
+            db.cache.invalidate(document);
+            if (db.storage.delete(document))
+                db.indexes.onDelete(document);
+            db.expirations.onDelete(document);
+            db.catalog.onDelete(document);
+            version = db.versions.increment(document);
+            db.changes.publish(document, null);
+        }
+        db.storage.commit(document);
+        db.events.since(Operation.DELETE, start);
         System.gc();
     }
 
+    /**
+     * Same as {@link #put(String, Object)}, but runs on the {@link Clorastore#setExecutor(java.util.concurrent.Executor) executor}
+     * of the database. The future completes once the document is written to its file, not when it is queued on the background
+     * writer, and synced to the device if the {@link Durability} of the database requires it.
+     * @param field The name of the field
+     * @param value The value of the field
+     * @return A future completed when the document is written, or with the {@link ClorastoreException} thrown by the write.
+     */
+    public @NonNull CompletableFuture<Void> putAsync(@NonNull String field, @NonNull Object value) {
+        return written(() -> {
+            put(field, value);
+            return null;
+        });
+    }
+
+    /**
+     * Same as {@link #setData(Map)}, but runs on the executor of the database. The future completes once the document
+     * is written to its file.
+     * @param fields The data to store in the document
+     * @return A future completed when the document is written, or with the {@link ClorastoreException} thrown by the write.
+     */
+    public @NonNull CompletableFuture<Void> setDataAsync(@NonNull Map<String, Object> fields) {
+        return written(() -> {
+            setData(fields);
+            return null;
+        });
+    }
+
+    /**
+     * Same as {@link #update(Consumer)}, but runs on the executor of the database. The future completes once the
+     * document is written to its file.
+     * @param mutator The function modifying the data
+     * @return A future completed with the new version of the document when it is written, or with the {@link ClorastoreException} thrown by the write.
+     */
+    public @NonNull CompletableFuture<Long> updateAsync(@NonNull Consumer<Map<String, Object>> mutator) {
+        return written(() -> update(mutator));
+    }
+
+    /**
+     * Same as {@link #delete()}, but runs on the executor of the database. The future completes once the file of the document is deleted.
+     * @return A future completed when the document is deleted, or with the {@link ClorastoreException} thrown by the deletion.
+     */
+    public @NonNull CompletableFuture<Void> deleteAsync() {
+        return written(() -> {
+            delete();
+            return null;
+        });
+    }
+
+    /**
+     * Listens to the changes of this document. The listener first receives the current data of the document, if it exists,
+     * then every write and the deletion of the document, made by any object of this document.
+     * @param listener The listener
+     * @return The registration, to remove the listener.
+     */
+    public @NonNull ListenerRegistration addSnapshotListener(@NonNull ChangeListener listener) {
+        return db.changes.document(document, listener);
+    }
+
     /**
      * Gets the name of the document. Usefully when document is returned by the query.
      *
@@ -185,7 +446,185 @@ public class Document {
         return document.getName();
     }
 
-    private void validateDatatype(Object value) {
+    /**
+     * Runs the write on the executor of the database, then waits until the document is written to its file. The future
+     * completes with the error of the write if the writer failed to write this document.
+     */
+    private <T> CompletableFuture<T> written(Supplier<T> write) {
+        return Async.supply(db.executor, () -> {
+            var result = write.get();
+            db.storage.sync(document);
+            return result;
+        });
+    }
+
+    /**
+     * Applies the mutator to a copy of the data, and writes it if the document is still at the expected version.
+     *
+     * @param current The data of the document at the expected version, or a later one.
+     */
+    @SuppressWarnings("try")
+    private boolean update(long expected, Map<String, Object> current, Consumer<Map<String, Object>> mutator) {
+        var start = System.nanoTime();
+        var fields = copyOf(current);
+        mutator.accept(fields);
+        fields.values().forEach(Document::validateDatatype);
+
+        try (var lock = db.versions.write(document)) {
+            if (db.versions.get(document) != expected)
+                return false;
+            var size = db.storage.write(document, fields);
+            data = fields;
+            shared = true;
+            projected = false;
+            db.cache.put(document, fields, size);
+            db.indexes.onWrite(document, fields);
+            db.expirations.onWrite(document);
+            version = db.versions.increment(document);
+            db.catalog.onWrite(document, size, version);
+            db.changes.publish(document, fields);
+        }
+        db.storage.commit(document);
+        db.events.since(Operation.UPDATE, start);
+        return true;
+    }
+
+    /**
+     * Makes sure that this document holds all the fields of the latest version of the document, so that modifying it
+     * does not overwrite the changes made through other objects. Must be called while holding the lock of the document.
+     */
+    private void refresh() {
+        if (projected || version != db.versions.get(document))
+            reload();
+    }
+
+    /**
+     * Reads the latest version of the document.
+     */
+    @SuppressWarnings("try")
+    private void reload() {
+        try (var lock = db.versions.read(document)) {
+            version = db.versions.get(document);
+            data = latest();
+        }
+        shared = true;
+        projected = false;
+    }
+
+    /**
+     * Returns the latest data of the document, from the cache or from the disk. The returned data must not be modified.
+     * The document is read under its read lock, so that data read before a write is never cached after it.
+     */
+    @SuppressWarnings("try")
+    private Map<String, Object> latest() {
+        try (var lock = db.versions.read(document)) {
+            var cached = db.cache.get(document);
+            if (cached != null)
+                return cached;
+            var data = getData();
+            db.cache.put(document, data, db.storage.size(document));
+            return data;
+        }
+    }
+
+    private static List<?> listOf(Map<String, Object> fields, String listName) {
+        var list = fields.get(listName);
+        if (list != null && !(list instanceof List))
+            throw new ClorastoreException("Field '" + listName + "' is not a list", Reasons.INVALID_DATATYPE);
+        return list == null ? new ArrayList<>() : (List<?>) list;
+    }
+
+    private static Number add(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b))
+            return Math.addExact(a.longValue(), b.longValue());
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    /**
+     * Compares two values of a list. Numbers are compared by their value, as a number read from a JSON document is always a double.
+     */
+    private static boolean equal(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        return Objects.equals(a, b);
+    }
+
+    /**
+     * Returns the data of the document for modification. The data is copied first if it is shared through the cache
+     * with other documents of the same file, as they may be reading it.
+     */
+    private Map<String, Object> mutableData() {
+        if (shared && !db.cache.claim(document, data))
+            data = new HashMap<>(data);
+        shared = false;
+        return data;
+    }
+
+    /**
+     * Returns a copy of the data, with copies of its lists, so that the data kept by the database is never modified
+     * through a reference held by the caller.
+     */
+    @NonNull
+    static Map<String, Object> copyOf(@NonNull Map<String, Object> data) {
+        var copy = new HashMap<String, Object>(data.size() * 4 / 3 + 1);
+        data.forEach((field, value) -> copy.put(field, copyValue(value)));
+        return copy;
+    }
+
+    static Object copyValue(Object value) {
+        if (!(value instanceof List))
+            return value;
+        var list = (List<?>) value;
+        var copy = new ArrayList<Object>(list.size());
+        for (Object item : list)
+            copy.add(copyValue(item));
+        return copy;
+    }
+
+    /**
+     * Reads only the provided fields of a document, from the cache if it is cached or from the disk otherwise.
+     * Other fields are not parsed at all.
+     */
+    @NonNull
+    static Map<String, Object> readFields(Clorastore db, File document, Set<String> fields) {
+        var cached = db.cache.peek(document);
+        var data = new HashMap<String, Object>();
+        if (cached != null) {
+            for (String field : fields) {
+                if (cached.containsKey(field))
+                    data.put(field, cached.get(field));
+            }
+            return data;
+        }
+
+        try {
+            return db.storage.readFields(document, fields);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the name of the document file without the .doc extension.
+     */
+    static String nameOf(File document) {
+        var name = document.getName();
+        return name.endsWith(".doc") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * Checks the size of a document before it is written, so that the document is left as it was if it is too large.
+     */
+    static void checkSize(long size) {
+        if (size > DOCUMENT_MAX_SIZE)
+            throw new ClorastoreException("Document size exceed 5 MB, it must be less then 5 MB.", Reasons.DOC_SIZE_EXCEED);
+    }
+
+    static void validateDatatype(Object value) {
         var isValid = value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof List;
         if (!isValid)
             throw new ClorastoreException("Datatype not supported. A document can only contain either a 'String','Boolean' or a subclass of 'Number'", Reasons.ERROR_UNKNOWN);
@@ -0,0 +1,127 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A database-wide, least-recently-used cache of parsed documents. The cache is bounded by the number of documents
+ * and by their approximate size in bytes, the least recently used documents are evicted when any of the limit exceeds.
+ * The cached data is shared between all the {@link Document} of the same file, which copy it before modifying.
+ */
+class DocumentCache {
+    private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxEntries;
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    DocumentCache(int maxEntries, long maxBytes) {
+        setLimits(maxEntries, maxBytes);
+    }
+
+    synchronized void setLimits(int maxEntries, long maxBytes) {
+        if (maxEntries < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Cache limits cannot be negative");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Returns the cached data of the document, or null if it is not cached.
+     */
+    synchronized Map<String, Object> get(@NonNull File document) {
+        var entry = entries.get(document.getAbsoluteFile());
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.borrowed = true;
+        return entry.data;
+    }
+
+    /**
+     * Returns the cached data of the document without counting it in the statistics, or null if it is not cached.
+     * Used by the reads which do not need the whole document. The returned data must not be modified.
+     */
+    synchronized Map<String, Object> peek(@NonNull File document) {
+        var entry = entries.get(document.getAbsoluteFile());
+        if (entry == null)
+            return null;
+        entry.borrowed = true;
+        return entry.data;
+    }
+
+    /**
+     * Removes the data of the document from the cache if it was put by the caller and nobody else got it since then.
+     * The caller can then modify the data in place, instead of copying it, and put it again.
+     *
+     * @return true if the caller is the only one holding the data, false otherwise.
+     */
+    synchronized boolean claim(@NonNull File document, @NonNull Map<String, Object> data) {
+        var file = document.getAbsoluteFile();
+        var entry = entries.get(file);
+        if (entry == null || entry.data != data || entry.borrowed)
+            return false;
+        entries.remove(file);
+        bytes -= entry.size;
+        return true;
+    }
+
+    /**
+     * Caches the data of the document, replacing the previous one.
+     *
+     * @param size Approximate size of the data in bytes.
+     */
+    synchronized void put(@NonNull File document, @NonNull Map<String, Object> data, long size) {
+        var old = entries.put(document.getAbsoluteFile(), new Entry(data, size));
+        if (old != null)
+            bytes -= old.size;
+        bytes += size;
+        evict();
+    }
+
+    /**
+     * Removes the document from the cache.
+     */
+    synchronized void invalidate(@NonNull File document) {
+        var old = entries.remove(document.getAbsoluteFile());
+        if (old != null)
+            bytes -= old.size;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    private void evict() {
+        var iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= iterator.next().size;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static final class Entry {
+        final Map<String, Object> data;
+        final long size;
+        boolean borrowed;
+
+        Entry(Map<String, Object> data, long size) {
+            this.data = data;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A change to a document, as received by a {@link ChangeListener}.
+ */
+public final class DocumentChange {
+    private final Type type;
+    private final String document;
+    private final String collection;
+    private final Map<String, Object> data;
+
+    /**
+     * The kinds of changes.
+     */
+    public enum Type {
+        /**
+         * The document was created, or started to match a query.
+         */
+        ADDED,
+        /**
+         * The document was written and still matches.
+         */
+        MODIFIED,
+        /**
+         * The document was deleted, or stopped to match a query.
+         */
+        REMOVED
+    }
+
+    DocumentChange(Type type, String document, String collection, Map<String, Object> data) {
+        this.type = type;
+        this.document = document;
+        this.collection = collection;
+        this.data = data == null ? Collections.emptyMap() : Collections.unmodifiableMap(data);
+    }
+
+    public @NonNull Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the name of the changed document, without the .doc extension.
+     */
+    public @NonNull String getDocument() {
+        return document;
+    }
+
+    /**
+     * Returns the name of the collection of the changed document.
+     */
+    public @NonNull String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the new data of the document, empty if the document was deleted. For a document which stopped to match
+     * a query, this is the data which does not match anymore.
+     */
+    public @NonNull Map<String, Object> getData() {
+        return data;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return type + " " + collection + "/" + document + " " + data;
+    }
+}
@@ -0,0 +1,19 @@
+package com.clorabase.clorastore;
+
+/**
+ * The formats in which the document files can be written. Documents are read in whatever format they are written in,
+ * so a database can contain documents of both formats.
+ *
+ * @see Clorastore#setDocumentFormat(DocumentFormat)
+ */
+public enum DocumentFormat {
+    /**
+     * Every document is written as a JSON object. Numbers are read back as doubles. This is the default format.
+     */
+    JSON,
+    /**
+     * Every document is written in a compact binary format, with a table of its fields. Numbers are read back with the
+     * exact type they were written with, and a single field is read without decoding the others.
+     */
+    BINARY
+}
@@ -0,0 +1,462 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The write-behind pipeline of a database. Documents are written to the disk by a single background thread,
+ * in the order they were modified. A document which is modified again before it is written is written only once,
+ * with its latest content. The number of documents waiting to be written is bounded, a write blocks when the
+ * queue is full until the writer catches up.
+ * <p>
+ * Every document file is replaced atomically with {@link AtomicFile}, and synced to the device as required by the
+ * {@link Durability} of the database. The writer takes all the queued documents at once as a group: their temporary
+ * files are written, then synced together, then renamed, and every directory of the group is synced once. The writes
+ * which wait for the sync (see {@link #await(File)}) are all released by the same pass, so the cost of syncing is
+ * shared by the threads which wrote at the same time. With {@link Durability#PERIODIC}, the written files are
+ * instead synced by the writer at the sync interval.
+ * <p>
+ * Every write is reported to the {@link Events} of the database, with the time the document waited to be written.
+ * A write which fails is reported too. Its error is thrown by the next wait for this document, or by the next flush.
+ */
+class DocumentWriter {
+    private final LinkedHashMap<File, byte[]> pending = new LinkedHashMap<>();
+    private final Map<File, Long> queuedSince = new HashMap<>();
+    private final Map<File, byte[]> writing = new HashMap<>();
+    private final Set<File> unsynced = new LinkedHashSet<>();
+    private final Set<File> unsyncedDirs = new LinkedHashSet<>();
+    private final Events events;
+    private int capacity;
+    private Durability durability = Durability.PERIODIC;
+    private long syncInterval;
+    private long lastSync = System.nanoTime();
+    private boolean syncRequested;
+    private boolean syncing;
+    private Thread worker;
+    private boolean closing;
+    // Flushes the queue when the JVM exits, registered only while the thread runs so that a closed writer is not kept reachable
+    private Thread hook;
+    private ClorastoreException error;
+    // The errors of the documents whose last write failed, thrown by the next wait for the document
+    private final Map<File, ClorastoreException> failures = new HashMap<>();
+
+    DocumentWriter(int capacity, long syncInterval, @NonNull Events events) {
+        this.events = events;
+        setCapacity(capacity);
+        setSyncInterval(syncInterval);
+    }
+
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    synchronized void setDurability(@NonNull Durability durability) {
+        this.durability = durability;
+        notifyAll();
+    }
+
+    /**
+     * Sets the interval at which the written files are synced with {@link Durability#PERIODIC}, in milliseconds.
+     */
+    synchronized void setSyncInterval(long millis) {
+        if (millis < 1)
+            throw new IllegalArgumentException("Sync interval must be at least 1 ms");
+        this.syncInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+        notifyAll();
+    }
+
+    /**
+     * Returns whether a write must wait until its document is synced, with {@link #await(File)}.
+     */
+    synchronized boolean isSynchronous() {
+        return durability == Durability.GROUP_COMMIT || durability == Durability.ALWAYS;
+    }
+
+    /**
+     * Queues the content to be written to the document, replacing the content queued before if it is not yet written.
+     * Blocks while the queue is full.
+     */
+    synchronized void write(@NonNull File document, @NonNull byte[] content) {
+        var file = document.getAbsoluteFile();
+        var interrupted = false;
+        while (pending.size() >= capacity && !pending.containsKey(file)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        // The new content replaces the one which failed to be written
+        failures.remove(file);
+        pending.put(file, content);
+        queuedSince.putIfAbsent(file, System.nanoTime());
+        start();
+        notifyAll();
+    }
+
+    /**
+     * Returns the content which is queued or being written to the document, or null if there is none.
+     */
+    synchronized byte[] pending(@NonNull File document) {
+        var file = document.getAbsoluteFile();
+        var content = pending.get(file);
+        return content == null ? writing.get(file) : content;
+    }
+
+    /**
+     * Discards the queued write of the document and waits until it is not being written anymore.
+     * Used before deleting a document, so that the writer does not recreate it.
+     */
+    synchronized void cancel(@NonNull File document) {
+        var file = document.getAbsoluteFile();
+        pending.remove(file);
+        queuedSince.remove(file);
+        awaitWhile(() -> writing.containsKey(file));
+        failures.remove(file);
+        notifyAll();
+    }
+
+    /**
+     * Records that the document file was deleted, so that its directory is synced as required by the durability.
+     */
+    void deleted(@NonNull File document) {
+        var dir = document.getAbsoluteFile().getParentFile();
+        synchronized (this) {
+            if (durability == Durability.NONE)
+                return;
+            if (durability == Durability.PERIODIC) {
+                unsyncedDirs.add(dir);
+                start();
+                notifyAll();
+                return;
+            }
+        }
+        var start = System.nanoTime();
+        AtomicFile.syncDirectory(dir);
+        events.since(Operation.SYNC, start);
+    }
+
+    /**
+     * Blocks until the queued write of the document, if any, is written, and synced if the durability requires it.
+     *
+     * @throws ClorastoreException If the last write of the document failed.
+     */
+    synchronized void await(@NonNull File document) {
+        var file = document.getAbsoluteFile();
+        awaitWhile(() -> pending.containsKey(file) || writing.containsKey(file));
+        throwFailure(file);
+    }
+
+    /**
+     * Discards all the queued writes and waits until the current ones complete.
+     */
+    synchronized void cancelAll() {
+        pending.clear();
+        queuedSince.clear();
+        awaitWhile(() -> !writing.isEmpty());
+        failures.clear();
+        notifyAll();
+    }
+
+    /**
+     * Blocks until all the queued documents are written, and all the written documents are synced to the device,
+     * whatever the durability is.
+     *
+     * @throws ClorastoreException If any write failed since the last flush.
+     */
+    synchronized void flush() {
+        if (!unsynced.isEmpty() || !unsyncedDirs.isEmpty()) {
+            syncRequested = true;
+            start();
+            notifyAll();
+        }
+        awaitWhile(() -> !pending.isEmpty() || !writing.isEmpty() || syncRequested || syncing);
+        var error = this.error;
+        this.error = null;
+        failures.clear();
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Blocks until the queued writes of the documents are written, and the documents and their directories are synced
+     * to the device, whatever the durability is. The other queued documents are not waited for, and every directory is
+     * synced once.
+     *
+     * @throws ClorastoreException If the last write of any of the documents failed.
+     */
+    void flush(@NonNull Set<File> documents) {
+        var files = new ArrayList<File>(documents.size());
+        var dirs = new LinkedHashSet<File>();
+        for (File document : documents) {
+            var file = document.getAbsoluteFile();
+            files.add(file);
+            dirs.add(file.getParentFile());
+        }
+        boolean synced;
+        synchronized (this) {
+            awaitWhile(() -> files.stream().anyMatch(file -> pending.containsKey(file) || writing.containsKey(file)));
+            // The writer syncs the documents and their directories before releasing them
+            synced = isSynchronous();
+            if (!synced)
+                unsynced.removeAll(files);
+        }
+        if (!synced)
+            sync(files, new ArrayList<>(dirs));
+
+        synchronized (this) {
+            ClorastoreException error = null;
+            for (File file : files) {
+                try {
+                    throwFailure(file);
+                } catch (ClorastoreException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+
+    /**
+     * Writes all the queued documents, syncs all the written ones and stops the background thread. The thread is
+     * started again by the next write.
+     */
+    void close() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+            awaitWhile(() -> worker != null);
+            closing = false;
+            if (hook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(hook);
+                } catch (IllegalStateException e) {
+                    // The JVM is exiting, possibly running this hook
+                }
+                hook = null;
+            }
+        }
+        flush();
+    }
+
+    private void start() {
+        if (worker == null) {
+            worker = new Thread(this::run, "Clorastore-writer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        if (hook == null) {
+            hook = new Thread(this::close);
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            var group = new LinkedHashMap<File, byte[]>();
+            var since = new HashMap<File, Long>();
+            List<File> files = null;
+            List<File> dirs = null;
+            Durability durability;
+            int queued;
+            synchronized (this) {
+                long delay;
+                while (pending.isEmpty() && !closing && (delay = syncDelay()) > 0) {
+                    try {
+                        if (delay == Long.MAX_VALUE)
+                            wait();
+                        else
+                            TimeUnit.NANOSECONDS.timedWait(this, delay);
+                    } catch (InterruptedException e) {
+                        // Only closing stops the writer
+                    }
+                }
+                durability = this.durability;
+                if (pending.isEmpty()) {
+                    if (unsynced.isEmpty() && unsyncedDirs.isEmpty()) {
+                        worker = null;
+                        syncRequested = false;
+                        notifyAll();
+                        return;
+                    }
+                    files = new ArrayList<>(unsynced);
+                    dirs = new ArrayList<>(unsyncedDirs);
+                    unsynced.clear();
+                    unsyncedDirs.clear();
+                    syncRequested = false;
+                    syncing = true;
+                    lastSync = System.nanoTime();
+                } else {
+                    var iterator = pending.entrySet().iterator();
+                    while (iterator.hasNext() && (group.isEmpty() || durability != Durability.ALWAYS)) {
+                        var entry = iterator.next();
+                        iterator.remove();
+                        group.put(entry.getKey(), entry.getValue());
+                        since.put(entry.getKey(), queuedSince.remove(entry.getKey()));
+                    }
+                    writing.putAll(group);
+                }
+                queued = pending.size();
+                notifyAll();
+            }
+
+            if (files != null) {
+                sync(files, dirs);
+                synchronized (this) {
+                    syncing = false;
+                    notifyAll();
+                }
+                continue;
+            }
+
+            var written = write(group, since, queued, durability);
+            synchronized (this) {
+                if (durability == Durability.PERIODIC) {
+                    for (File file : written) {
+                        unsynced.add(file);
+                        unsyncedDirs.add(file.getParentFile());
+                    }
+                }
+                writing.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the time to wait before the written files must be synced, or {@link Long#MAX_VALUE} if there is nothing to sync.
+     */
+    private long syncDelay() {
+        if (unsynced.isEmpty() && unsyncedDirs.isEmpty())
+            return Long.MAX_VALUE;
+        if (syncRequested || durability != Durability.PERIODIC)
+            return 0;
+        return lastSync + syncInterval - System.nanoTime();
+    }
+
+    /**
+     * Writes a group of documents to their temporary files, syncs them if required, then renames them over the documents.
+     *
+     * @return The documents which are written.
+     */
+    private List<File> write(Map<File, byte[]> group, Map<File, Long> since, int queued, Durability durability) {
+        var sync = durability == Durability.GROUP_COMMIT || durability == Durability.ALWAYS;
+        var temps = new LinkedHashMap<File, File>();
+        for (var entry : group.entrySet()) {
+            try {
+                temps.put(entry.getKey(), AtomicFile.writeTemp(entry.getKey(), entry.getValue()));
+            } catch (IOException e) {
+                failed(entry.getKey(), e);
+            }
+        }
+
+        if (sync) {
+            var start = System.nanoTime();
+            for (var iterator = temps.entrySet().iterator(); iterator.hasNext(); ) {
+                var entry = iterator.next();
+                try {
+                    AtomicFile.sync(entry.getValue());
+                } catch (IOException e) {
+                    iterator.remove();
+                    entry.getValue().delete();
+                    failed(entry.getKey(), e);
+                }
+            }
+            events.since(Operation.SYNC, start);
+        }
+
+        var written = new ArrayList<File>(temps.size());
+        var dirs = new LinkedHashSet<File>();
+        for (var entry : temps.entrySet()) {
+            var file = entry.getKey();
+            try {
+                AtomicFile.rename(entry.getValue(), file);
+                written.add(file);
+                dirs.add(file.getParentFile());
+                events.onWrite(Document.nameOf(file), group.get(file).length, queued);
+                events.since(Operation.DISK_WRITE, since.get(file));
+            } catch (IOException e) {
+                entry.getValue().delete();
+                failed(file, e);
+            }
+        }
+
+        if (sync) {
+            var start = System.nanoTime();
+            dirs.forEach(AtomicFile::syncDirectory);
+            events.since(Operation.SYNC, start);
+        }
+        return written;
+    }
+
+    /**
+     * Syncs the files written since the last sync, and their directories.
+     */
+    private void sync(List<File> files, List<File> dirs) {
+        var start = System.nanoTime();
+        for (File file : files) {
+            try {
+                AtomicFile.sync(file);
+            } catch (IOException e) {
+                failed(file, e);
+            }
+        }
+        dirs.forEach(AtomicFile::syncDirectory);
+        events.since(Operation.SYNC, start);
+    }
+
+    private void failed(File file, IOException e) {
+        events.onWriteFailed(Document.nameOf(file), e);
+        var failure = new ClorastoreException("An IO error occurred while creating/writing document in " + file.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        synchronized (this) {
+            failures.put(file, failure);
+            if (error == null)
+                error = failure;
+        }
+    }
+
+    /**
+     * Throws the error of the last write of the document, if it failed. The error is reported once, it is not thrown by the next flush.
+     */
+    private void throwFailure(File file) {
+        var failure = failures.remove(file);
+        if (failure == null)
+            return;
+        // The next flush throws the error of another document which failed, if any
+        if (error == failure)
+            error = failures.isEmpty() ? null : failures.values().iterator().next();
+        throw failure;
+    }
+
+    private void awaitWhile(BooleanSupplier condition) {
+        var interrupted = false;
+        while (condition.getAsBoolean()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
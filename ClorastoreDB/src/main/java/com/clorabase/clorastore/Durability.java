@@ -0,0 +1,31 @@
+package com.clorabase.clorastore;
+
+/**
+ * How the writes of a database are synced to the storage device. Whatever the durability is, a document file is always
+ * replaced atomically: its new content is written to a temporary file which is then renamed over it, so a crash never
+ * leaves a document half written. The durability decides when the content is forced out of the caches of the operating
+ * system, so that it also survives a power loss.
+ *
+ * @see Clorastore#setDurability(Durability)
+ */
+public enum Durability {
+    /**
+     * Nothing is synced, the operating system writes the files to the device when it wants. The fastest mode, but the
+     * writes of the last seconds may be lost on a power loss.
+     */
+    NONE,
+    /**
+     * The written files are synced in the background at a fixed interval (see {@link Clorastore#setSyncInterval(long)}).
+     * Writes do not wait for the device, and at most the writes of the last interval are lost on a power loss. This is the default mode.
+     */
+    PERIODIC,
+    /**
+     * Every write waits until it is synced. The writes made at the same time by several threads are synced together,
+     * by a single pass of the background writer, so the cost of syncing is shared by all of them.
+     */
+    GROUP_COMMIT,
+    /**
+     * Every write waits until it is synced, on its own. The slowest mode, for when every single write matters.
+     */
+    ALWAYS
+}
@@ -0,0 +1,61 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Dispatches the events of a database to its {@link Metrics} and to the listener set by the user, if any.
+ */
+final class Events implements ClorastoreListener {
+    final Metrics metrics = new Metrics();
+    volatile ClorastoreListener listener;
+
+    @Override
+    public void onOperation(@NonNull Operation operation, long nanos) {
+        metrics.onOperation(operation, nanos);
+        var listener = this.listener;
+        if (listener != null)
+            listener.onOperation(operation, nanos);
+    }
+
+    @Override
+    public void onRead(@NonNull String document, long bytes) {
+        metrics.onRead(document, bytes);
+        var listener = this.listener;
+        if (listener != null)
+            listener.onRead(document, bytes);
+    }
+
+    @Override
+    public void onWrite(@NonNull String document, long bytes, int queued) {
+        metrics.onWrite(document, bytes, queued);
+        var listener = this.listener;
+        if (listener != null)
+            listener.onWrite(document, bytes, queued);
+    }
+
+    @Override
+    public void onWriteFailed(@NonNull String document, @NonNull Exception error) {
+        metrics.onWriteFailed(document, error);
+        var listener = this.listener;
+        if (listener != null)
+            listener.onWriteFailed(document, error);
+    }
+
+    @Override
+    public void onQuery(@NonNull String collection, long scanned, long returned, long nanos) {
+        metrics.onQuery(collection, scanned, returned, nanos);
+        metrics.onOperation(Operation.QUERY, nanos);
+        var listener = this.listener;
+        if (listener != null) {
+            listener.onQuery(collection, scanned, returned, nanos);
+            listener.onOperation(Operation.QUERY, nanos);
+        }
+    }
+
+    /**
+     * Records an operation which started at the provided time, as returned by {@link System#nanoTime()}.
+     */
+    void since(@NonNull Operation operation, long start) {
+        onOperation(operation, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,303 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Expires the documents of every collection of a database. The expiry times of the documents of a collection are kept in
+ * its {@link ExpiryIndex}, and every collection having documents which expire has a single timer in a {@link TimerWheel},
+ * at the earliest expiry time of its documents. When the timer fires, the expired documents are deleted in batches, and
+ * the timer is set again at the next expiry time. So the work done depends on the number of documents which expire, not
+ * on the number of documents of the collections.
+ * <p>
+ * The reaper may be late, so the operations listing or opening the documents of a collection first delete the documents
+ * of that collection which are already expired. Expired documents are never seen, even before the reaper gets to them.
+ * <p>
+ * The collections having expiry times are recorded in a file at the root of the database, so that their timers are set
+ * again, in the background, when the database is opened. The documents of a {@link Snapshot} are never expired.
+ */
+class Expirations {
+    private static final String EXPIRY_FILE = "documents.expiry";
+    static final String REGISTRY_FILE = "documents.expiring";
+    private static final long TICK = 1000;
+    private static final int WHEEL_SIZE = 512;
+    private static final int BATCH_SIZE = 1000;
+    private final Clorastore db;
+    private final File root;
+    private final File registry;
+    private final Map<File, ExpiryIndex> indexes = new ConcurrentHashMap<>();
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final TimerWheel wheel = new TimerWheel("Clorastore-reaper", TICK, WHEEL_SIZE);
+    private volatile boolean resumed;
+
+    Expirations(@NonNull Clorastore db, @NonNull File root) {
+        this.db = db;
+        this.root = root.getAbsoluteFile();
+        this.registry = new File(Collection.metadataDir(root), REGISTRY_FILE);
+        resume();
+    }
+
+    /**
+     * Returns the expiry index of the collection.
+     */
+    @NonNull
+    ExpiryIndex of(@NonNull File collection) {
+        return indexes.computeIfAbsent(collection.getAbsoluteFile(), this::load);
+    }
+
+    /**
+     * Sets the expiry time of a document which is written, if its collection has a time to live. Otherwise, the
+     * expiry time of the document, if any, is kept.
+     */
+    void onWrite(@NonNull File document) {
+        var index = of(document.getParentFile());
+        var ttl = index.getTtl();
+        if (ttl > 0)
+            expire(index, Document.nameOf(document), System.currentTimeMillis() + ttl);
+    }
+
+    void onDelete(@NonNull File document) {
+        of(document.getParentFile()).set(Document.nameOf(document), 0);
+    }
+
+    /**
+     * Sets the time at which the document expires, 0 to never expire it.
+     */
+    void expire(@NonNull File document, long time) {
+        expire(of(document.getParentFile()), Document.nameOf(document), time);
+    }
+
+    /**
+     * Returns the time at which the document expires, 0 if it never expires.
+     */
+    long expiry(@NonNull File document) {
+        return of(document.getParentFile()).expiry(Document.nameOf(document));
+    }
+
+    /**
+     * Sets the time to live of the documents of the collection. The documents of the collection which do not expire
+     * yet expire after the time to live from now.
+     */
+    @SuppressWarnings("try")
+    void setTtl(@NonNull File collection, long ttl) {
+        var index = of(collection);
+        try {
+            index.setTtl(ttl);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while setting the time to live of collection " + collection.getName() + ". Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        if (ttl == 0)
+            return;
+
+        register(index);
+        var expiry = System.currentTimeMillis() + ttl;
+        for (String name : db.catalog.of(collection).documents(null, Integer.MAX_VALUE)) {
+            var document = new File(collection, name + ".doc");
+            try (var lock = db.versions.write(document)) {
+                if (index.expiry(name) == 0 && db.storage.exists(document))
+                    index.set(name, expiry);
+            }
+        }
+        schedule(index, expiry);
+    }
+
+    /**
+     * Deletes the documents of the collection which are expired, if any. Called before listing or opening the documents
+     * of the collection, without holding any lock.
+     */
+    @SuppressWarnings("try")
+    void reap(@NonNull File collection) {
+        if (db.readOnly)
+            return;
+        var index = of(collection);
+        var next = index.next();
+        if (next == 0 || next > System.currentTimeMillis())
+            return;
+
+        var start = System.nanoTime();
+        var now = System.currentTimeMillis();
+        var dir = index.getCollection();
+        var deleted = new ArrayList<File>(BATCH_SIZE);
+        for (var expired = index.expired(now, BATCH_SIZE); !expired.isEmpty(); expired = index.expired(now, BATCH_SIZE)) {
+            for (String name : expired) {
+                var file = new File(dir, name + ".doc");
+                try (var lock = db.versions.write(file)) {
+                    // Written again since it was listed, with a new expiry time
+                    if (!index.isExpired(name, now))
+                        continue;
+                    db.cache.invalidate(file);
+                    if (db.storage.delete(file))
+                        db.indexes.onDelete(file);
+                    index.set(name, 0);
+                    db.catalog.onDelete(file);
+                    db.versions.increment(file);
+                    db.changes.publish(file, null);
+                }
+                deleted.add(file);
+            }
+            for (File file : deleted)
+                db.storage.commit(file);
+            deleted.clear();
+        }
+        db.events.since(Operation.EXPIRE, start);
+    }
+
+    /**
+     * Forgets the expiry index of the collection. Used when the collection is deleted.
+     */
+    void forget(@NonNull File collection) {
+        indexes.remove(collection.getAbsoluteFile());
+    }
+
+    /**
+     * Stops the reaper and forgets the loaded indexes. Their timers are set again, in the background, the next time
+     * the documents of the database are written or expired.
+     */
+    void close() {
+        wheel.clear();
+        indexes.clear();
+        resumed = false;
+    }
+
+    /**
+     * Forgets everything. Used when the database directory is deleted or cleaned.
+     */
+    void clear() {
+        close();
+        registered.clear();
+    }
+
+    private void expire(ExpiryIndex index, String name, long time) {
+        index.set(name, time);
+        if (time != 0) {
+            register(index);
+            schedule(index, time);
+        }
+    }
+
+    /**
+     * Sets the timer of the collection at the time, unless it is already set earlier.
+     */
+    private void schedule(ExpiryIndex index, long time) {
+        if (!resumed)
+            resume();
+        synchronized (index) {
+            if (time >= index.scheduled)
+                return;
+            index.scheduled = time;
+        }
+        wheel.schedule(time, () -> fire(index));
+    }
+
+    /**
+     * Reaps the collection when its timer fires, and sets the timer again at the next expiry time.
+     */
+    private void fire(ExpiryIndex index) {
+        synchronized (index) {
+            index.scheduled = Long.MAX_VALUE;
+        }
+        if (indexes.get(index.getCollection()) != index)
+            return;
+        try {
+            reap(index.getCollection());
+        } catch (RuntimeException e) {
+            db.events.onWriteFailed(index.getCollection().getName(), e);
+            schedule(index, System.currentTimeMillis() + TICK);
+            return;
+        }
+        var next = index.next();
+        if (next != 0)
+            schedule(index, next);
+    }
+
+    /**
+     * Sets again the timers of the collections recorded in the registry. The registry is read right away, but the
+     * indexes are loaded in the background, by the reaper. The collections which do not exist or do not expire any
+     * document anymore are removed from the registry.
+     */
+    private synchronized void resume() {
+        if (resumed)
+            return;
+        resumed = true;
+        if (db.readOnly || !registry.exists())
+            return;
+        try {
+            registered.addAll(Files.readAllLines(registry.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            db.events.onWriteFailed(REGISTRY_FILE, e);
+            return;
+        }
+
+        var paths = new ArrayList<>(registered);
+        wheel.schedule(0, () -> {
+            var removed = false;
+            for (String path : paths) {
+                var collection = path.isEmpty() ? root : new File(root, path);
+                var index = collection.isDirectory() ? of(collection) : null;
+                if (index == null || index.isEmpty()) {
+                    registered.remove(path);
+                    removed = true;
+                } else if (index.next() != 0) {
+                    schedule(index, index.next());
+                }
+            }
+            if (removed)
+                prune();
+        });
+    }
+
+    /**
+     * Rewrites the registry with the registered collections only.
+     */
+    private synchronized void prune() {
+        var content = new StringBuilder();
+        for (String path : registered)
+            content.append(path).append('\n');
+        try {
+            AtomicFile.write(registry, content.toString().getBytes(StandardCharsets.UTF_8), false);
+        } catch (IOException e) {
+            db.events.onWriteFailed(REGISTRY_FILE, e);
+        }
+    }
+
+    /**
+     * Records the collection in the registry, so that its timer is set again when the database is opened.
+     */
+    private void register(ExpiryIndex index) {
+        var path = root.toPath().relativize(index.getCollection().toPath()).toString();
+        if (registered.contains(path))
+            return;
+        synchronized (this) {
+            if (!registry.exists())
+                registered.clear();
+            if (!registered.add(path))
+                return;
+            registry.getParentFile().mkdirs();
+            try (var writer = new FileWriter(registry, StandardCharsets.UTF_8, true)) {
+                writer.write(path + "\n");
+            } catch (IOException e) {
+                registered.remove(path);
+                throw new ClorastoreException("An IO error occurred while recording the expiry of collection " + index.getCollection().getName() + ". Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+    }
+
+    private ExpiryIndex load(File collection) {
+        var index = new ExpiryIndex(collection, new File(Collection.metadataDir(collection), EXPIRY_FILE));
+        try {
+            index.load();
+        } catch (IOException | RuntimeException e) {
+            throw new ClorastoreException("Unable to load the expiry of documents in collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,229 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The expiry times of the documents of a single collection, sorted by time, so the documents which are expired are
+ * found in O(log n + k) without going through the others. The index also holds the time to live of the collection.
+ * <p>
+ * Like {@link FieldIndex}, the index is persisted as a snapshot file and a journal of the changes made after the snapshot
+ * was written, which is folded back into the snapshot once it grows larger than the snapshot itself.
+ */
+class ExpiryIndex {
+    private static final int MIN_JOURNAL_SIZE = 1024;
+    private static final String TTL = "ttl";
+    private static final String DOCUMENTS = "documents";
+    private final File collection;
+    private final File snapshot;
+    private final File journal;
+    private final TreeMap<Long, TreeSet<String>> times = new TreeMap<>();
+    private final Map<String, Long> expiries = new HashMap<>();
+    private long ttl;
+    private int journalSize;
+    /**
+     * The deadline of the timer which reaps the collection, Long.MAX_VALUE if there is none.
+     */
+    long scheduled = Long.MAX_VALUE;
+
+    ExpiryIndex(@NonNull File collection, @NonNull File snapshot) {
+        this.collection = collection;
+        this.snapshot = snapshot;
+        this.journal = new File(snapshot.getPath() + ".journal");
+    }
+
+    @NonNull
+    File getCollection() {
+        return collection;
+    }
+
+    /**
+     * Loads the index from the snapshot and replays the journal on top of it.
+     */
+    synchronized void load() throws IOException {
+        times.clear();
+        expiries.clear();
+        if (snapshot.exists()) {
+            try (var reader = new JsonReader(new FileReader(snapshot, StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    var name = reader.nextName();
+                    if (name.equals(TTL)) {
+                        ttl = reader.nextLong();
+                    } else if (name.equals(DOCUMENTS)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.beginArray();
+                            apply(reader.nextString(), reader.nextLong());
+                            reader.endArray();
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+        }
+
+        journalSize = 0;
+        if (journal.exists()) {
+            try (var reader = new BufferedReader(new FileReader(journal, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+                    var entry = JsonParser.parseString(line).getAsJsonArray();
+                    apply(entry.get(0).getAsString(), entry.size() > 1 ? entry.get(1).getAsLong() : 0);
+                    journalSize++;
+                }
+            } catch (RuntimeException e) {
+                // A partially written last line of the journal is ignored, everything before it is valid.
+            }
+        }
+    }
+
+    /**
+     * Returns the time to live of the documents of the collection, in milliseconds, 0 if they do not expire.
+     */
+    synchronized long getTtl() {
+        return ttl;
+    }
+
+    synchronized void setTtl(long ttl) throws IOException {
+        this.ttl = ttl;
+        compact();
+    }
+
+    /**
+     * Returns the time at which the document expires, 0 if it does not expire.
+     */
+    synchronized long expiry(@NonNull String doc) {
+        return expiries.getOrDefault(doc, 0L);
+    }
+
+    /**
+     * Returns whether the document is expired at the time.
+     */
+    synchronized boolean isExpired(@NonNull String doc, long now) {
+        var expiry = expiries.get(doc);
+        return expiry != null && expiry <= now;
+    }
+
+    /**
+     * Returns the earliest expiry time of the documents, 0 if no document expires.
+     */
+    synchronized long next() {
+        return times.isEmpty() ? 0 : times.firstKey();
+    }
+
+    /**
+     * Returns the documents expired at the time, at most limit of them, the earliest first.
+     */
+    @NonNull
+    synchronized List<String> expired(long now, int limit) {
+        var expired = new ArrayList<String>();
+        for (var docs : times.headMap(now, true).values()) {
+            for (String doc : docs) {
+                if (expired.size() == limit)
+                    return expired;
+                expired.add(doc);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Sets the time at which the document expires, or removes its expiry if the time is 0.
+     */
+    synchronized void set(@NonNull String doc, long time) {
+        if (expiry(doc) == time)
+            return;
+        apply(doc, time);
+        log(doc, time);
+    }
+
+    synchronized boolean isEmpty() {
+        return ttl == 0 && expiries.isEmpty();
+    }
+
+    synchronized void delete() {
+        times.clear();
+        expiries.clear();
+        ttl = 0;
+        snapshot.delete();
+        journal.delete();
+    }
+
+    private void apply(String doc, long time) {
+        var old = expiries.remove(doc);
+        if (old != null) {
+            var docs = times.get(old);
+            docs.remove(doc);
+            if (docs.isEmpty())
+                times.remove(old);
+        }
+        if (time != 0) {
+            expiries.put(doc, time);
+            times.computeIfAbsent(time, k -> new TreeSet<>()).add(doc);
+        }
+    }
+
+    private void log(String doc, long time) {
+        try {
+            if (journalSize >= Math.max(MIN_JOURNAL_SIZE, expiries.size())) {
+                compact();
+                return;
+            }
+
+            var entry = new JsonArray();
+            entry.add(doc);
+            if (time != 0)
+                entry.add(time);
+            if (journalSize == 0)
+                journal.getParentFile().mkdirs();
+            try (var writer = new FileWriter(journal, StandardCharsets.UTF_8, true)) {
+                writer.write(entry + "\n");
+            }
+            journalSize++;
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while updating the expiry of documents in collection " + collection.getName() + ". Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    private void compact() throws IOException {
+        var dir = snapshot.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        var temp = new File(snapshot.getPath() + ".tmp");
+        try (var writer = new JsonWriter(new BufferedWriter(new FileWriter(temp, StandardCharsets.UTF_8)))) {
+            writer.beginObject().name(TTL).value(ttl).name(DOCUMENTS).beginArray();
+            for (var entry : expiries.entrySet())
+                writer.beginArray().value(entry.getKey()).value(entry.getValue()).endArray();
+            writer.endArray().endObject();
+        }
+        if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot)))
+            throw new IOException("Unable to replace " + snapshot.getName());
+        journal.delete();
+        journalSize = 0;
+    }
+}
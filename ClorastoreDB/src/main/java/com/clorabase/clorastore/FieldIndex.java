@@ -0,0 +1,525 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A sorted, on-disk index of one field of the documents of a single collection. The index maps every
+ * value of the field to the documents having that value, so equality and range lookups are answered
+ * in O(log n + k) without opening any document.
+ * <p>
+ * The index is persisted as a sorted snapshot file and a journal of the changes made after the snapshot
+ * was written. The journal is folded back into the snapshot once it grows larger than the snapshot itself.
+ * The index is changed as soon as a document is written, before the document reaches the disk, so a marker file
+ * records that it was modified until the database is closed. An index left marked by a process which stopped
+ * without closing the database is rebuilt from the documents when it is loaded.
+ * <p>
+ * The index also keeps the count and the sum of the numeric values up to date, so the aggregates of the field
+ * are read without going through the documents.
+ */
+class FieldIndex {
+    static final String MARKER_SUFFIX = ".dirty";
+    private static final int MIN_JOURNAL_SIZE = 1024;
+    private static final int PAGE_SIZE = 1024;
+    private final String field;
+    private final File snapshot;
+    private final File journal;
+    private final File marker;
+    private final TreeMap<Key, TreeSet<String>> entries = new TreeMap<>();
+    private final Map<String, Key> keys = new HashMap<>();
+    private int journalSize;
+    private boolean dirty;
+    private long numbers;
+    private double sum;
+
+    FieldIndex(@NonNull String field, @NonNull File snapshot) {
+        this.field = field;
+        this.snapshot = snapshot;
+        this.journal = new File(snapshot.getPath() + ".journal");
+        this.marker = new File(snapshot.getPath() + MARKER_SUFFIX);
+    }
+
+    @NonNull
+    String getField() {
+        return field;
+    }
+
+    /**
+     * Loads the index from the snapshot and replays the journal on top of it.
+     *
+     * @return false if the index was modified by a process which stopped without closing the database. The index may then
+     * not match the documents on the disk, it must be rebuilt from them.
+     */
+    synchronized boolean load() throws IOException {
+        clear();
+        dirty = marker.exists();
+        if (dirty)
+            return false;
+        if (snapshot.exists()) {
+            try (var reader = new JsonReader(new FileReader(snapshot, StandardCharsets.UTF_8))) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    var entry = JsonParser.parseReader(reader).getAsJsonArray();
+                    apply(entry.get(0).getAsString(), Key.of(entry.get(1)));
+                }
+                reader.endArray();
+            }
+        }
+
+        journalSize = 0;
+        var torn = false;
+        if (journal.exists()) {
+            try (var reader = new BufferedReader(new FileReader(journal, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+                    // Only the last line may be partially written
+                    if (torn)
+                        throw new IOException("Corrupted journal " + journal.getName());
+                    JsonArray entry;
+                    try {
+                        entry = JsonParser.parseString(line).getAsJsonArray();
+                    } catch (RuntimeException e) {
+                        torn = true;
+                        continue;
+                    }
+                    apply(entry.get(0).getAsString(), entry.size() > 1 ? Key.of(entry.get(1)) : null);
+                    journalSize++;
+                }
+            }
+        }
+        if (torn)
+            // The next changes are not appended after the partially written line
+            compact();
+        return true;
+    }
+
+    /**
+     * Rebuilds the index from scratch with the provided document values.
+     *
+     * @param values Document name and the value of the field in it (may be null when the field is absent).
+     */
+    synchronized void rebuild(@NonNull Map<String, Object> values) throws IOException {
+        markDirty();
+        clear();
+        values.forEach((doc, value) -> apply(doc, Key.of(value)));
+        compact();
+    }
+
+    /**
+     * Updates the value of the field for a document.
+     */
+    synchronized void update(@NonNull String doc, Object value) {
+        var key = Key.of(value);
+        if (key.equals(keys.get(doc)))
+            return;
+        apply(doc, key);
+        log(doc, key);
+    }
+
+    /**
+     * Removes a document from the index.
+     */
+    synchronized void remove(@NonNull String doc) {
+        if (keys.containsKey(doc)) {
+            apply(doc, null);
+            log(doc, null);
+        }
+    }
+
+    /**
+     * Returns the documents whose field is equal to the value.
+     */
+    synchronized Set<String> equal(Object value) {
+        var docs = entries.get(Key.of(value));
+        return docs == null ? new LinkedHashSet<>() : new LinkedHashSet<>(docs);
+    }
+
+    /**
+     * Returns the documents whose field lies in the range. A null bound denotes an open end, the range never
+     * goes past the values of the same type as the other bound.
+     */
+    synchronized Set<String> range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        var lower = from == null ? Key.first(Key.of(to).rank) : Key.of(from);
+        var upper = to == null ? Key.first(Key.of(from).rank + 1) : Key.of(to);
+        var range = entries.subMap(lower, from == null || fromInclusive, upper, to != null && toInclusive);
+
+        var docs = new LinkedHashSet<String>();
+        range.values().forEach(docs::addAll);
+        return docs;
+    }
+
+    /**
+     * Returns the documents in which the field is absent.
+     */
+    synchronized Set<String> missing() {
+        return equal(null);
+    }
+
+    /**
+     * Returns the documents having the field, sorted by its value and then by their name. The documents are read from the
+     * index lazily, a page at a time, so only the ones which are consumed are copied.
+     *
+     * @param after The entry after which the documents start, or null to start from the first one.
+     * @param limit The maximum number of documents.
+     */
+    @NonNull
+    Stream<Sorter.Entry> sorted(boolean ascending, Sorter.Entry after, long limit) {
+        var walk = new Walk(ascending, after, limit);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walk, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns a page of the documents having the field, sorted by its value and then by their name.
+     *
+     * @param after The entry after which the documents start, or null to start from the first one.
+     * @param limit The maximum number of documents.
+     */
+    private synchronized List<Sorter.Entry> page(boolean ascending, Sorter.Entry after, int limit) {
+        var first = Key.first(Key.BOOLEAN);
+        NavigableMap<Key, TreeSet<String>> range;
+        if (after == null || after.key.compareTo(first) < 0)
+            range = ascending ? entries.tailMap(first, true) : after == null ? entries.tailMap(first, true).descendingMap() : Collections.emptyNavigableMap();
+        else
+            range = ascending ? entries.tailMap(after.key, true) : entries.subMap(first, true, after.key, true).descendingMap();
+
+        var page = new ArrayList<Sorter.Entry>(Math.min(limit, keys.size()));
+        for (var entry : range.entrySet()) {
+            NavigableSet<String> docs = ascending ? entry.getValue() : entry.getValue().descendingSet();
+            if (after != null && entry.getKey().equals(after.key))
+                docs = docs.tailSet(after.name, false);
+            for (String doc : docs) {
+                if (page.size() >= limit)
+                    return page;
+                page.add(new Sorter.Entry(entry.getKey(), doc));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Writes a new snapshot if the index was modified, and records that it matches the documents. Called when the database
+     * is closed, once all its documents are written.
+     */
+    synchronized void close() {
+        if (!dirty)
+            return;
+        try {
+            compact();
+            if (marker.delete())
+                dirty = false;
+        } catch (IOException e) {
+            // The index is rebuilt the next time it is loaded
+        }
+    }
+
+    synchronized void delete() {
+        clear();
+        snapshot.delete();
+        journal.delete();
+        marker.delete();
+        dirty = false;
+    }
+
+    /**
+     * Returns the aggregates of the numeric values of all the documents, in O(log n).
+     */
+    synchronized Aggregation aggregate() {
+        var range = entries.subMap(Key.first(Key.NUMBER), true, Key.first(Key.STRING), false);
+        if (range.isEmpty())
+            return new Aggregation();
+        return new Aggregation(numbers, sum, (Double) range.firstKey().value, (Double) range.lastKey().value);
+    }
+
+    /**
+     * Returns the aggregates of the numeric values of the provided documents, without reading them.
+     */
+    synchronized Aggregation aggregate(@NonNull Set<String> docs) {
+        var aggregation = new Aggregation();
+        for (String doc : docs) {
+            var key = keys.get(doc);
+            if (key != null)
+                aggregation.add(key.value);
+        }
+        return aggregation;
+    }
+
+    /**
+     * Returns the number of documents having every value, in the order of the values. Documents in which the field is absent are counted under the missing value.
+     */
+    synchronized Map<Key, Long> counts() {
+        var counts = new TreeMap<Key, Long>();
+        entries.forEach((key, docs) -> counts.put(key, (long) docs.size()));
+        return counts;
+    }
+
+    /**
+     * Returns the number of the provided documents having every value, without reading them.
+     */
+    synchronized Map<Key, Long> counts(@NonNull Set<String> docs) {
+        var counts = new TreeMap<Key, Long>();
+        for (String doc : docs)
+            counts.merge(keys.getOrDefault(doc, Key.of((Object) null)), 1L, Long::sum);
+        return counts;
+    }
+
+    private void clear() {
+        entries.clear();
+        keys.clear();
+        numbers = 0;
+        sum = 0;
+    }
+
+    private void apply(String doc, Key key) {
+        var old = keys.remove(doc);
+        if (old != null) {
+            var docs = entries.get(old);
+            docs.remove(doc);
+            if (docs.isEmpty())
+                entries.remove(old);
+            if (old.rank == Key.NUMBER) {
+                numbers--;
+                sum = numbers == 0 ? 0 : sum - (Double) old.value;
+            }
+        }
+        if (key != null) {
+            keys.put(doc, key);
+            entries.computeIfAbsent(key, k -> new TreeSet<>()).add(doc);
+            if (key.rank == Key.NUMBER) {
+                numbers++;
+                sum += (Double) key.value;
+            }
+        }
+    }
+
+    private void log(String doc, Key key) {
+        try {
+            markDirty();
+            if (journalSize >= Math.max(MIN_JOURNAL_SIZE, keys.size())) {
+                compact();
+                return;
+            }
+
+            var entry = new JsonArray();
+            entry.add(doc);
+            if (key != null)
+                entry.add(key.toJson());
+            try (var writer = new FileWriter(journal, StandardCharsets.UTF_8, true)) {
+                writer.write(entry + "\n");
+            }
+            journalSize++;
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while updating index of field '" + field + "'. Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    private void compact() throws IOException {
+        var temp = new File(snapshot.getPath() + ".tmp");
+        try (var writer = new JsonWriter(new BufferedWriter(new FileWriter(temp, StandardCharsets.UTF_8)))) {
+            writer.beginArray();
+            for (var entry : entries.entrySet()) {
+                var value = entry.getKey().toJson();
+                for (String doc : entry.getValue()) {
+                    writer.beginArray().value(doc);
+                    if (value.isJsonNull())
+                        writer.nullValue();
+                    else
+                        writer.jsonValue(value.toString());
+                    writer.endArray();
+                }
+            }
+            writer.endArray();
+        }
+        if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot)))
+            throw new IOException("Unable to replace " + snapshot.getName());
+        journal.delete();
+        journalSize = 0;
+    }
+
+    /**
+     * Records that the index may be ahead of the documents on the disk, which are written in the background, until the
+     * database is closed. The index is rebuilt from the documents if the process stops before.
+     */
+    private void markDirty() throws IOException {
+        if (dirty)
+            return;
+        AtomicFile.write(marker, new byte[0], true);
+        AtomicFile.syncDirectory(marker.getParentFile());
+        dirty = true;
+    }
+
+
+    /**
+     * A value of the indexed field. Values are ordered first by their type (absent < boolean < number < string < others)
+     * and then by their natural order. All numbers are compared as double, as they are stored in the document.
+     */
+    static final class Key implements Comparable<Key> {
+        static final int MISSING = 0, BOOLEAN = 1, NUMBER = 2, STRING = 3, OTHER = 4;
+        private final int rank;
+        private final Object value;
+
+        private Key(int rank, Object value) {
+            this.rank = rank;
+            this.value = value;
+        }
+
+        /**
+         * Returns a key which is smaller than all the values of the type.
+         */
+        static Key first(int rank) {
+            return new Key(rank, null);
+        }
+
+        static Key of(Object value) {
+            if (value == null)
+                return new Key(MISSING, null);
+            else if (value instanceof Boolean)
+                return new Key(BOOLEAN, (Boolean) value);
+            else if (value instanceof Number)
+                return new Key(NUMBER, ((Number) value).doubleValue());
+            else if (value instanceof String)
+                return new Key(STRING, (String) value);
+            else
+                return new Key(OTHER, value.toString());
+        }
+
+        static Key of(JsonElement json) {
+            if (json.isJsonNull())
+                return of((Object) null);
+            if (json.isJsonArray())
+                return new Key(OTHER, json.getAsJsonArray().get(0).getAsString());
+
+            var primitive = json.getAsJsonPrimitive();
+            if (primitive.isBoolean())
+                return of(primitive.getAsBoolean());
+            else if (primitive.isNumber())
+                return of(primitive.getAsDouble());
+            else
+                return of(primitive.getAsString());
+        }
+
+        /**
+         * Returns the value, as a double for a number and as a text for a list.
+         */
+        Object value() {
+            return value;
+        }
+
+        /**
+         * Returns whether the values are of the same type, and so can be compared by their value.
+         */
+        boolean sameType(Key other) {
+            return rank == other.rank;
+        }
+
+        JsonElement toJson() {
+            switch (rank) {
+                case MISSING:
+                    return JsonNull.INSTANCE;
+                case BOOLEAN:
+                    return new JsonPrimitive((Boolean) value);
+                case NUMBER:
+                    return new JsonPrimitive((Double) value);
+                case STRING:
+                    return new JsonPrimitive((String) value);
+                default:
+                    var array = new JsonArray();
+                    array.add((String) value);
+                    return array;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compareTo(Key other) {
+            if (rank != other.rank)
+                return Integer.compare(rank, other.rank);
+            if (value == null || other.value == null)
+                return value == other.value ? 0 : value == null ? -1 : 1;
+            return ((Comparable<Object>) value).compareTo(other.value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return rank * 31 + (value == null ? 0 : value.hashCode());
+        }
+    }
+
+
+    /**
+     * Walks the sorted documents a page at a time, each page starting after the last document of the previous one, so
+     * that the index is not locked while the documents are consumed.
+     */
+    private final class Walk implements Iterator<Sorter.Entry> {
+        private final boolean ascending;
+        private Sorter.Entry last;
+        private long remaining;
+        private Iterator<Sorter.Entry> page = Collections.emptyIterator();
+        private boolean end;
+
+        Walk(boolean ascending, Sorter.Entry after, long limit) {
+            this.ascending = ascending;
+            this.last = after;
+            this.remaining = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!page.hasNext() && !end && remaining > 0) {
+                var size = (int) Math.min(remaining, PAGE_SIZE);
+                var entries = page(ascending, last, size);
+                end = entries.size() < size;
+                remaining -= entries.size();
+                if (!entries.isEmpty())
+                    last = entries.get(entries.size() - 1);
+                page = entries.iterator();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public Sorter.Entry next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return page.next();
+        }
+    }
+}
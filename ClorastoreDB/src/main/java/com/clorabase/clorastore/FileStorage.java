@@ -0,0 +1,270 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The default storage engine, which stores every document as a file, in the {@link DocumentFormat} of the database. Files are written by the background
+ * {@link DocumentWriter} of the database, which replaces them atomically and syncs them as required by the {@link Durability}.
+ */
+class FileStorage implements Storage {
+    static final Type TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+    private static final Gson gson = new Gson();
+    private final DocumentWriter writer;
+    private final Events events;
+    private volatile DocumentFormat format;
+
+    FileStorage(@NonNull DocumentWriter writer, @NonNull DocumentFormat format, @NonNull Events events) {
+        this.writer = writer;
+        this.format = format;
+        this.events = events;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> read(@NonNull File document) throws IOException {
+        var content = writer.pending(document);
+        if (content == null)
+            return readFile(document, events);
+        return decode(content);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> readFields(@NonNull File document, @NonNull Set<String> fields) throws IOException {
+        var content = writer.pending(document);
+        if (content != null)
+            return decode(new ByteArrayInputStream(content), fields);
+        return readFile(document, fields, events);
+    }
+
+    @Override
+    public long write(@NonNull File document, @NonNull Map<String, Object> data) {
+        var content = encode(data, format);
+        Document.checkSize(content.length);
+        writer.write(document, content);
+        return content.length;
+    }
+
+    @Override
+    public long update(@NonNull File document, @NonNull Map<String, Object> data, @NonNull String field) {
+        return write(document, data);
+    }
+
+    @Override
+    public boolean exists(@NonNull File document) {
+        return document.exists();
+    }
+
+    @Override
+    public long size(@NonNull File document) {
+        return document.length();
+    }
+
+    @Override
+    public boolean create(@NonNull File document) throws IOException {
+        return document.createNewFile();
+    }
+
+    @Override
+    public void list(@NonNull File collection, @NonNull BiConsumer<String, Long> documents) {
+        listFiles(collection, documents);
+    }
+
+    @Override
+    public void forget(@NonNull File collection) {
+    }
+
+    @Override
+    public void setFormat(@NonNull DocumentFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void setDurability(@NonNull Durability durability, long syncInterval) {
+        writer.setSyncInterval(syncInterval);
+        writer.setDurability(durability);
+    }
+
+    @Override
+    public boolean delete(@NonNull File document) {
+        writer.cancel(document);
+        if (!document.delete())
+            return false;
+        writer.deleted(document);
+        return true;
+    }
+
+    @Override
+    public void sync(@NonNull File document) {
+        writer.await(document);
+    }
+
+    @Override
+    public void commit(@NonNull File document) {
+        if (writer.isSynchronous())
+            writer.await(document);
+    }
+
+    @Override
+    public void flush() {
+        writer.flush();
+    }
+
+    @Override
+    public void flush(@NonNull Set<File> documents) {
+        writer.flush(documents);
+    }
+
+    @Override
+    public void checkpoint() {
+        writer.flush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+
+    @Override
+    public void discard() {
+        writer.cancelAll();
+    }
+
+    /**
+     * Lists the document files of the collection, with their size.
+     */
+    static void listFiles(@NonNull File collection, @NonNull BiConsumer<String, Long> documents) {
+        var files = collection.listFiles((dir, name) -> name.endsWith(".doc"));
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isFile())
+                documents.accept(Document.nameOf(file), file.length());
+        }
+    }
+
+    /**
+     * Reads and decodes a document file, reporting the bytes read and the time spent decoding them.
+     */
+    @NonNull
+    static Map<String, Object> readFile(@NonNull File document, @NonNull Events events) throws IOException {
+        var content = FileUtils.readFileToByteArray(document);
+        events.onRead(Document.nameOf(document), content.length);
+        var start = System.nanoTime();
+        var data = decode(content);
+        events.since(Operation.PARSE, start);
+        return data;
+    }
+
+    /**
+     * Reads and decodes only the provided fields of a document file, reporting the bytes actually read and the time
+     * spent reading them.
+     */
+    @NonNull
+    static Map<String, Object> readFile(@NonNull File document, @NonNull Set<String> fields, @NonNull Events events) throws IOException {
+        var start = System.nanoTime();
+        try (var in = new CountingInputStream(new FileInputStream(document))) {
+            var data = decode(in, fields);
+            events.onRead(Document.nameOf(document), in.getByteCount());
+            events.since(Operation.PARSE, start);
+            return data;
+        }
+    }
+
+    /**
+     * Encodes the data of a document in the provided format.
+     */
+    @NonNull
+    static byte[] encode(@NonNull Map<String, Object> data, @NonNull DocumentFormat format) {
+        if (format == DocumentFormat.BINARY)
+            return BinaryCodec.encode(data);
+        return gson.toJsonTree(data).getAsJsonObject().toString().getBytes(Charset.defaultCharset());
+    }
+
+    /**
+     * Decodes the content of a document file, whatever its format is.
+     */
+    @NonNull
+    static Map<String, Object> decode(@NonNull byte[] content) {
+        if (BinaryCodec.isBinary(content))
+            return BinaryCodec.decode(content);
+        return parse(new String(content, Charset.defaultCharset()));
+    }
+
+    /**
+     * Decodes only the provided fields of a document file, whatever its format is. JSON documents are streamed, so the
+     * reading stops as soon as all the fields are found.
+     */
+    @NonNull
+    static Map<String, Object> decode(@NonNull InputStream content, @NonNull Set<String> fields) throws IOException {
+        var in = new BufferedInputStream(content);
+        in.mark(BinaryCodec.MAGIC.length);
+        var magic = in.readNBytes(BinaryCodec.MAGIC.length);
+        in.reset();
+        if (BinaryCodec.isBinary(magic))
+            return BinaryCodec.decode(in.readAllBytes(), fields);
+        return parse(new InputStreamReader(in, Charset.defaultCharset()), fields);
+    }
+
+    /**
+     * Parses the JSON content of a document file.
+     */
+    @NonNull
+    static Map<String, Object> parse(String content) {
+        if (content == null || content.isEmpty())
+            return new HashMap<>();
+        Map<String, Object> data = gson.fromJson(content, TYPE);
+        return data == null ? new HashMap<>() : data;
+    }
+
+    /**
+     * Parses only the provided fields of a JSON document, using a streaming reader. Other fields are skipped without
+     * being parsed, and the reading stops as soon as all the fields are found.
+     */
+    @NonNull
+    static Map<String, Object> parse(@NonNull Reader content, @NonNull Set<String> fields) throws IOException {
+        var data = new HashMap<String, Object>();
+        var reader = new JsonReader(content);
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT)
+                return data;
+        } catch (EOFException e) {
+            return data;
+        }
+
+        var values = gson.getAdapter(Object.class);
+        reader.beginObject();
+        while (data.size() < fields.size() && reader.hasNext()) {
+            var name = reader.nextName();
+            if (fields.contains(name))
+                data.put(name, values.read(reader));
+            else
+                reader.skipValue();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,688 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A condition on the fields of the documents, which can be composed with other conditions. Conditions on a field match
+ * only the documents having the field. Numbers are compared by their value whatever their type, and ranges compare
+ * values of the same type only: numbers with numbers and strings with strings.
+ * <p>
+ * A filter is evaluated by {@link Query#where(Filter)}, which plans it for every collection: conditions on indexed
+ * fields are answered from the indexes, the other conditions are ordered from the most to the least selective and
+ * evaluated on the fields they need only, before reading the whole document for the conditions which need it.
+ * <pre>
+ * Filter.equal("city", "Paris").and(Filter.greater("age", 18).or(Filter.in("role", "admin", "owner")))
+ * </pre>
+ */
+public abstract class Filter {
+
+    Filter() {}
+
+    /**
+     * Matches the documents whose field is equal to the value.
+     */
+    public static @NonNull Filter equal(@NonNull String field, @NonNull Object value) {
+        return new In(field, List.of(value));
+    }
+
+    /**
+     * Matches the documents whose field is equal to any of the values.
+     */
+    public static @NonNull Filter in(@NonNull String field, @NonNull Object... values) {
+        return new In(field, Arrays.asList(values));
+    }
+
+    /**
+     * Matches the documents whose field is greater than the value.
+     */
+    public static @NonNull Filter greater(@NonNull String field, @NonNull Object value) {
+        return new Range(field, value, false, null, false);
+    }
+
+    /**
+     * Matches the documents whose field is greater than or equal to the value.
+     */
+    public static @NonNull Filter greaterOrEqual(@NonNull String field, @NonNull Object value) {
+        return new Range(field, value, true, null, false);
+    }
+
+    /**
+     * Matches the documents whose field is smaller than the value.
+     */
+    public static @NonNull Filter smaller(@NonNull String field, @NonNull Object value) {
+        return new Range(field, null, false, value, false);
+    }
+
+    /**
+     * Matches the documents whose field is smaller than or equal to the value.
+     */
+    public static @NonNull Filter smallerOrEqual(@NonNull String field, @NonNull Object value) {
+        return new Range(field, null, false, value, true);
+    }
+
+    /**
+     * Matches the documents whose field lies between the values, both included.
+     */
+    public static @NonNull Filter between(@NonNull String field, @NonNull Object from, @NonNull Object to) {
+        return new Range(field, from, true, to, true);
+    }
+
+    /**
+     * Matches the documents whose field is a string starting with the prefix.
+     */
+    public static @NonNull Filter startsWith(@NonNull String field, @NonNull String prefix) {
+        return new Prefix(field, prefix);
+    }
+
+    /**
+     * Matches the documents whose field contains all the words of the text, in any order. Words are compared in lower
+     * case and without accents, and a list matches if its strings contain the words. A text without any word matches no document.
+     * <pre>
+     * Filter.contains("title", "java database") // matches "A database written in Java"
+     * </pre>
+     * If the field has a {@link Collection#createTextIndex(String) text index}, the documents are looked up from it.
+     */
+    public static @NonNull Filter contains(@NonNull String field, @NonNull String text) {
+        return new Text(field, text, false);
+    }
+
+    /**
+     * Same as {@link #contains(String, String)}, but the last word of the text only needs to be the beginning of a word
+     * of the field, as for a search as you type. Unlike {@link #startsWith(String, String)}, the words may appear anywhere in the field.
+     * <pre>
+     * Filter.containsPrefix("title", "java data") // matches "A database written in Java"
+     * </pre>
+     */
+    public static @NonNull Filter containsPrefix(@NonNull String field, @NonNull String text) {
+        return new Text(field, text, true);
+    }
+
+    /**
+     * Matches the documents which do not have the field.
+     */
+    public static @NonNull Filter missing(@NonNull String field) {
+        return new Missing(field);
+    }
+
+    /**
+     * Matches the documents on which the condition holds. The condition receives the whole data of the document, so it can
+     * not be answered from an index and is evaluated last.
+     */
+    public static @NonNull Filter of(@NonNull Predicate<Map<String, ? super Object>> condition) {
+        return new Condition(condition);
+    }
+
+    /**
+     * Matches the documents matching all the filters.
+     */
+    public static @NonNull Filter and(@NonNull Filter... filters) {
+        return new And(Arrays.asList(filters));
+    }
+
+    /**
+     * Matches the documents matching any of the filters.
+     */
+    public static @NonNull Filter or(@NonNull Filter... filters) {
+        return new Or(Arrays.asList(filters));
+    }
+
+    /**
+     * Matches the documents matching this filter and the other one.
+     */
+    public @NonNull Filter and(@NonNull Filter other) {
+        return and(this, other);
+    }
+
+    /**
+     * Matches the documents matching this filter or the other one.
+     */
+    public @NonNull Filter or(@NonNull Filter other) {
+        return or(this, other);
+    }
+
+    /**
+     * Evaluates the filter on the data of a document, which holds at least the {@link #fields() fields} of the filter.
+     */
+    abstract boolean test(@NonNull Map<String, ?> data);
+
+    /**
+     * Returns the fields read by the filter, or null if it reads the whole document.
+     */
+    abstract Set<String> fields();
+
+    /**
+     * Returns the estimated share of the documents matching the filter, used to evaluate the most selective filters first.
+     */
+    abstract double selectivity();
+
+    /**
+     * Returns the names of the documents matching the filter from the indexes of a collection, or null if the filter can
+     * not be answered from them.
+     *
+     * @param indexes The indexes of the collection.
+     */
+    abstract Set<String> lookup(@NonNull Indexes indexes);
+
+    /**
+     * Plans the evaluation of the filter on a collection.
+     */
+    @NonNull
+    Plan plan(@NonNull Indexes indexes) {
+        var candidates = lookup(indexes);
+        return candidates == null ? new Plan(null, this, null) : new Plan(candidates, null, toString());
+    }
+
+
+    /**
+     * The indexes of a collection, from which filters are answered.
+     */
+    interface Indexes {
+        /**
+         * Returns the sorted index of the field, or null if the field is not indexed.
+         */
+        FieldIndex field(@NonNull String field);
+
+        /**
+         * Returns the text index of the field, or null if the field has no text index.
+         */
+        TextIndex text(@NonNull String field);
+    }
+
+
+    /**
+     * How a filter is evaluated on a collection: the documents to read, found from the indexes or by scanning the
+     * collection, and the part of the filter which remains to be evaluated on them.
+     */
+    static final class Plan {
+        /**
+         * The documents which may match, or null to scan all the documents.
+         */
+        final Set<String> candidates;
+        /**
+         * The conditions evaluated on the fields they need, before the document is read.
+         */
+        final Filter partial;
+        /**
+         * The conditions evaluated on the whole document.
+         */
+        final Filter full;
+        /**
+         * The conditions answered from the indexes, or null.
+         */
+        final String indexed;
+
+        Plan(Set<String> candidates, Filter residual, String indexed) {
+            this.candidates = candidates;
+            this.indexed = indexed;
+            if (residual == null || residual.fields() != null) {
+                this.partial = residual;
+                this.full = null;
+            } else if (residual instanceof And) {
+                var children = ((And) residual).filters;
+                this.partial = And.of(children.stream().filter(filter -> filter.fields() != null).collect(Collectors.toList()));
+                this.full = And.of(children.stream().filter(filter -> filter.fields() == null).collect(Collectors.toList()));
+            } else {
+                this.partial = null;
+                this.full = residual;
+            }
+        }
+
+        /**
+         * Returns whether the plan is answered from the indexes alone, the matching documents being all the candidates
+         * (or all the documents if there is no candidate) without reading any of them.
+         */
+        boolean covered() {
+            return partial == null && full == null;
+        }
+
+        /**
+         * Returns the estimated number of documents matching the plan, out of the documents it reads.
+         */
+        double estimate(long read) {
+            return read * (partial == null ? 1 : partial.selectivity()) * (full == null ? 1 : full.selectivity());
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            var plan = new StringBuilder(candidates == null ? "scan" : "index lookup [" + indexed + "] -> " + candidates.size() + " documents");
+            if (partial != null)
+                plan.append(", filter on fields ").append(partial.fields()).append(" [").append(partial).append(']');
+            if (full != null)
+                plan.append(", then filter on document [").append(full).append(']');
+            return plan.toString();
+        }
+    }
+
+
+    /**
+     * Compares two values. Numbers are compared by their value, as a number read from the disk is always a double
+     * whereas a cached one keeps the type it was written with.
+     */
+    static boolean equal(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number)
+            return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        return Objects.equals(a, b);
+    }
+
+
+    private static final class In extends Filter {
+        private final String field;
+        private final List<Object> values;
+
+        In(String field, List<Object> values) {
+            this.field = field;
+            this.values = values;
+            values.forEach(Objects::requireNonNull);
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            var value = data.get(field);
+            return value != null && values.stream().anyMatch(item -> equal(value, item));
+        }
+
+        @Override
+        Set<String> fields() {
+            return Set.of(field);
+        }
+
+        @Override
+        double selectivity() {
+            return Math.min(1, 0.1 * values.size());
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var index = indexes.field(field);
+            if (index == null)
+                return null;
+            var docs = new LinkedHashSet<String>();
+            for (Object value : values)
+                docs.addAll(index.equal(value));
+            return docs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return values.size() == 1 ? field + " == " + values.get(0) : field + " in " + values;
+        }
+    }
+
+
+    private static final class Range extends Filter {
+        private final String field;
+        private final Object from, to;
+        private final boolean fromInclusive, toInclusive;
+        private final FieldIndex.Key lower, upper;
+
+        Range(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+            this.field = field;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+            this.lower = from == null ? null : FieldIndex.Key.of(from);
+            this.upper = to == null ? null : FieldIndex.Key.of(to);
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            var value = data.get(field);
+            if (value == null)
+                return false;
+            var key = FieldIndex.Key.of(value);
+            if (lower != null) {
+                var compare = key.compareTo(lower);
+                if (!key.sameType(lower) || compare < 0 || (compare == 0 && !fromInclusive))
+                    return false;
+            }
+            if (upper != null) {
+                var compare = key.compareTo(upper);
+                return key.sameType(upper) && (compare < 0 || (compare == 0 && toInclusive));
+            }
+            return true;
+        }
+
+        @Override
+        Set<String> fields() {
+            return Set.of(field);
+        }
+
+        @Override
+        double selectivity() {
+            return from != null && to != null ? 0.1 : 0.3;
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var index = indexes.field(field);
+            return index == null ? null : index.range(from, fromInclusive, to, toInclusive);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            if (to == null)
+                return field + (fromInclusive ? " >= " : " > ") + from;
+            if (from == null)
+                return field + (toInclusive ? " <= " : " < ") + to;
+            return from + (fromInclusive ? " <= " : " < ") + field + (toInclusive ? " <= " : " < ") + to;
+        }
+    }
+
+
+    private static final class Prefix extends Filter {
+        private final String field;
+        private final String prefix;
+
+        Prefix(String field, String prefix) {
+            this.field = field;
+            this.prefix = prefix;
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            var value = data.get(field);
+            return value instanceof String && ((String) value).startsWith(prefix);
+        }
+
+        @Override
+        Set<String> fields() {
+            return Set.of(field);
+        }
+
+        @Override
+        double selectivity() {
+            return 0.2;
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var index = indexes.field(field);
+            return index == null ? null : index.range(prefix, true, prefix + Character.MAX_VALUE, true);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return field + " starts with " + prefix;
+        }
+    }
+
+
+    private static final class Text extends Filter {
+        private final String field;
+        private final String text;
+        private final String[] words;
+        private final boolean prefix;
+
+        Text(String field, String text, boolean prefix) {
+            this.field = field;
+            this.text = text;
+            this.words = TextIndex.words(text);
+            this.prefix = prefix;
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            if (words.length == 0)
+                return false;
+            var contained = new HashSet<>(Arrays.asList(TextIndex.words(data.get(field))));
+            var exact = prefix ? words.length - 1 : words.length;
+            for (int i = 0; i < exact; i++) {
+                if (!contained.contains(words[i]))
+                    return false;
+            }
+            return !prefix || contained.stream().anyMatch(word -> word.startsWith(words[exact]));
+        }
+
+        @Override
+        Set<String> fields() {
+            return Set.of(field);
+        }
+
+        @Override
+        double selectivity() {
+            return prefix ? 0.2 : 0.05;
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var index = indexes.text(field);
+            return index == null ? null : index.search(words, prefix);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return field + (prefix ? " contains prefix " : " contains ") + text;
+        }
+    }
+
+
+    private static final class Missing extends Filter {
+        private final String field;
+
+        Missing(String field) {
+            this.field = field;
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            return data.get(field) == null;
+        }
+
+        @Override
+        Set<String> fields() {
+            return Set.of(field);
+        }
+
+        @Override
+        double selectivity() {
+            return 0.1;
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var index = indexes.field(field);
+            return index == null ? null : index.missing();
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return field + " is missing";
+        }
+    }
+
+
+    private static final class Condition extends Filter {
+        private final Predicate<Map<String, ? super Object>> condition;
+
+        Condition(Predicate<Map<String, ? super Object>> condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        boolean test(@NonNull Map<String, ?> data) {
+            return condition.test((Map<String, ? super Object>) data);
+        }
+
+        @Override
+        Set<String> fields() {
+            return null;
+        }
+
+        @Override
+        double selectivity() {
+            return 0.5;
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            return null;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "condition";
+        }
+    }
+
+
+    private static final class And extends Filter {
+        private final List<Filter> filters;
+
+        And(List<Filter> filters) {
+            // Cheapest and most selective first, so that the evaluation stops as early as possible
+            this.filters = new ArrayList<>(filters);
+            this.filters.sort(Comparator.comparing((Filter filter) -> filter.fields() == null).thenComparingDouble(Filter::selectivity));
+        }
+
+        static Filter of(List<Filter> filters) {
+            return filters.isEmpty() ? null : filters.size() == 1 ? filters.get(0) : new And(filters);
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            for (Filter filter : filters) {
+                if (!filter.test(data))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        Set<String> fields() {
+            var fields = new HashSet<String>();
+            for (Filter filter : filters) {
+                var read = filter.fields();
+                if (read == null)
+                    return null;
+                fields.addAll(read);
+            }
+            return fields;
+        }
+
+        @Override
+        double selectivity() {
+            return filters.stream().mapToDouble(Filter::selectivity).reduce(1, (a, b) -> a * b);
+        }
+
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var plan = plan(indexes);
+            return plan.candidates != null && plan.partial == null && plan.full == null ? plan.candidates : null;
+        }
+
+        /**
+         * Intersects the documents of the filters answered from the indexes, starting with the smallest set, and leaves
+         * the other filters to be evaluated on these documents.
+         */
+        @NonNull
+        @Override
+        Plan plan(@NonNull Indexes indexes) {
+            var lookups = new ArrayList<Set<String>>();
+            var indexed = new ArrayList<Filter>();
+            var residual = new ArrayList<Filter>();
+            for (Filter filter : filters) {
+                var docs = filter.lookup(indexes);
+                if (docs == null) {
+                    residual.add(filter);
+                } else {
+                    lookups.add(docs);
+                    indexed.add(filter);
+                }
+            }
+            if (lookups.isEmpty())
+                return new Plan(null, this, null);
+
+            lookups.sort(Comparator.comparingInt(Set::size));
+            var candidates = lookups.get(0);
+            for (int i = 1; i < lookups.size() && !candidates.isEmpty(); i++)
+                candidates.retainAll(lookups.get(i));
+            var description = indexed.stream().map(Filter::toString).collect(Collectors.joining(" and "));
+            return new Plan(candidates, And.of(residual), description);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return filters.stream().map(filter -> filter instanceof Or ? "(" + filter + ")" : filter.toString()).collect(Collectors.joining(" and "));
+        }
+    }
+
+
+    private static final class Or extends Filter {
+        private final List<Filter> filters;
+
+        Or(List<Filter> filters) {
+            // Least selective first, as it is the most likely to match
+            this.filters = new ArrayList<>(filters);
+            this.filters.sort(Comparator.comparing((Filter filter) -> filter.fields() == null).thenComparingDouble(filter -> -filter.selectivity()));
+        }
+
+        @Override
+        boolean test(@NonNull Map<String, ?> data) {
+            for (Filter filter : filters) {
+                if (filter.test(data))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        Set<String> fields() {
+            var fields = new HashSet<String>();
+            for (Filter filter : filters) {
+                var read = filter.fields();
+                if (read == null)
+                    return null;
+                fields.addAll(read);
+            }
+            return fields;
+        }
+
+        @Override
+        double selectivity() {
+            return 1 - filters.stream().mapToDouble(filter -> 1 - filter.selectivity()).reduce(1, (a, b) -> a * b);
+        }
+
+        /**
+         * Unites the documents of the filters, if all of them can be answered from the indexes.
+         */
+        @Override
+        Set<String> lookup(@NonNull Indexes indexes) {
+            var docs = new LinkedHashSet<String>();
+            for (Filter filter : filters) {
+                var matched = filter.lookup(indexes);
+                if (matched == null)
+                    return null;
+                docs.addAll(matched);
+            }
+            return docs;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return filters.stream().map(filter -> filter instanceof And ? "(" + filter + ")" : filter.toString()).collect(Collectors.joining(" or "));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the field indexes and the text indexes of every collection of a database. Indexes of a collection are
+ * loaded lazily, the first time a document of that collection is written or queried, and are then kept in memory.
+ * An index which was modified by a process which stopped without closing the database is rebuilt from the documents
+ * of its collection when it is loaded, unless the database is read-only.
+ */
+class IndexManager {
+    private static final String INDEX_EXTENSION = ".index";
+    private static final String TEXT_EXTENSION = ".terms";
+    private final Map<File, Map<String, FieldIndex>> collections = new ConcurrentHashMap<>();
+    private final Map<File, Map<String, TextIndex>> texts = new ConcurrentHashMap<>();
+    private final Clorastore db;
+
+    IndexManager(@NonNull Clorastore db) {
+        this.db = db;
+    }
+
+    /**
+     * Returns the indexes of the collection, keyed by the indexed field.
+     */
+    @NonNull
+    Map<String, FieldIndex> of(@NonNull File collection) {
+        return collections.computeIfAbsent(collection.getAbsoluteFile(), this::load);
+    }
+
+    /**
+     * Returns the index on the field of the collection, or null if the field is not indexed.
+     */
+    FieldIndex get(@NonNull File collection, @NonNull String field) {
+        return of(collection).get(field);
+    }
+
+    /**
+     * Returns the text indexes of the collection, keyed by the indexed field.
+     */
+    @NonNull
+    Map<String, TextIndex> textsOf(@NonNull File collection) {
+        return texts.computeIfAbsent(collection.getAbsoluteFile(), this::loadTexts);
+    }
+
+    /**
+     * Returns the indexes of the collection, from which filters are answered.
+     */
+    @NonNull
+    Filter.Indexes lookup(@NonNull File collection) {
+        var fields = of(collection);
+        var texts = textsOf(collection);
+        return new Filter.Indexes() {
+            @Override
+            public FieldIndex field(@NonNull String field) {
+                return fields.get(field);
+            }
+
+            @Override
+            public TextIndex text(@NonNull String field) {
+                return texts.get(field);
+            }
+        };
+    }
+
+    /**
+     * Creates (or rebuilds) the index on the field of the collection.
+     *
+     * @param values Document name and the value of the field in it, for every document of the collection.
+     */
+    void create(@NonNull File collection, @NonNull String field, @NonNull Map<String, Object> values) throws IOException {
+        var dir = Collection.metadataDir(collection);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        var index = new FieldIndex(field, new File(dir, encode(field) + INDEX_EXTENSION));
+        index.rebuild(values);
+        of(collection).put(field, index);
+    }
+
+    /**
+     * Creates (or rebuilds) the text index on the field of the collection.
+     *
+     * @param values Document name and the value of the field in it, for every document of the collection.
+     */
+    void createText(@NonNull File collection, @NonNull String field, @NonNull Map<String, Object> values) throws IOException {
+        var dir = Collection.metadataDir(collection);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        var index = new TextIndex(field, new File(dir, encode(field) + TEXT_EXTENSION));
+        index.rebuild(values);
+        textsOf(collection).put(field, index);
+    }
+
+    /**
+     * Deletes the text index on the field of the collection.
+     *
+     * @return true if the field had a text index, false otherwise.
+     */
+    boolean dropText(@NonNull File collection, @NonNull String field) {
+        var index = textsOf(collection).remove(field);
+        if (index == null)
+            return false;
+        index.delete();
+        return true;
+    }
+
+    /**
+     * Deletes the index on the field of the collection.
+     *
+     * @return true if the field was indexed, false otherwise.
+     */
+    boolean drop(@NonNull File collection, @NonNull String field) {
+        var index = of(collection).remove(field);
+        if (index == null)
+            return false;
+        index.delete();
+        return true;
+    }
+
+    /**
+     * Updates all the indexes of the collection of the document with its new data.
+     */
+    void onWrite(@NonNull File document, @NonNull Map<String, ?> data) {
+        var indexes = of(document.getParentFile());
+        var texts = textsOf(document.getParentFile());
+        if (indexes.isEmpty() && texts.isEmpty())
+            return;
+
+        var name = Document.nameOf(document);
+        for (FieldIndex index : indexes.values())
+            index.update(name, data.get(index.getField()));
+        for (TextIndex index : texts.values())
+            index.update(name, data.get(index.getField()));
+    }
+
+    /**
+     * Removes the document from all the indexes of its collection.
+     */
+    void onDelete(@NonNull File document) {
+        var indexes = of(document.getParentFile());
+        var texts = textsOf(document.getParentFile());
+        if (indexes.isEmpty() && texts.isEmpty())
+            return;
+
+        var name = Document.nameOf(document);
+        for (FieldIndex index : indexes.values())
+            index.remove(name);
+        for (TextIndex index : texts.values())
+            index.remove(name);
+    }
+
+    /**
+     * Forgets the loaded indexes of the collection. Used when the collection is deleted.
+     */
+    void forget(@NonNull File collection) {
+        collections.remove(collection.getAbsoluteFile());
+        texts.remove(collection.getAbsoluteFile());
+    }
+
+    /**
+     * Saves every loaded index, recording that it matches the documents. Called once the documents are written.
+     */
+    void close() {
+        collections.values().forEach(indexes -> indexes.values().forEach(FieldIndex::close));
+        texts.values().forEach(indexes -> indexes.values().forEach(TextIndex::close));
+    }
+
+    /**
+     * Forgets all the loaded indexes. Used when the database directory is deleted or cleaned.
+     */
+    void clear() {
+        collections.clear();
+        texts.clear();
+    }
+
+    private Map<String, FieldIndex> load(File collection) {
+        var files = Collection.metadataDir(collection).listFiles((dir, name) -> name.endsWith(INDEX_EXTENSION));
+        if (files == null || files.length == 0)
+            return new ConcurrentHashMap<>();
+
+        var indexes = new ConcurrentHashMap<String, FieldIndex>();
+        for (File file : files) {
+            var name = file.getName();
+            var field = decode(name.substring(0, name.length() - INDEX_EXTENSION.length()));
+            var index = new FieldIndex(field, file);
+            try {
+                if (!index.load() && !db.readOnly)
+                    index.rebuild(values(collection, field));
+            } catch (IOException | RuntimeException e) {
+                throw new ClorastoreException("Index of field '" + field + "' in collection " + collection.getName() + " is corrupted. Recreate it using createIndex(). Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+            indexes.put(field, index);
+        }
+        return indexes;
+    }
+
+    private Map<String, TextIndex> loadTexts(File collection) {
+        var files = Collection.metadataDir(collection).listFiles((dir, name) -> name.endsWith(TEXT_EXTENSION));
+        if (files == null || files.length == 0)
+            return new ConcurrentHashMap<>();
+
+        var indexes = new ConcurrentHashMap<String, TextIndex>();
+        for (File file : files) {
+            var name = file.getName();
+            var field = decode(name.substring(0, name.length() - TEXT_EXTENSION.length()));
+            var index = new TextIndex(field, file);
+            try {
+                if (!index.load() && !db.readOnly)
+                    index.rebuild(values(collection, field));
+            } catch (IOException | RuntimeException e) {
+                throw new ClorastoreException("Text index of field '" + field + "' in collection " + collection.getName() + " is corrupted. Recreate it using createTextIndex(). Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+            indexes.put(field, index);
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the value of the field in every document of the collection. The documents are read without their locks, as
+     * a document written meanwhile updates the index once it is loaded.
+     */
+    private Map<String, Object> values(File collection, String field) throws IOException {
+        var values = new HashMap<String, Object>();
+        var fields = Set.of(field);
+        for (String name : db.catalog.of(collection).documents(null, Integer.MAX_VALUE))
+            values.put(name, db.storage.readFields(new File(collection, name + ".doc"), fields).get(field));
+        return values;
+    }
+
+    private static String encode(String field) {
+        return URLEncoder.encode(field, StandardCharsets.UTF_8).replace("*", "%2A");
+    }
+
+    private static String decode(String name) {
+        return URLDecoder.decode(name, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,12 @@
+package com.clorabase.clorastore;
+
+/**
+ * A listener added to a document, a collection or a query, which can be removed.
+ */
+public interface ListenerRegistration {
+
+    /**
+     * Stops delivering changes to the listener. Changes which are already being delivered may still be received.
+     */
+    void remove();
+}
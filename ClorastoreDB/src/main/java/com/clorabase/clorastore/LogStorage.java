@@ -0,0 +1,640 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A log-structured storage engine. Every change to a document is appended as a record to the log of its collection,
+ * so a change costs only its own size instead of the size of the document. Reads merge the changes from the log over
+ * the document file. Once the log grows larger than the threshold, it is rotated and the changes it contains are
+ * folded into the document files on a background thread.
+ * <p>
+ * The log of a collection is stored in its metadata directory. A log left behind by a crash is replayed when the
+ * collection is used again. The log is synced to the device as required by the {@link Durability} of the database:
+ * after every record, by the first of the writers waiting for their records (which syncs the records of all of
+ * them at once), or at the sync interval. The document files are replaced atomically when the changes are folded.
+ */
+class LogStorage implements Storage {
+    static final long DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+    static final String LOG_FILE = "documents.log";
+    static final String ROTATED_FILE = LOG_FILE + ".old";
+    private static final Gson gson = new Gson();
+    private final Map<File, CollectionLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "Clorastore-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long threshold;
+    private final Events events;
+    private volatile DocumentFormat format;
+    private volatile Durability durability;
+    private volatile long syncInterval;
+    private volatile ClorastoreException error;
+
+    LogStorage(long threshold, @NonNull DocumentFormat format, @NonNull Durability durability, long syncInterval, @NonNull Events events) {
+        this.threshold = threshold;
+        this.format = format;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.events = events;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> read(@NonNull File document) throws IOException {
+        return log(document).read(document);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> readFields(@NonNull File document, @NonNull Set<String> fields) throws IOException {
+        return log(document).readFields(document, fields);
+    }
+
+    @Override
+    public long write(@NonNull File document, @NonNull Map<String, Object> data) {
+        try {
+            create(document);
+        } catch (IOException e) {
+            throw new ClorastoreException("Unknown error occurred while creating document.", Reasons.ERROR_UNKNOWN);
+        }
+        var format = this.format;
+        var content = FileStorage.encode(data, format);
+        Document.checkSize(content.length);
+        var record = record(document, "set");
+        if (format == DocumentFormat.BINARY)
+            record.addProperty("b", Base64.getEncoder().encodeToString(content));
+        else
+            record.add("v", gson.toJsonTree(data));
+        log(document).append(record, overlay -> overlay.set(data, content.length));
+        return content.length;
+    }
+
+    @Override
+    public long update(@NonNull File document, @NonNull Map<String, Object> data, @NonNull String field) {
+        var format = this.format;
+        var value = data.get(field);
+        var entry = FileStorage.encode(Collections.singletonMap(field, value), format);
+        var record = record(document, "put");
+        record.addProperty("f", field);
+        if (format == DocumentFormat.BINARY)
+            record.addProperty("b", Base64.getEncoder().encodeToString(entry));
+        else
+            record.add("v", gson.toJsonTree(value));
+
+        // Only the changed field is encoded, the whole document is encoded when its size is unknown or near the limit
+        var log = log(document);
+        var estimate = log.estimateSize(document, field, entry.length, format);
+        var size = estimate < 0 || estimate > Document.DOCUMENT_MAX_SIZE ? encodedSize(data) : estimate;
+        log.append(record, overlay -> overlay.put(field, value, size));
+        return size;
+    }
+
+    @Override
+    public boolean exists(@NonNull File document) {
+        return document.exists();
+    }
+
+    @Override
+    public long size(@NonNull File document) {
+        return document.length();
+    }
+
+    @Override
+    public void list(@NonNull File collection, @NonNull BiConsumer<String, Long> documents) {
+        FileStorage.listFiles(collection, documents);
+    }
+
+    @Override
+    public void forget(@NonNull File collection) {
+        var log = logs.remove(collection.getAbsoluteFile());
+        if (log != null)
+            log.close(false);
+    }
+
+    @Override
+    public void setFormat(@NonNull DocumentFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void setDurability(@NonNull Durability durability, long syncInterval) {
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+
+    @Override
+    public boolean delete(@NonNull File document) {
+        return log(document).delete(document);
+    }
+
+    /**
+     * Does nothing, as the changes are in the log as soon as they are made.
+     */
+    @Override
+    public void sync(@NonNull File document) {
+    }
+
+    @Override
+    public void commit(@NonNull File document) {
+        if (durability == Durability.GROUP_COMMIT)
+            log(document).commit();
+    }
+
+    @Override
+    public void flush() {
+        var error = this.error;
+        this.error = null;
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Syncs the log of every collection of the documents once.
+     */
+    @Override
+    public void flush(@NonNull Set<File> documents) {
+        var collections = new HashSet<File>();
+        for (File document : documents) {
+            if (collections.add(document.getAbsoluteFile().getParentFile()))
+                log(document).commit();
+        }
+        flush();
+    }
+
+    /**
+     * Folds the changes of every log into the document files. The logs are opened again by the next change.
+     */
+    @Override
+    public void checkpoint() {
+        for (CollectionLog log : logs.values())
+            log.close(true);
+        flush();
+    }
+
+    @Override
+    public void close() {
+        for (CollectionLog log : logs.values())
+            log.close(true);
+        logs.clear();
+        flush();
+    }
+
+    @Override
+    public void discard() {
+        for (CollectionLog log : logs.values())
+            log.close(false);
+        logs.clear();
+    }
+
+    private CollectionLog log(File document) {
+        return logs.computeIfAbsent(document.getAbsoluteFile().getParentFile(), CollectionLog::new);
+    }
+
+    /**
+     * Creates the file of a new document, which is needed to list it until its data is folded into it.
+     */
+    @Override
+    public boolean create(@NonNull File document) throws IOException {
+        var created = document.createNewFile();
+        if (created && (durability == Durability.GROUP_COMMIT || durability == Durability.ALWAYS))
+            AtomicFile.syncDirectory(document.getParentFile());
+        return created;
+    }
+
+    /**
+     * Returns the size of the document once folded into its file, checking that it does not grow too large.
+     */
+    private long encodedSize(Map<String, Object> data) {
+        var size = FileStorage.encode(data, format).length;
+        Document.checkSize(size);
+        return size;
+    }
+
+    /**
+     * Decodes the data of a record written in {@link DocumentFormat#BINARY}. It is stored with {@link BinaryCodec}, so
+     * that the numbers keep their exact type, as JSON reads them back as doubles.
+     */
+    private static Map<String, Object> binaryData(JsonObject record) {
+        return BinaryCodec.decode(Base64.getDecoder().decode(record.get("b").getAsString()));
+    }
+
+    private static JsonObject record(File document, String operation) {
+        var record = new JsonObject();
+        record.addProperty("d", Document.nameOf(document));
+        record.addProperty("o", operation);
+        return record;
+    }
+
+    private void failed(String name, String message, IOException e) {
+        events.onWriteFailed(name, e);
+        if (error == null)
+            error = new ClorastoreException(message + " Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+    }
+
+
+    /**
+     * The log of a single collection, and the changes it contains indexed by document.
+     */
+    private final class CollectionLog {
+        private final File collection;
+        private final File log;
+        private final File rotated;
+        private final Object compactionLock = new Object();
+        private final Object syncLock = new Object();
+        private Map<String, Overlay> overlays = new HashMap<>();
+        private Map<String, Overlay> compacting = new HashMap<>();
+        private FileOutputStream out;
+        private FileChannel channel;
+        private long size;
+        private long appended;
+        private long synced;
+        private boolean syncScheduled;
+
+        CollectionLog(File collection) {
+            this.collection = collection;
+            this.log = new File(Collection.metadataDir(collection), LOG_FILE);
+            this.rotated = new File(log.getParentFile(), ROTATED_FILE);
+            replay(rotated, compacting);
+            replay(log, overlays);
+            size = log.length();
+
+            overlays.forEach((name, overlay) -> {
+                if (overlay.deleted)
+                    new File(collection, name + ".doc").delete();
+            });
+            if (!compacting.isEmpty())
+                compactor.execute(this::fold);
+        }
+
+        Map<String, Object> read(File document) throws IOException {
+            var name = Document.nameOf(document);
+            Overlay previous, current;
+            synchronized (this) {
+                previous = copy(compacting.get(name));
+                current = copy(overlays.get(name));
+            }
+            if (current != null && current.replace)
+                return current.apply(null);
+
+            var data = FileStorage.readFile(document, events);
+            if (previous != null)
+                data = previous.apply(data);
+            if (current != null)
+                data = current.apply(data);
+            return data;
+        }
+
+        Map<String, Object> readFields(File document, Set<String> fields) throws IOException {
+            var name = Document.nameOf(document);
+            Overlay previous, current;
+            synchronized (this) {
+                previous = copy(compacting.get(name));
+                current = copy(overlays.get(name));
+            }
+
+            Map<String, Object> data;
+            if (current != null && current.replace) {
+                data = current.apply(null);
+            } else {
+                data = FileStorage.readFile(document, fields, events);
+                if (previous != null)
+                    data = previous.apply(data);
+                if (current != null)
+                    data = current.apply(data);
+            }
+            data.keySet().retainAll(fields);
+            return data;
+        }
+
+        /**
+         * Appends the record to the log, and applies its change to the overlay of its document.
+         */
+        synchronized void append(JsonObject record, Consumer<Overlay> change) {
+            var line = (record + "\n").getBytes(StandardCharsets.UTF_8);
+            try {
+                if (out == null) {
+                    log.getParentFile().mkdirs();
+                    out = new FileOutputStream(log, true);
+                    channel = out.getChannel();
+                }
+                out.write(line);
+                appended++;
+                if (durability == Durability.ALWAYS) {
+                    var start = System.nanoTime();
+                    channel.force(false);
+                    events.since(Operation.SYNC, start);
+                } else if (durability == Durability.PERIODIC && !syncScheduled) {
+                    syncScheduled = true;
+                    compactor.schedule(this::syncPeriodically, syncInterval, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                throw new ClorastoreException("An IO error occurred while writing the log of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+
+            size += line.length;
+            events.onWrite(record.get("d").getAsString(), line.length, 0);
+            change.accept(overlays.computeIfAbsent(record.get("d").getAsString(), name -> new Overlay()));
+            if (size >= threshold && compacting.isEmpty()) {
+                rotate();
+                compactor.execute(this::fold);
+            }
+        }
+
+        /**
+         * Blocks until all the records appended so far are synced. The first waiting writer syncs the log, and the
+         * writers which appended their records before it started are released by the same sync.
+         */
+        void commit() {
+            long target;
+            synchronized (this) {
+                target = appended;
+            }
+            synchronized (syncLock) {
+                if (synced >= target)
+                    return;
+                FileChannel channel;
+                long upTo;
+                synchronized (this) {
+                    channel = this.channel;
+                    upTo = appended;
+                }
+                try {
+                    var start = System.nanoTime();
+                    if (channel != null)
+                        channel.force(false);
+                    events.since(Operation.SYNC, start);
+                } catch (ClosedChannelException e) {
+                    // The log was synced when it was closed
+                } catch (IOException e) {
+                    throw new ClorastoreException("An IO error occurred while syncing the log of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+                }
+                synced = upTo;
+            }
+        }
+
+        private void syncPeriodically() {
+            FileChannel channel;
+            synchronized (this) {
+                syncScheduled = false;
+                channel = this.channel;
+            }
+            try {
+                var start = System.nanoTime();
+                if (channel != null)
+                    channel.force(false);
+                events.since(Operation.SYNC, start);
+            } catch (ClosedChannelException e) {
+                // The log was synced when it was closed
+            } catch (IOException e) {
+                failed(collection.getName(), "An IO error occurred while syncing the log of collection " + collection.getName() + ".", e);
+            }
+        }
+
+        /**
+         * Returns the size of the document once the field is changed, from the last known size of the document and the
+         * size of the field. The old value of the field is not subtracted when it is only in the document file, so the
+         * size may be larger than the real one.
+         *
+         * @param entry The size of the field with its new value, encoded alone.
+         * @return The size, or -1 if the size of the document is unknown since the log was replayed.
+         */
+        synchronized long estimateSize(File document, String field, long entry, DocumentFormat format) {
+            var name = Document.nameOf(document);
+            var overlay = overlays.get(name);
+            if (overlay == null)
+                overlay = compacting.get(name);
+            if (overlay == null)
+                return document.length() + entry;
+            if (overlay.size < 0)
+                return -1;
+
+            var size = overlay.size + entry;
+            if (overlay.fields.containsKey(field))
+                size -= FileStorage.encode(Collections.singletonMap(field, overlay.fields.get(field)), format).length;
+            return size;
+        }
+
+        synchronized boolean delete(File document) {
+            append(record(document, "del"), Overlay::delete);
+            return document.delete();
+        }
+
+        /**
+         * Folds all the changes into the document files, then stops using the log file until the next change.
+         *
+         * @param compact Whether to fold the changes or to discard them.
+         */
+        void close(boolean compact) {
+            synchronized (compactionLock) {
+                if (compact) {
+                    fold();
+                    synchronized (this) {
+                        if (!overlays.isEmpty())
+                            rotate();
+                    }
+                    fold();
+                }
+                synchronized (this) {
+                    closeLog();
+                }
+            }
+        }
+
+        /**
+         * Starts a new log. The changes of the old log are kept aside until they are folded.
+         */
+        private void rotate() {
+            closeLog();
+            if (log.exists() && !log.renameTo(rotated)) {
+                failed(collection.getName(), "Unable to rotate the log of collection " + collection.getName() + ".", new IOException(log.getPath()));
+                return;
+            }
+            compacting = overlays;
+            overlays = new HashMap<>();
+            size = 0;
+        }
+
+        /**
+         * Writes the changes of the rotated log into the document files, and deletes the rotated log.
+         */
+        private void fold() {
+            synchronized (compactionLock) {
+                Map<String, Overlay> batch;
+                synchronized (this) {
+                    batch = new HashMap<>(compacting);
+                }
+                if (batch.isEmpty())
+                    return;
+
+                for (var entry : batch.entrySet()) {
+                    var file = new File(collection, entry.getKey() + ".doc");
+                    synchronized (this) {
+                        var current = overlays.get(entry.getKey());
+                        if (entry.getValue().deleted || (current != null && current.deleted) || !file.exists())
+                            continue;
+                        try {
+                            var base = FileStorage.readFile(file, events);
+                            var content = FileStorage.encode(entry.getValue().apply(base), format);
+                            AtomicFile.write(file, content, durability != Durability.NONE);
+                            events.onWrite(entry.getKey(), content.length, 0);
+                        } catch (IOException e) {
+                            failed(entry.getKey(), "An IO error occurred while compacting document " + file.getName() + ".", e);
+                            return;
+                        }
+                    }
+                }
+
+                // The folded documents must be on the device before the rotated log is deleted
+                if (durability != Durability.NONE)
+                    AtomicFile.syncDirectory(collection);
+                synchronized (this) {
+                    compacting = new HashMap<>();
+                    rotated.delete();
+                }
+            }
+        }
+
+        /**
+         * Closes the log file, syncing it first unless the durability is {@link Durability#NONE}.
+         */
+        private void closeLog() {
+            if (out != null) {
+                try {
+                    out.flush();
+                    if (durability != Durability.NONE)
+                        channel.force(false);
+                    out.close();
+                } catch (IOException e) {
+                    failed(collection.getName(), "An IO error occurred while closing the log of collection " + collection.getName() + ".", e);
+                }
+                out = null;
+                channel = null;
+            }
+        }
+
+        /**
+         * Reads the changes of the log into the overlays. A partially written last record, left by a crash, is ignored,
+         * everything before it is valid. A record which can not be read before the last one means that the log is corrupted.
+         */
+        private void replay(File file, Map<String, Overlay> overlays) {
+            if (!file.exists())
+                return;
+
+            try (var reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                String line;
+                var number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    try {
+                        replay(line, overlays);
+                    } catch (RuntimeException e) {
+                        if (reader.readLine() == null)
+                            return;
+                        throw new ClorastoreException("The log of collection " + collection.getName() + " is corrupted at record " + number + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+                    }
+                }
+            } catch (IOException e) {
+                throw new ClorastoreException("Unable to read the log of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+
+        private void replay(String line, Map<String, Overlay> overlays) {
+            var record = JsonParser.parseString(line).getAsJsonObject();
+            var overlay = overlays.computeIfAbsent(record.get("d").getAsString(), name -> new Overlay());
+            switch (record.get("o").getAsString()) {
+                case "set":
+                    overlay.set(record.has("b") ? binaryData(record) : gson.fromJson(record.get("v"), FileStorage.TYPE), -1);
+                    break;
+                case "put":
+                    var field = record.get("f").getAsString();
+                    overlay.put(field, record.has("b") ? binaryData(record).get(field) : gson.fromJson(record.get("v"), Object.class), -1);
+                    break;
+                case "del":
+                    overlay.delete();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation " + record.get("o").getAsString());
+            }
+        }
+
+        private Overlay copy(Overlay overlay) {
+            if (overlay == null)
+                return null;
+            var copy = new Overlay();
+            copy.replace = overlay.replace;
+            copy.deleted = overlay.deleted;
+            copy.fields.putAll(overlay.fields);
+            return copy;
+        }
+    }
+
+
+    /**
+     * The changes made to a document since its file was written. Either some fields which are changed, or
+     * the whole data when the document is replaced or deleted.
+     */
+    private static final class Overlay {
+        private final Map<String, Object> fields = new HashMap<>();
+        private boolean replace;
+        private boolean deleted;
+        /**
+         * The size of the document with the changes, or -1 if it is unknown.
+         */
+        private long size = -1;
+
+        void set(Map<String, Object> data, long size) {
+            fields.clear();
+            fields.putAll(data);
+            replace = true;
+            deleted = false;
+            this.size = size;
+        }
+
+        void put(String field, Object value, long size) {
+            fields.put(field, value);
+            deleted = false;
+            this.size = size;
+        }
+
+        void delete() {
+            fields.clear();
+            replace = true;
+            deleted = true;
+            size = 0;
+        }
+
+        Map<String, Object> apply(Map<String, Object> base) {
+            var data = new HashMap<String, Object>();
+            if (!replace && base != null)
+                data.putAll(base);
+            data.putAll(fields);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The manifest of a single collection: the names of its documents with their size and version, and the names of its
+ * sub-collections. Listing, counting and existence checks are answered from the manifest without listing the directory.
+ * <p>
+ * The manifest is kept in memory and saved as a snapshot file when the database is closed, with the modification time
+ * of the directory. The documents are written in the background, so a marker file records that the manifest was changed
+ * until it is saved again. A manifest is rebuilt from the directory when it is loaded if it is still marked, as the process
+ * which changed it stopped without closing the database, or if the directory was modified since the manifest was saved,
+ * by another program.
+ */
+class Manifest {
+    static final String SNAPSHOT_FILE = "documents.manifest";
+    private final Clorastore db;
+    private final File collection;
+    private final File snapshot;
+    private final File marker;
+    private final TreeMap<String, Entry> documents = new TreeMap<>();
+    private final TreeSet<String> collections = new TreeSet<>();
+    private boolean dirty;
+
+    Manifest(@NonNull Clorastore db, @NonNull File collection) {
+        this.db = db;
+        this.collection = collection;
+        this.snapshot = new File(Collection.metadataDir(collection), SNAPSHOT_FILE);
+        this.marker = new File(snapshot.getPath() + FieldIndex.MARKER_SUFFIX);
+    }
+
+    /**
+     * Loads the manifest from the snapshot, or rebuilds it from the directory if it is missing or stale.
+     */
+    synchronized void load() throws IOException {
+        documents.clear();
+        collections.clear();
+        dirty = false;
+        if (!collection.isDirectory())
+            return;
+
+        var loaded = false;
+        var modified = -1L;
+        if (snapshot.exists() && !marker.exists()) {
+            try (var reader = new JsonReader(new FileReader(snapshot, StandardCharsets.UTF_8))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "m":
+                            modified = reader.nextLong();
+                            break;
+                        case "c":
+                            reader.beginArray();
+                            while (reader.hasNext())
+                                collections.add(reader.nextString());
+                            reader.endArray();
+                            break;
+                        case "d":
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                reader.beginArray();
+                                documents.put(reader.nextString(), new Entry(reader.nextLong(), reader.nextLong()));
+                                reader.endArray();
+                            }
+                            reader.endArray();
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                loaded = true;
+            } catch (IOException | RuntimeException e) {
+                // A corrupted snapshot is rebuilt from the directory
+                documents.clear();
+                collections.clear();
+            }
+        }
+
+        if (!loaded || modified != collection.lastModified())
+            rebuild();
+    }
+
+    /**
+     * Rebuilds the manifest from the documents listed by the storage and the sub-directories of the collection.
+     * Versions of the documents which are still present are kept.
+     */
+    synchronized void rebuild() throws IOException {
+        var previous = new TreeMap<>(documents);
+        documents.clear();
+        collections.clear();
+        db.storage.list(collection, (name, size) -> {
+            var entry = previous.get(name);
+            documents.put(name, new Entry(size, entry == null ? 0 : entry.version));
+        });
+        var dirs = collection.listFiles(file -> !file.getName().startsWith(".") && file.isDirectory());
+        if (dirs != null) {
+            for (File dir : dirs)
+                collections.add(dir.getName());
+        }
+        save();
+        if (marker.delete())
+            dirty = false;
+    }
+
+    synchronized boolean contains(@NonNull String document) {
+        return documents.containsKey(document);
+    }
+
+    synchronized int count() {
+        return documents.size();
+    }
+
+    /**
+     * Returns the names of the documents, in the order of their name.
+     *
+     * @param startAfter The name after which the names start, or null to start from the first one.
+     * @param limit      The maximum number of names.
+     */
+    @NonNull
+    synchronized List<String> documents(String startAfter, int limit) {
+        var names = startAfter == null ? documents.navigableKeySet() : documents.tailMap(startAfter, false).navigableKeySet();
+        var page = new ArrayList<String>(Math.min(limit, names.size()));
+        for (String name : names) {
+            if (page.size() >= limit)
+                break;
+            page.add(name);
+        }
+        return page;
+    }
+
+    @NonNull
+    synchronized List<String> collections() {
+        return new ArrayList<>(collections);
+    }
+
+    /**
+     * Returns the size of the document in bytes, as it was last written, or -1 if it does not exist.
+     */
+    synchronized long size(@NonNull String document) {
+        var entry = documents.get(document);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Returns the version of the document, 0 if it does not exist or was never written.
+     */
+    synchronized long version(@NonNull String document) {
+        var entry = documents.get(document);
+        return entry == null ? 0 : entry.version;
+    }
+
+    /**
+     * Adds the document, or updates its size and version.
+     */
+    synchronized void put(@NonNull String document, long size, long version) {
+        var entry = documents.get(document);
+        if (entry != null && entry.size == size && entry.version == version)
+            return;
+        markDirty();
+        documents.put(document, new Entry(size, version));
+    }
+
+    synchronized void remove(@NonNull String document) {
+        if (documents.containsKey(document)) {
+            markDirty();
+            documents.remove(document);
+        }
+    }
+
+    synchronized void addCollection(@NonNull String name) {
+        if (!collections.contains(name)) {
+            markDirty();
+            collections.add(name);
+        }
+    }
+
+    synchronized void removeCollection(@NonNull String name) {
+        if (collections.contains(name)) {
+            markDirty();
+            collections.remove(name);
+        }
+    }
+
+    /**
+     * Writes the snapshot, keeping the marker. Used by a {@link Snapshot}, while the writes are blocked and the documents
+     * are written, so that its copy of the manifest matches its copy of the directory.
+     */
+    synchronized void flush() {
+        if (!dirty || !collection.isDirectory())
+            return;
+        try {
+            save();
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while writing the manifest of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    /**
+     * Writes the snapshot with the current modification time of the directory, and removes the marker. Called when the
+     * database is closed, once all its documents are written.
+     */
+    synchronized void close() {
+        if (!dirty || !collection.isDirectory())
+            return;
+        try {
+            save();
+            if (marker.delete())
+                dirty = false;
+        } catch (IOException e) {
+            // The manifest is rebuilt the next time it is loaded
+        }
+    }
+
+    /**
+     * Forgets the manifest without writing the snapshot. Used when the collection is deleted.
+     */
+    synchronized void discard() {
+        documents.clear();
+        collections.clear();
+        dirty = false;
+    }
+
+    /**
+     * Records that the manifest may not match the directory, whose documents are written in the background, until it
+     * is saved by {@link #close()}. The manifest is rebuilt from the directory if the process stops before.
+     */
+    private void markDirty() {
+        if (dirty)
+            return;
+        try {
+            var dir = marker.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create " + dir);
+            AtomicFile.write(marker, new byte[0], true);
+            AtomicFile.syncDirectory(dir);
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while writing the manifest of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+        dirty = true;
+    }
+
+    private void save() throws IOException {
+        var dir = snapshot.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        // Read after creating the metadata directory, which changes the modification time too
+        var modified = collection.lastModified();
+        var temp = File.createTempFile(SNAPSHOT_FILE, ".tmp", dir);
+        try (var writer = new JsonWriter(new BufferedWriter(new FileWriter(temp, StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("m").value(modified);
+            writer.name("c").beginArray();
+            for (String name : collections)
+                writer.value(name);
+            writer.endArray();
+            writer.name("d").beginArray();
+            for (var entry : documents.entrySet())
+                writer.beginArray().value(entry.getKey()).value(entry.getValue().size).value(entry.getValue().version).endArray();
+            writer.endArray();
+            writer.endObject();
+        }
+        if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot))) {
+            temp.delete();
+            throw new IOException("Unable to replace " + snapshot.getName());
+        }
+    }
+
+
+    private static final class Entry {
+        final long size;
+        final long version;
+
+        Entry(long size, long version) {
+            this.size = size;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The default {@link ClorastoreListener} of a database, which counts its operations and records their latency.
+ * Recording costs a few atomic additions and does not allocate, so it is always enabled. Use {@link #toMap()} to
+ * export the metrics to a monitoring system.
+ *
+ * @see Clorastore#getMetrics()
+ */
+public final class Metrics implements ClorastoreListener {
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder filesRead = new LongAdder();
+    private final LongAdder filesWritten = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder returned = new LongAdder();
+    private volatile int queued;
+
+    public Metrics() {
+        for (Operation operation : Operation.values())
+            latencies.put(operation, new Histogram());
+    }
+
+    @Override
+    public void onOperation(@NonNull Operation operation, long nanos) {
+        latencies.get(operation).record(nanos);
+    }
+
+    @Override
+    public void onRead(@NonNull String document, long bytes) {
+        filesRead.increment();
+        bytesRead.add(bytes);
+    }
+
+    @Override
+    public void onWrite(@NonNull String document, long bytes, int queued) {
+        filesWritten.increment();
+        bytesWritten.add(bytes);
+        this.queued = queued;
+    }
+
+    @Override
+    public void onWriteFailed(@NonNull String document, @NonNull Exception error) {
+        writeFailures.increment();
+    }
+
+    @Override
+    public void onQuery(@NonNull String collection, long scanned, long returned, long nanos) {
+        this.scanned.add(scanned);
+        this.returned.add(returned);
+    }
+
+    /**
+     * Returns the number of times the operation was performed.
+     */
+    public long getCount(@NonNull Operation operation) {
+        return latencies.get(operation).getCount();
+    }
+
+    /**
+     * Returns the latency of the operation.
+     */
+    public @NonNull Histogram getLatency(@NonNull Operation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Returns the number of bytes read from the document files.
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /**
+     * Returns the number of bytes written to the disk.
+     */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Returns the number of document files read from the disk.
+     */
+    public long getFilesRead() {
+        return filesRead.sum();
+    }
+
+    /**
+     * Returns the number of writes to the disk.
+     */
+    public long getFilesWritten() {
+        return filesWritten.sum();
+    }
+
+    /**
+     * Returns the number of background writes which failed.
+     */
+    public long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    /**
+     * Returns the number of documents read by all the queries.
+     */
+    public long getDocumentsScanned() {
+        return scanned.sum();
+    }
+
+    /**
+     * Returns the number of documents returned by all the queries. Compared to {@link #getDocumentsScanned()}, this tells
+     * how selective the queries are, and whether an index would help.
+     */
+    public long getDocumentsReturned() {
+        return returned.sum();
+    }
+
+    /**
+     * Returns the number of documents waiting to be written, when the last one was written.
+     */
+    public int getWriteQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * Resets all the metrics to zero.
+     */
+    public void reset() {
+        latencies.values().forEach(Histogram::reset);
+        bytesRead.reset();
+        bytesWritten.reset();
+        filesRead.reset();
+        filesWritten.reset();
+        writeFailures.reset();
+        scanned.reset();
+        returned.reset();
+        queued = 0;
+    }
+
+    /**
+     * Returns all the metrics by name, such as <code>bytes.read</code> or <code>latency.query.p99</code>. Latencies are
+     * in nanoseconds.
+     */
+    public @NonNull Map<String, Number> toMap() {
+        var map = new LinkedHashMap<String, Number>();
+        map.put("bytes.read", getBytesRead());
+        map.put("bytes.written", getBytesWritten());
+        map.put("files.read", getFilesRead());
+        map.put("files.written", getFilesWritten());
+        map.put("writes.failed", getWriteFailures());
+        map.put("writes.queued", getWriteQueueDepth());
+        map.put("query.scanned", getDocumentsScanned());
+        map.put("query.returned", getDocumentsReturned());
+        latencies.forEach((operation, histogram) -> {
+            var name = "latency." + operation.name().toLowerCase(Locale.ROOT);
+            map.put(name + ".count", histogram.getCount());
+            map.put(name + ".mean", histogram.getMean());
+            map.put(name + ".p50", histogram.getPercentile(50));
+            map.put(name + ".p90", histogram.getPercentile(90));
+            map.put(name + ".p99", histogram.getPercentile(99));
+            map.put(name + ".max", histogram.getMax());
+        });
+        return map;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+
+    /**
+     * A latency histogram with a bucket per power of two nanoseconds. Percentiles are accurate to a factor of two,
+     * which is enough to tell a regression apart, for a fixed and small memory.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+
+        /**
+         * Returns the number of recorded operations.
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the mean latency, in nanoseconds.
+         */
+        public long getMean() {
+            var count = getCount();
+            return count == 0 ? 0 : total.sum() / count;
+        }
+
+        /**
+         * Returns the highest latency, in nanoseconds.
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns the latency under which the provided percentage of the operations completed, in nanoseconds.
+         *
+         * @param percentile The percentage, between 0 and 100.
+         */
+        public long getPercentile(double percentile) {
+            var count = getCount();
+            if (count == 0)
+                return 0;
+
+            var rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (2L << i) - 1, getMax());
+            }
+            return getMax();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.clorabase.clorastore;
+
+/**
+ * The operations of a database which are measured by a {@link ClorastoreListener}.
+ */
+public enum Operation {
+    /**
+     * Opening a document, from the cache or from the disk.
+     */
+    READ,
+    /**
+     * Replacing all the data of a document.
+     */
+    WRITE,
+    /**
+     * Writing a single field of a document.
+     */
+    UPDATE,
+    /**
+     * Deleting a document.
+     */
+    DELETE,
+    /**
+     * Decoding a document file read from the disk.
+     */
+    PARSE,
+    /**
+     * Running a query, until all its results are returned.
+     */
+    QUERY,
+    /**
+     * Committing a {@link WriteBatch}, until all its documents are written.
+     */
+    BATCH,
+    /**
+     * Writing a document file in the background, from the time it was modified until it is on the disk.
+     */
+    DISK_WRITE,
+    /**
+     * Syncing written files to the storage device, as required by the {@link Durability} of the database.
+     */
+    SYNC,
+    /**
+     * Deleting the expired documents of a collection, by the reaper or before the collection is read.
+     */
+    EXPIRE,
+    /**
+     * Taking a {@link Snapshot} of the database, while its writes wait.
+     */
+    SNAPSHOT,
+    /**
+     * Backing up the database with {@link Clorastore#backup(java.io.File)}, including its snapshot.
+     */
+    BACKUP
+}
@@ -0,0 +1,983 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * A storage engine which packs the documents of a collection into a few large segment files, instead of a file per
+ * document. Every write appends the whole encoded document as a record to the active segment of its collection, and
+ * an offset index maps every document to its latest record. Reading a document is then a lookup in the index and a
+ * read from the segment, which is mapped in the memory: no file is opened, and scanning a collection reads the pages of
+ * a few files instead of opening and closing a file per document.
+ * <p>
+ * The segments and the index of a collection are stored in its metadata directory. Every record carries a checksum and
+ * a sequence number: the index is saved when the database is closed, and the records appended after it was saved are
+ * found again by scanning the end of the segments, up to the first record which was not completely written. Once the
+ * space taken by the overwritten records exceeds the one of the live records, the sealed segments are compacted on a
+ * background thread, while the collection is still read and written.
+ * <p>
+ * Document files written by the other engines are still read, until the document is written again. They are replaced
+ * by the packed records, and are written back as files when the database switches to another engine.
+ */
+class PackedStorage implements Storage {
+    static final String SEGMENT_FILE = "documents.segment.";
+    private static final String INDEX_FILE = "documents.segments";
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 4 * 1024 * 1024;
+    private static final int INDEX_VERSION = 1;
+    private static final int HEADER = 19;
+    private static final byte PUT = 0;
+    private static final byte DELETE = 1;
+    private final Map<File, Pack> packs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "Clorastore-packer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final File root;
+    private final Events events;
+    private volatile DocumentFormat format;
+    private volatile Durability durability;
+    private volatile long syncInterval;
+    private volatile ClorastoreException error;
+
+    PackedStorage(@NonNull File root, @NonNull DocumentFormat format, @NonNull Durability durability, long syncInterval, @NonNull Events events) {
+        this.root = root;
+        this.format = format;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        this.events = events;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> read(@NonNull File document) throws IOException {
+        var content = pack(document).read(Document.nameOf(document));
+        if (content == null)
+            return document.isFile() ? FileStorage.readFile(document, events) : new HashMap<>();
+
+        events.onRead(Document.nameOf(document), content.remaining());
+        var start = System.nanoTime();
+        var bytes = new byte[content.remaining()];
+        content.get(bytes);
+        var data = FileStorage.decode(bytes);
+        events.since(Operation.PARSE, start);
+        return data;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> readFields(@NonNull File document, @NonNull Set<String> fields) throws IOException {
+        var content = pack(document).read(Document.nameOf(document));
+        if (content == null)
+            return document.isFile() ? FileStorage.readFile(document, fields, events) : new HashMap<>();
+
+        var start = System.nanoTime();
+        var in = new BufferInputStream(content);
+        var data = FileStorage.decode(in, fields);
+        events.onRead(Document.nameOf(document), in.read);
+        events.since(Operation.PARSE, start);
+        return data;
+    }
+
+    @Override
+    public long write(@NonNull File document, @NonNull Map<String, Object> data) {
+        var content = FileStorage.encode(data, format);
+        Document.checkSize(content.length);
+        pack(document).append(Document.nameOf(document), content);
+        return content.length;
+    }
+
+    @Override
+    public long update(@NonNull File document, @NonNull Map<String, Object> data, @NonNull String field) {
+        return write(document, data);
+    }
+
+    @Override
+    public boolean exists(@NonNull File document) {
+        return pack(document).contains(Document.nameOf(document)) || document.isFile();
+    }
+
+    @Override
+    public long size(@NonNull File document) {
+        var size = pack(document).size(Document.nameOf(document));
+        return size < 0 ? document.length() : size;
+    }
+
+    /**
+     * Creates the document as an empty record, so that it is listed. No file is created.
+     */
+    @Override
+    public boolean create(@NonNull File document) {
+        return !document.isFile() && pack(document).create(Document.nameOf(document));
+    }
+
+    @Override
+    public void list(@NonNull File collection, @NonNull BiConsumer<String, Long> documents) {
+        var packed = packOf(collection).documents();
+        packed.forEach(documents);
+        FileStorage.listFiles(collection, (name, size) -> {
+            if (!packed.containsKey(name))
+                documents.accept(name, size);
+        });
+    }
+
+    @Override
+    public void setFormat(@NonNull DocumentFormat format) {
+        this.format = format;
+    }
+
+    @Override
+    public void setDurability(@NonNull Durability durability, long syncInterval) {
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Appends a deletion record, and deletes the file of the document if it was written by another engine.
+     */
+    @Override
+    public boolean delete(@NonNull File document) {
+        var packed = pack(document).remove(Document.nameOf(document));
+        var file = document.delete();
+        return packed || file;
+    }
+
+    /**
+     * Does nothing, as the document is in its segment as soon as it is written.
+     */
+    @Override
+    public void sync(@NonNull File document) {
+    }
+
+    @Override
+    public void commit(@NonNull File document) {
+        if (durability == Durability.GROUP_COMMIT)
+            pack(document).commit();
+    }
+
+    @Override
+    public void forget(@NonNull File collection) {
+        var pack = packs.remove(collection.getAbsoluteFile());
+        if (pack != null)
+            pack.close(false);
+    }
+
+    @Override
+    public void flush() {
+        for (Pack pack : packs.values())
+            pack.force();
+        var error = this.error;
+        this.error = null;
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Syncs the active segment of every collection of the documents once.
+     */
+    @Override
+    public void flush(@NonNull Set<File> documents) {
+        var collections = new HashSet<File>();
+        for (File document : documents) {
+            if (collections.add(document.getAbsoluteFile().getParentFile()))
+                pack(document).commit();
+        }
+        var error = this.error;
+        this.error = null;
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Saves the index of every collection, so that a copy of the segments is opened without scanning them.
+     */
+    @Override
+    public void checkpoint() {
+        for (Pack pack : packs.values())
+            pack.save();
+    }
+
+    /**
+     * Copies the segments of the collection while they are not modified, neither by a write nor by the end of a compaction.
+     * The segments from the active one on are appended to once the copy returns, so they must be copied and not linked.
+     *
+     * @param copy Receives the id of the active segment, or -1 if the collection is not opened, the last segment is then the active one.
+     */
+    void copySegments(@NonNull File collection, @NonNull SegmentCopy copy) throws IOException {
+        var pack = packs.get(collection.getAbsoluteFile());
+        if (pack == null) {
+            copy.run(-1);
+            return;
+        }
+        synchronized (pack) {
+            copy.run(pack.active == null ? -1 : pack.active.id);
+        }
+    }
+
+    /**
+     * Saves the index of every collection, so that the segments are not scanned when the database is opened again.
+     * The documents stay packed.
+     */
+    @Override
+    public void close() {
+        for (Pack pack : packs.values())
+            pack.close(true);
+        packs.clear();
+        flush();
+    }
+
+    @Override
+    public void discard() {
+        for (Pack pack : packs.values())
+            pack.close(false);
+        packs.clear();
+    }
+
+    /**
+     * Writes every packed document of the database back to its own file, and deletes the segments. Used when the
+     * database switches to another engine.
+     *
+     * @return The number of documents written.
+     */
+    int unpack() throws IOException {
+        close();
+        var unpacked = 0;
+        for (File collection : collections()) {
+            var pack = new Pack(collection);
+            for (var entry : pack.documents().keySet()) {
+                var content = pack.read(entry);
+                var bytes = new byte[content.remaining()];
+                content.get(bytes);
+                AtomicFile.write(new File(collection, entry + ".doc"), bytes, durability != Durability.NONE);
+                unpacked++;
+            }
+            if (durability != Durability.NONE)
+                AtomicFile.syncDirectory(collection);
+            pack.close(false);
+            pack.delete();
+        }
+        return unpacked;
+    }
+
+    /**
+     * Writes again, in the provided format, every packed document which is in the other format.
+     *
+     * @return The number of documents converted.
+     */
+    int migrate(@NonNull DocumentFormat format) throws IOException {
+        setFormat(format);
+        var migrated = 0;
+        for (File collection : collections()) {
+            var pack = packOf(collection);
+            for (var name : pack.documents().keySet()) {
+                var content = pack.read(name);
+                if (content == null)
+                    continue;
+                var bytes = new byte[content.remaining()];
+                content.get(bytes);
+                if (bytes.length == 0 || BinaryCodec.isBinary(bytes) == (format == DocumentFormat.BINARY))
+                    continue;
+                pack.append(name, FileStorage.encode(FileStorage.decode(bytes), format));
+                migrated++;
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Returns the collections of the database which have segments.
+     */
+    private List<File> collections() throws IOException {
+        try (var paths = Files.walk(root.toPath())) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(SEGMENT_FILE))
+                    .map(path -> path.getParent().getParent().toFile())
+                    .distinct()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Pack pack(File document) {
+        return packOf(document.getAbsoluteFile().getParentFile());
+    }
+
+    private Pack packOf(File collection) {
+        return packs.computeIfAbsent(collection.getAbsoluteFile(), Pack::new);
+    }
+
+    private void failed(String name, String message, IOException e) {
+        events.onWriteFailed(name, e);
+        if (error == null)
+            error = new ClorastoreException(message + " Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+    }
+
+
+    /**
+     * The segments and the index of a single collection.
+     */
+    private final class Pack {
+        private final File collection;
+        private final File dir;
+        private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+        private final Map<String, Entry> index = new HashMap<>();
+        private final Object syncLock = new Object();
+        private Segment active;
+        private long sequence;
+        private long live;
+        private long total;
+        private long appended;
+        private long synced;
+        private boolean syncScheduled;
+        private boolean compacting;
+
+        Pack(File collection) {
+            this.collection = collection;
+            this.dir = Collection.metadataDir(collection);
+            try {
+                load();
+            } catch (IOException e) {
+                throw new ClorastoreException("Unable to open the segments of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+
+        synchronized boolean contains(String name) {
+            return index.containsKey(name);
+        }
+
+        /**
+         * Returns the size of the content of the document, or -1 if it is not packed.
+         */
+        synchronized long size(String name) {
+            var entry = index.get(name);
+            return entry == null ? -1 : entry.contentLength;
+        }
+
+        /**
+         * Returns the names of the packed documents with their size.
+         */
+        synchronized Map<String, Long> documents() {
+            var documents = new HashMap<String, Long>(index.size());
+            index.forEach((name, entry) -> documents.put(name, (long) entry.contentLength));
+            return documents;
+        }
+
+        /**
+         * Returns the content of the document, as a view of its mapped segment, or null if it is not packed.
+         * The view stays valid even if the segment is compacted meanwhile.
+         */
+        ByteBuffer read(String name) throws IOException {
+            synchronized (this) {
+                var entry = index.get(name);
+                if (entry == null)
+                    return null;
+                return entry.segment.view(entry.contentOffset(), entry.contentLength);
+            }
+        }
+
+        synchronized void append(String name, byte[] content) {
+            var entry = write(name, PUT, content);
+            var previous = index.put(name, entry);
+            live += entry.size() - (previous == null ? 0 : previous.size());
+            events.onWrite(name, content.length, 0);
+            written();
+        }
+
+        /**
+         * Appends an empty record for the document, unless it is already packed.
+         */
+        synchronized boolean create(String name) {
+            if (index.containsKey(name))
+                return false;
+            append(name, new byte[0]);
+            return true;
+        }
+
+        synchronized boolean remove(String name) {
+            var previous = index.remove(name);
+            if (previous == null)
+                return false;
+            write(name, DELETE, new byte[0]);
+            live -= previous.size();
+            written();
+            return true;
+        }
+
+        /**
+         * Blocks until all the records appended so far are synced. The first waiting writer syncs the segment, and the
+         * writers which appended their records before it started are released by the same sync.
+         */
+        void commit() {
+            long target;
+            synchronized (this) {
+                target = appended;
+            }
+            synchronized (syncLock) {
+                if (synced >= target)
+                    return;
+                Segment segment;
+                long upTo;
+                synchronized (this) {
+                    segment = active;
+                    upTo = appended;
+                }
+                try {
+                    var start = System.nanoTime();
+                    if (segment != null)
+                        segment.channel.force(false);
+                    events.since(Operation.SYNC, start);
+                } catch (ClosedChannelException e) {
+                    // The segment was synced when it was sealed or closed
+                } catch (IOException e) {
+                    throw new ClorastoreException("An IO error occurred while syncing the segments of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+                }
+                synced = upTo;
+            }
+        }
+
+        /**
+         * Syncs the active segment to the device, whatever the durability is.
+         */
+        void force() {
+            Segment segment;
+            synchronized (this) {
+                segment = active;
+            }
+            try {
+                if (segment != null)
+                    segment.channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Synced when it was closed
+            } catch (IOException e) {
+                failed(collection.getName(), "An IO error occurred while syncing the segments of collection " + collection.getName() + ".", e);
+            }
+        }
+
+        /**
+         * Saves the index, the segments stay open.
+         */
+        synchronized void save() {
+            try {
+                if (active != null)
+                    saveIndex();
+            } catch (IOException e) {
+                failed(collection.getName(), "An IO error occurred while saving the index of collection " + collection.getName() + ".", e);
+            }
+        }
+
+        /**
+         * Closes the segments.
+         *
+         * @param save Whether to sync the segments and save the index first.
+         */
+        synchronized void close(boolean save) {
+            try {
+                if (save && active != null) {
+                    if (durability != Durability.NONE)
+                        active.channel.force(false);
+                    saveIndex();
+                }
+            } catch (IOException e) {
+                failed(collection.getName(), "An IO error occurred while saving the index of collection " + collection.getName() + ".", e);
+            }
+            for (Segment segment : segments.values())
+                segment.close();
+            segments.clear();
+            index.clear();
+            active = null;
+        }
+
+        /**
+         * Deletes the segments and the index. The pack must be closed.
+         */
+        void delete() {
+            var files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_FILE));
+            if (files != null) {
+                for (File file : files)
+                    file.delete();
+            }
+            new File(dir, INDEX_FILE).delete();
+        }
+
+        /**
+         * Appends a record to the active segment, starting a new segment when the active one is full.
+         */
+        private Entry write(String name, byte type, byte[] content) {
+            try {
+                if (active == null || active.size >= SEGMENT_SIZE)
+                    roll();
+                var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                var record = ByteBuffer.allocate(HEADER + nameBytes.length + content.length);
+                var seq = ++sequence;
+                record.putInt(nameBytes.length + content.length).putInt(0).putLong(seq).put(type).putShort((short) nameBytes.length).put(nameBytes).put(content);
+                var crc = new CRC32();
+                crc.update(record.array(), 8, record.capacity() - 8);
+                record.putInt(4, (int) crc.getValue());
+                record.flip();
+
+                var offset = active.size;
+                while (record.hasRemaining())
+                    active.channel.write(record, offset + record.position());
+                active.size += record.capacity();
+                total += record.capacity();
+                appended++;
+                return new Entry(active, offset, nameBytes.length, content.length, seq);
+            } catch (IOException e) {
+                throw new ClorastoreException("An IO error occurred while writing the segments of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+
+        /**
+         * Syncs the record as required by the durability, and starts a compaction if the segments hold more overwritten records than live ones.
+         */
+        private void written() {
+            try {
+                if (durability == Durability.ALWAYS) {
+                    var start = System.nanoTime();
+                    active.channel.force(false);
+                    events.since(Operation.SYNC, start);
+                } else if (durability == Durability.PERIODIC && !syncScheduled) {
+                    syncScheduled = true;
+                    compactor.schedule(this::syncPeriodically, syncInterval, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                throw new ClorastoreException("An IO error occurred while syncing the segments of collection " + collection.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+
+            if (!compacting && total >= MIN_COMPACTION_SIZE && total - live > live) {
+                compacting = true;
+                try {
+                    roll();
+                } catch (IOException e) {
+                    compacting = false;
+                    return;
+                }
+                compactor.execute(this::compact);
+            }
+        }
+
+        private void syncPeriodically() {
+            Segment segment;
+            synchronized (this) {
+                syncScheduled = false;
+                segment = active;
+            }
+            try {
+                var start = System.nanoTime();
+                if (segment != null)
+                    segment.channel.force(false);
+                events.since(Operation.SYNC, start);
+            } catch (ClosedChannelException e) {
+                // Synced when it was closed
+            } catch (IOException e) {
+                failed(collection.getName(), "An IO error occurred while syncing the segments of collection " + collection.getName() + ".", e);
+            }
+        }
+
+        /**
+         * Seals the active segment and starts a new one.
+         */
+        private void roll() throws IOException {
+            if (active != null && durability != Durability.NONE)
+                active.channel.force(false);
+            if (active != null)
+                active.sealed = true;
+            var id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create " + dir);
+            active = new Segment(id, new File(dir, SEGMENT_FILE + id));
+            segments.put(id, active);
+        }
+
+        /**
+         * Copies the live records of the sealed segments into a new segment, then deletes the sealed segments. The records
+         * are copied without holding the lock, as the sealed segments do not change anymore. A document written meanwhile
+         * keeps its new record, and its copied record is left as overwritten.
+         */
+        private void compact() {
+            List<Segment> sealed;
+            Map<String, Entry> entries = new HashMap<>();
+            Segment target;
+            synchronized (this) {
+                if (active == null) {
+                    compacting = false;
+                    return;
+                }
+                sealed = new ArrayList<>(segments.values());
+                sealed.remove(active);
+                index.forEach((name, entry) -> {
+                    if (entry.segment != active)
+                        entries.put(name, entry);
+                });
+                var id = segments.lastKey() + 1;
+                try {
+                    target = new Segment(id, new File(dir, SEGMENT_FILE + id));
+                } catch (IOException e) {
+                    compacting = false;
+                    failed(collection.getName(), "An IO error occurred while compacting the segments of collection " + collection.getName() + ".", e);
+                    return;
+                }
+                segments.put(id, target);
+            }
+
+            var moved = new HashMap<String, Entry>();
+            try {
+                for (var item : entries.entrySet()) {
+                    var entry = item.getValue();
+                    var record = entry.segment.view(entry.offset, (int) entry.size());
+                    var offset = target.size;
+                    while (record.hasRemaining())
+                        target.channel.write(record, offset + record.position());
+                    target.size += entry.size();
+                    moved.put(item.getKey(), new Entry(target, offset, entry.nameLength, entry.contentLength, entry.seq));
+                }
+                if (durability != Durability.NONE)
+                    target.channel.force(false);
+                target.sealed = true;
+            } catch (IOException e) {
+                synchronized (this) {
+                    segments.remove(target.id);
+                    target.close();
+                    target.file.delete();
+                    compacting = false;
+                }
+                failed(collection.getName(), "An IO error occurred while compacting the segments of collection " + collection.getName() + ".", e);
+                return;
+            }
+
+            synchronized (this) {
+                moved.forEach((name, entry) -> {
+                    if (index.get(name) == entries.get(name))
+                        index.put(name, entry);
+                });
+                total += target.size;
+                for (Segment segment : sealed) {
+                    segments.remove(segment.id);
+                    total -= segment.size;
+                }
+                try {
+                    saveIndex();
+                    for (Segment segment : sealed) {
+                        segment.close();
+                        segment.file.delete();
+                    }
+                } catch (IOException e) {
+                    // The sealed segments are kept, the records are found again by their sequence number
+                    sealed.forEach(segment -> segments.put(segment.id, segment));
+                    failed(collection.getName(), "An IO error occurred while compacting the segments of collection " + collection.getName() + ".", e);
+                }
+                compacting = false;
+            }
+        }
+
+        /**
+         * Loads the saved index, then scans the records appended to the segments after it was saved.
+         */
+        private void load() throws IOException {
+            var files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_FILE) && !name.endsWith(".tmp"));
+            if (files == null || files.length == 0)
+                return;
+            for (File file : files) {
+                var id = Integer.parseInt(file.getName().substring(SEGMENT_FILE.length()));
+                segments.put(id, new Segment(id, file));
+            }
+
+            var scanned = loadIndex();
+            var deleted = new HashMap<String, Long>();
+            for (Segment segment : segments.values())
+                scan(segment, scanned.getOrDefault(segment.id, 0L), deleted);
+            for (Segment segment : segments.values())
+                total += segment.size;
+            for (Entry entry : index.values())
+                live += entry.size();
+            active = segments.lastEntry().getValue();
+            for (Segment segment : segments.headMap(active.id).values())
+                segment.sealed = true;
+        }
+
+        /**
+         * Loads the saved index, if it matches the segments.
+         *
+         * @return The size of every segment covered by the index.
+         */
+        private Map<Integer, Long> loadIndex() {
+            var file = new File(dir, INDEX_FILE);
+            var covered = new HashMap<Integer, Long>();
+            if (!file.exists())
+                return covered;
+
+            try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != INDEX_VERSION)
+                    return covered;
+                var sequence = in.readLong();
+                var count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    var id = in.readInt();
+                    var size = in.readLong();
+                    var segment = segments.get(id);
+                    if (segment == null || segment.size < size)
+                        return new HashMap<>();
+                    covered.put(id, size);
+                }
+                var entries = in.readInt();
+                var index = new HashMap<String, Entry>(entries);
+                for (int i = 0; i < entries; i++) {
+                    var name = in.readUTF();
+                    var segment = segments.get(in.readInt());
+                    if (segment == null)
+                        return new HashMap<>();
+                    index.put(name, new Entry(segment, in.readLong(), in.readInt(), in.readInt(), in.readLong()));
+                }
+                this.index.putAll(index);
+                this.sequence = sequence;
+                return covered;
+            } catch (IOException | RuntimeException e) {
+                // The segments are scanned entirely
+                this.index.clear();
+                return new HashMap<>();
+            }
+        }
+
+        /**
+         * Scans the records of the segment from the position, keeping the latest record of every document. The segment
+         * is truncated at the first record which was not completely written.
+         */
+        private void scan(Segment segment, long position, Map<String, Long> deleted) throws IOException {
+            if (position >= segment.size)
+                return;
+            var buffer = segment.map(0, (int) segment.size);
+            var crc = new CRC32();
+            while (position + HEADER <= segment.size) {
+                var start = (int) position;
+                var length = buffer.getInt(start);
+                var checksum = buffer.getInt(start + 4);
+                if (length < 0 || start + (long) HEADER + length > segment.size)
+                    break;
+                crc.reset();
+                var bytes = buffer.duplicate();
+                bytes.position(start + 8).limit(start + HEADER + length);
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                var seq = buffer.getLong(start + 8);
+                var type = buffer.get(start + 16);
+                var nameLength = buffer.getShort(start + 17) & 0xFFFF;
+                var nameBytes = new byte[nameLength];
+                buffer.duplicate().position(start + HEADER).get(nameBytes);
+                var name = new String(nameBytes, StandardCharsets.UTF_8);
+                sequence = Math.max(sequence, seq);
+
+                var current = index.get(name);
+                var removed = deleted.get(name);
+                if ((current == null || current.seq < seq) && (removed == null || removed < seq)) {
+                    if (type == DELETE) {
+                        index.remove(name);
+                        deleted.put(name, seq);
+                    } else {
+                        index.put(name, new Entry(segment, start, nameLength, length - nameLength, seq));
+                    }
+                }
+                position += HEADER + length;
+            }
+
+            if (position < segment.size) {
+                segment.truncate(position);
+            }
+        }
+
+        private void saveIndex() throws IOException {
+            var bytes = new ByteArrayOutputStream();
+            try (var out = new DataOutputStream(bytes)) {
+                out.writeInt(INDEX_VERSION);
+                out.writeLong(sequence);
+                out.writeInt(segments.size());
+                for (Segment segment : segments.values()) {
+                    out.writeInt(segment.id);
+                    out.writeLong(segment.size);
+                }
+                out.writeInt(index.size());
+                for (var item : index.entrySet()) {
+                    var entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeInt(entry.segment.id);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.nameLength);
+                    out.writeInt(entry.contentLength);
+                    out.writeLong(entry.seq);
+                }
+            }
+            AtomicFile.write(new File(dir, INDEX_FILE), bytes.toByteArray(), durability != Durability.NONE);
+        }
+    }
+
+
+    /**
+     * Copies the segments of a collection, see {@link #copySegments(File, SegmentCopy)}.
+     */
+    interface SegmentCopy {
+        void run(int active) throws IOException;
+    }
+
+
+    /**
+     * A segment file. The sealed segments are mapped in the memory for reading, the records of the active one are read
+     * from its channel.
+     */
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        volatile long size;
+        /**
+         * Whether the segment is not appended to anymore.
+         */
+        volatile boolean sealed;
+        private MappedByteBuffer map;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns a read-only view of a part of the segment. The view stays valid after the segment is closed. A part of
+         * the active segment is read instead of mapped, as the mapping would have to be extended by every record.
+         */
+        ByteBuffer view(long position, int length) throws IOException {
+            if (sealed)
+                return map(position, length);
+            var buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException("Unexpected end of " + file.getName());
+            }
+            return buffer.flip().asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns a read-only view of a part of the segment from its mapping, which is extended to the end of the segment
+         * if the part is beyond it.
+         */
+        synchronized ByteBuffer map(long position, int length) throws IOException {
+            if (map == null || map.capacity() < position + length)
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            var view = map.duplicate();
+            view.position((int) position).limit((int) position + length);
+            return view.slice();
+        }
+
+        /**
+         * Drops the end of the segment, from the first record which was not completely written.
+         */
+        synchronized void truncate(long position) throws IOException {
+            channel.truncate(position);
+            size = position;
+            map = null;
+        }
+
+        synchronized void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing is written by closing
+            }
+            map = null;
+        }
+    }
+
+
+    /**
+     * The location of the latest record of a document.
+     */
+    private static final class Entry {
+        final Segment segment;
+        final long offset;
+        final int nameLength;
+        final int contentLength;
+        final long seq;
+
+        Entry(Segment segment, long offset, int nameLength, int contentLength, long seq) {
+            this.segment = segment;
+            this.offset = offset;
+            this.nameLength = nameLength;
+            this.contentLength = contentLength;
+            this.seq = seq;
+        }
+
+        long contentOffset() {
+            return offset + HEADER + nameLength;
+        }
+
+        long size() {
+            return HEADER + nameLength + contentLength;
+        }
+    }
+
+
+    /**
+     * Reads a buffer as a stream, counting the bytes read.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        long read;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining())
+                return -1;
+            read++;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining())
+                return -1;
+            var count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            read += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
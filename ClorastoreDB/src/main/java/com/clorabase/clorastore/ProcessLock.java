@@ -0,0 +1,60 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Locks a database against the other processes. A database is written by a single process at a time: the process which
+ * opens it holds an exclusive lock of its lock file, taken with {@link FileChannel#tryLock()}, and another process opening
+ * the same database is refused until the lock is released. The manifests, the indexes and the expiry indexes of the
+ * collections are kept in the memory of the process which writes them, they would not be consistent with the files if
+ * another process wrote the documents meanwhile. The operating system releases the lock of a process which dies.
+ */
+final class ProcessLock {
+    private final RandomAccessFile access;
+    private final FileLock lock;
+
+    /**
+     * Locks the database of the lock file.
+     *
+     * @throws ClorastoreException If the database is locked by another process.
+     */
+    ProcessLock(@NonNull File file) throws IOException {
+        var dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        this.access = new RandomAccessFile(file, "rw");
+        FileLock lock;
+        try {
+            lock = access.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            access.close();
+            throw e;
+        }
+        if (lock == null) {
+            access.close();
+            throw new ClorastoreException("The database is already opened by another process", Reasons.DATABASE_LOCKED);
+        }
+        this.lock = lock;
+    }
+
+    /**
+     * Releases the lock, and closes the lock file.
+     */
+    void close() {
+        try {
+            lock.release();
+            access.close();
+        } catch (IOException e) {
+            // The lock is released when the lock file is closed
+        }
+    }
+}
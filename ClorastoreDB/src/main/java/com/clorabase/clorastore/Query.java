@@ -2,26 +2,56 @@ package com.clorabase.clorastore;
 
 import androidx.annotation.NonNull;
 
-import org.apache.commons.io.FileUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * A class to perform query and sort data on the basis of some condition. Only the data inside the provided
  * collection is queried. Query operations may take longer time if size of document is large. If so, wrap it
  * in a background thread.
+ * <p>
+ * Results can be paginated using {@link #limit(long)}, {@link #offset(long)} and {@link #startAfter(Document)}. Documents
+ * are visited in the order of their name, the documents of a collection before the ones of its sub-collections, and
+ * are produced lazily, the scan stops as soon as enough results are found. Use {@link #stream(Predicate)} to consume
+ * the results one by one without holding all of them in the memory.
  */
 public class Query {
+    private final Clorastore db;
     private final File collection;
+    private long limit = Long.MAX_VALUE;
+    private long offset;
+    private Cursor startAfter;
+    private ForkJoinPool pool;
+    private int parallelism;
+    private boolean ordered;
+    private Set<String> projection;
 
     /**
      * Creates a query from the provided collection.
@@ -29,10 +59,130 @@ public class Query {
      * @param collection The collection from where to start querying.
      */
     public Query(Collection collection) {
+        this.db = collection.db;
         this.collection = collection.root;
     }
 
 
+    /**
+     * Limits the number of documents returned by the query.
+     *
+     * @param limit The maximum number of documents to return
+     * @return This query
+     */
+    public @NonNull Query limit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Limit cannot be negative");
+        this.limit = limit;
+        return this;
+    }
+
+
+    /**
+     * Skips the first documents which matches the query.
+     *
+     * @param offset The number of matching documents to skip
+     * @return This query
+     */
+    public @NonNull Query offset(long offset) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Offset cannot be negative");
+        this.offset = offset;
+        return this;
+    }
+
+
+    /**
+     * Starts the query after the provided document of the collection, like a cursor. Sorted queries read the value of
+     * the field from the document when they run, use {@link #startAfter(Document)} to page through documents which
+     * may be modified meanwhile.
+     *
+     * @param docName The name of the document, with or without the .doc extension. Pass null to start from the beginning.
+     * @return This query
+     */
+    public @NonNull Query startAfter(String docName) {
+        this.startAfter = docName == null ? null : new Cursor(new File(collection, Document.nameOf(new File(docName)) + ".doc"), null);
+        return this;
+    }
+
+
+    /**
+     * Starts the query after the provided document, like a cursor. Pass the last document of a page to get the next page.
+     * The query seeks to the position of the document, by its path and by the values of its fields when it was read,
+     * so the next page starts at the right place even if the document was modified or deleted since.
+     *
+     * @param document The document, returned by a query of the same collection. Pass null to start from the beginning.
+     * @return This query
+     * @throws IllegalArgumentException If the document is not in the collection of the query or in one of its sub-collections.
+     */
+    public @NonNull Query startAfter(Document document) {
+        if (document == null) {
+            this.startAfter = null;
+            return this;
+        }
+        if (positionOf(document.document) == null)
+            throw new IllegalArgumentException("The document " + document.getName() + " is not in the collection of the query");
+        this.startAfter = new Cursor(document.document, Document.copyOf(document.data));
+        return this;
+    }
+
+
+    /**
+     * Makes the query return documents holding only the provided fields. Other fields are skipped without being parsed,
+     * which is much faster for large documents. The other fields are read if a returned document is modified.
+     *
+     * @param fields The fields to read. Pass nothing to read all the fields.
+     * @return This query
+     */
+    public @NonNull Query select(String... fields) {
+        this.projection = fields == null || fields.length == 0 ? null : new HashSet<>(Arrays.asList(fields));
+        return this;
+    }
+
+
+    /**
+     * Evaluates the query in parallel on the provided pool. Collections are listed, and documents are read and matched
+     * on many threads at once. Results are returned in no particular order, unless {@link #ordered(boolean)} is set.
+     *
+     * @param pool The pool on which the query runs. Pass null to evaluate the query on the calling thread.
+     * @return This query
+     */
+    public @NonNull Query parallel(ForkJoinPool pool) {
+        this.pool = pool;
+        this.parallelism = 0;
+        return this;
+    }
+
+
+    /**
+     * Evaluates the query in parallel on a dedicated pool of the provided number of threads, created for each
+     * evaluation of this query. Use {@link #parallel(ForkJoinPool)} to share a pool between queries.
+     *
+     * @param parallelism The number of threads, usually the number of cores of the device.
+     * @return This query
+     */
+    public @NonNull Query parallel(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.pool = null;
+        this.parallelism = parallelism;
+        return this;
+    }
+
+
+    /**
+     * Makes a parallel query return its results in a deterministic order, sorted by the path of the documents. Ordering
+     * has a cost, and is needed only when paginating a parallel query. Sequential queries are always ordered.
+     *
+     * @param ordered Whether to order the results or not
+     * @return This query
+     */
+    public @NonNull Query ordered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+
     /**
      * Query collections which contains the provided collection or document in it.
      *
@@ -40,24 +190,61 @@ public class Query {
      * @return The collections which has the following document or collection in it.
      */
     public List<Collection> whichHas(String docOrColl_name) {
-        return FileUtils.listFiles(collection, null, true)
-                .stream()
-                .filter(file -> file.getName().equals(docOrColl_name))
-                .map(file -> new Collection(file.getParentFile()))
-                .collect(Collectors.toList());
+        var name = Document.nameOf(new File(docOrColl_name));
+        var isDocument = docOrColl_name.endsWith(".doc");
+        try (var dirs = collections(collection)) {
+            return dirs.filter(dir -> {
+                        var manifest = db.catalog.of(dir);
+                        return isDocument ? manifest.contains(name) : manifest.collections().contains(docOrColl_name) || manifest.contains(docOrColl_name);
+                    })
+                    .map(dir -> new Collection(db, dir))
+                    .collect(Collectors.toList());
+        }
     }
 
 
     /**
      * Finds the document on the basis of its data. It will query all the document from the current collection till it
-     * finds at least one document whose filed 'field' has value 'value'.
+     * finds at least one document whose filed 'field' has value 'value'. If the field is indexed in a collection,
+     * the documents of that collection are looked up from the index instead.
      *
      * @param field The field name in the document
      * @param value The value of the field that is to be checked across
      * @return an list of the {@link Document} which has field with the corresponding value.
      */
     public List<Document> whereEqual(@NonNull String field, @NonNull Object value) {
-        return where(stringMap -> Objects.equals(stringMap.get(field), value));
+        return find(Filter.equal(field, value));
+    }
+
+
+    /**
+     * Finds the documents whose field contains all the words of the text, in any order, ignoring the case and the accents.
+     * If the field has a {@link Collection#createTextIndex(String) text index} in a collection, the documents of that
+     * collection are looked up from it instead of being read.
+     *
+     * @param field The field name in the document
+     * @param text  The words to search
+     * @return an list of the {@link Document} whose field contains the words.
+     * @see Filter#contains(String, String)
+     */
+    public List<Document> whereContains(@NonNull String field, @NonNull String text) {
+        return find(Filter.contains(field, text));
+    }
+
+
+    /**
+     * Finds the documents whose field has a word starting with the prefix, ignoring the case and the accents, as for a
+     * search as you type. If the prefix has several words, the field must also contain the other ones. If the field has a
+     * {@link Collection#createTextIndex(String) text index} in a collection, the documents of that collection are looked
+     * up from it instead of being read. Use {@link Filter#startsWith(String, String)} to match the beginning of the whole value instead.
+     *
+     * @param field  The field name in the document
+     * @param prefix The beginning of the words to search
+     * @return an list of the {@link Document} whose field has words starting with the prefix.
+     * @see Filter#containsPrefix(String, String)
+     */
+    public List<Document> whereStartsWith(@NonNull String field, @NonNull String prefix) {
+        return find(Filter.containsPrefix(field, prefix));
     }
 
 
@@ -71,11 +258,74 @@ public class Query {
      *                              and the key in predicate is not present. To avoid this, use {@link Map#getOrDefault(Object, Object) method}
      */
     public List<Document> where(@NonNull Predicate<Map<String, ? super Object>> condition) {
-        return FileUtils.listFiles(collection, new String[]{"doc"}, true)
-                .stream()
-                .map(Document::new)
-                .filter(document -> condition.test(document.getData()))
-                .collect(Collectors.toList());
+        return find(Filter.of(condition));
+    }
+
+
+    /**
+     * Query documents matching the filter. The filter is planned for every collection: the conditions on indexed fields
+     * are answered from the indexes, and the other conditions are evaluated on the fields they need only, from the most
+     * selective to the least one. Use {@link #explain(Filter)} to see the plan.
+     *
+     * @param filter The filter, composed of conditions on the fields of the documents.
+     * @return List of {@link Document} matching the filter.
+     */
+    public List<Document> where(@NonNull Filter filter) {
+        return find(filter);
+    }
+
+
+    /**
+     * Same as {@link #where(Filter)}, but runs the query on the {@link Clorastore#setExecutor(java.util.concurrent.Executor) executor}
+     * of the database.
+     *
+     * @param filter The filter, composed of conditions on the fields of the documents.
+     * @return A future completed with the documents matching the filter.
+     */
+    public @NonNull CompletableFuture<List<Document>> whereAsync(@NonNull Filter filter) {
+        return Async.supply(db.executor, () -> find(filter));
+    }
+
+
+    /**
+     * Same as {@link #where(Filter)}, but returns the documents lazily. The stream must be closed after use.
+     *
+     * @param filter The filter, composed of conditions on the fields of the documents.
+     * @return {@link Stream} of {@link Document} matching the filter.
+     */
+    public @NonNull Stream<Document> stream(@NonNull Filter filter) {
+        if (pool != null || parallelism > 0)
+            return find(filter).stream();
+        return search(filter, new Trace(), null);
+    }
+
+
+    /**
+     * Runs the query and returns how it was evaluated: the plan chosen for every collection, and the number of documents
+     * it was estimated to read and return compared to the actual ones. The query is always run sequentially.
+     *
+     * @param filter The filter of the query.
+     * @return {@link QueryPlan}
+     */
+    public @NonNull QueryPlan explain(@NonNull Filter filter) {
+        var plan = new QueryPlan();
+        try (var documents = search(filter, new Trace(), plan)) {
+            documents.forEach(document -> {});
+        }
+        return plan;
+    }
+
+
+    /**
+     * Same as {@link #where(Predicate)}, but returns the documents lazily. Documents are read only when the stream is consumed,
+     * and the scan stops as soon as the stream is not consumed anymore. The stream must be closed after use.
+     * A {@link #parallel(ForkJoinPool) parallel} query is evaluated eagerly, and the stream returns its results.
+     *
+     * @param condition The boolean function that is to be checked
+     * @return {@link Stream} of {@link Document} which satisfy the given predicate.
+     */
+    public @NonNull Stream<Document> stream(@NonNull Predicate<Map<String, ? super Object>> condition) {
+        return stream(Filter.of(condition));
     }
 
 
@@ -87,21 +337,181 @@ public class Query {
      * @return Array of {@link Document} as the query result
      */
     public <T> List<Document> whereObject(Class<T> clazz, Predicate<T> condition) {
-        return FileUtils.listFiles(collection, new String[]{"doc"}, true)
-                .stream()
-                .map(Document::new)
-                .filter(doc -> {
-                    try {
-                        var obj = doc.getAsObject(clazz);
-                        return obj.getClass() == clazz;
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    } catch (ClassCastException e) {
-                        return false;
-                    }
-                })
-                .collect(Collectors.toList());
+        var gson = new Gson();
+        return where(data -> {
+            try {
+                return condition.test(gson.fromJson(gson.toJsonTree(data), clazz));
+            } catch (ClassCastException | JsonParseException e) {
+                return false;
+            }
+        });
+    }
 
+
+    /**
+     * Runs the query as a live query. The listener first receives the documents which match the condition as added.
+     * Then every write to a document of the collection or of its sub-collections is evaluated on that document only:
+     * the listener receives the documents which start to match as added, those which still match as modified and those
+     * which do not match anymore as removed. The query is never executed again.
+     * <p>
+     * The limit, offset, cursor and projection of the query do not apply to a live query.
+     *
+     * @param condition The boolean function that is to be checked
+     * @param listener  The listener of the changes of the results.
+     * @return The registration, to remove the listener.
+     */
+    public @NonNull ListenerRegistration addSnapshotListener(@NonNull Predicate<Map<String, ? super Object>> condition, @NonNull ChangeListener listener) {
+        return db.changes.query(collection, condition, listener);
+    }
+
+
+    /**
+     * Same as {@link #addSnapshotListener(Predicate, ChangeListener)}, with a filter.
+     *
+     * @param filter   The filter of the live query.
+     * @param listener The listener of the changes of the results.
+     * @return The registration, to remove the listener.
+     */
+    public @NonNull ListenerRegistration addSnapshotListener(@NonNull Filter filter, @NonNull ChangeListener listener) {
+        return db.changes.query(collection, filter::test, listener);
+    }
+
+
+    /**
+     * Counts the documents of the collection and its sub-collections. The documents are counted from the manifests
+     * of the collections, without reading them. The pagination of the query does not apply to aggregations.
+     *
+     * @return The number of documents.
+     */
+    public long count() {
+        return countMatching(null);
+    }
+
+
+    /**
+     * Counts the documents which match the filter. The documents of a collection in which the filter is answered from the
+     * indexes alone are counted without reading them, otherwise only the fields of the filter are read.
+     *
+     * @param filter The filter
+     * @return The number of matching documents.
+     */
+    public long count(@NonNull Filter filter) {
+        return countMatching(filter);
+    }
+
+
+    /**
+     * Same as {@link #count(Filter)}, but counts the documents on the executor of the database.
+     *
+     * @param filter The filter, or null to count all the documents
+     * @return A future completed with the number of matching documents.
+     */
+    public @NonNull CompletableFuture<Long> countAsync(Filter filter) {
+        return Async.supply(db.executor, () -> countMatching(filter));
+    }
+
+
+    /**
+     * Computes the count, sum, average, minimum and maximum of the numeric values of the field in all the documents.
+     *
+     * @param field The field to aggregate
+     * @return {@link Aggregation}
+     */
+    public @NonNull Aggregation aggregate(@NonNull String field) {
+        return aggregate(field, null);
+    }
+
+
+    /**
+     * Computes the count, sum, average, minimum and maximum of the numeric values of the field in the documents which
+     * match the filter. The values are reduced as they are read, without creating any {@link Document}, and only the
+     * aggregated field and the fields of the filter are read.
+     * <p>
+     * If the field is indexed in a collection (see {@link Collection#createIndex(String)}), its aggregates are kept up to
+     * date by the index on every write, and are read without going through the documents when the filter is answered
+     * from the indexes too. Index the fields of the counters of a dashboard to read them in O(1).
+     *
+     * @param field  The field to aggregate
+     * @param filter The filter of the documents to aggregate, or null for all of them
+     * @return {@link Aggregation}
+     */
+    public @NonNull Aggregation aggregate(@NonNull String field, Filter filter) {
+        return reduce(filter, Set.of(field), Aggregation::new, (aggregation, data) -> aggregation.add(data.get(field)), Aggregation::merge, (dir, plan) -> {
+            var index = db.indexes.get(dir, field);
+            if (index == null || !plan.covered())
+                return null;
+            return plan.candidates == null ? index.aggregate() : index.aggregate(plan.candidates);
+        });
+    }
+
+
+    /**
+     * Same as {@link #aggregate(String, Filter)}, but aggregates the values on the executor of the database.
+     *
+     * @param field  The field to aggregate
+     * @param filter The filter of the documents to aggregate, or null for all of them
+     * @return A future completed with the {@link Aggregation}.
+     */
+    public @NonNull CompletableFuture<Aggregation> aggregateAsync(@NonNull String field, Filter filter) {
+        return Async.supply(db.executor, () -> aggregate(field, filter));
+    }
+
+
+    /**
+     * Counts the documents having every value of the field, in all the documents. Documents in which the field is absent
+     * are counted under the null value.
+     *
+     * @param field The field to group the documents by
+     * @return The number of documents by value, in the order of the values.
+     */
+    public @NonNull Map<Object, Long> groupBy(@NonNull String field) {
+        return groupBy(field, null);
+    }
+
+
+    /**
+     * Counts the documents having every value of the field, in the documents which match the filter. Documents in which
+     * the field is absent are counted under the null value. Numbers are grouped by their value, as double. If the field
+     * is indexed, the counts are read from the index when the filter is answered from the indexes too.
+     *
+     * @param field  The field to group the documents by
+     * @param filter The filter of the documents to group, or null for all of them
+     * @return The number of documents by value, in the order of the values.
+     */
+    public @NonNull Map<Object, Long> groupBy(@NonNull String field, Filter filter) {
+        BiConsumer<Map<FieldIndex.Key, Long>, Map<FieldIndex.Key, Long>> merge = (counts, other) -> other.forEach((key, count) -> counts.merge(key, count, Long::sum));
+        var counts = reduce(filter, Set.of(field), TreeMap<FieldIndex.Key, Long>::new, (groups, data) -> groups.merge(FieldIndex.Key.of(data.get(field)), 1L, Long::sum), merge, (dir, plan) -> {
+            var index = db.indexes.get(dir, field);
+            if (index == null || !plan.covered())
+                return null;
+            return plan.candidates == null ? index.counts() : index.counts(plan.candidates);
+        });
+
+        var groups = new LinkedHashMap<Object, Long>();
+        counts.forEach((key, count) -> groups.put(key.value(), count));
+        return groups;
+    }
+
+
+    /**
+     * Aggregates the numeric values of a field for every value of another field, in the documents which match the filter.
+     * Documents in which the grouping field is absent are grouped under the null value.
+     *
+     * @param field      The field to group the documents by
+     * @param aggregated The field to aggregate in every group
+     * @param filter     The filter of the documents to group, or null for all of them
+     * @return The {@link Aggregation} of every value of the grouping field, in the order of the values.
+     */
+    public @NonNull Map<Object, Aggregation> groupBy(@NonNull String field, @NonNull String aggregated, Filter filter) {
+        BiConsumer<Map<FieldIndex.Key, Aggregation>, Map<FieldIndex.Key, Aggregation>> merge = (aggregations, other) ->
+                other.forEach((key, aggregation) -> aggregations.computeIfAbsent(key, k -> new Aggregation()).merge(aggregation));
+        var aggregations = reduce(filter, Set.of(field, aggregated), TreeMap<FieldIndex.Key, Aggregation>::new,
+                (groups, data) -> groups.computeIfAbsent(FieldIndex.Key.of(data.get(field)), key -> new Aggregation()).add(data.get(aggregated)),
+                merge, (dir, plan) -> null);
+
+        var groups = new LinkedHashMap<Object, Aggregation>();
+        aggregations.forEach((key, aggregation) -> groups.put(key.value(), aggregation));
+        return groups;
     }
 
 
@@ -114,7 +524,8 @@ public class Query {
      * @throws ClorastoreException if field does not denotes a number
      */
     public List<Document> whereGreater(@NonNull String field, double value) {
-        return where(stringMap -> ((double) stringMap.getOrDefault(field, 0.0)) > value);
+        var filter = Filter.greater(field, value);
+        return find(0.0 > value ? filter.or(Filter.missing(field)) : filter);
     }
 
 
@@ -127,47 +538,498 @@ public class Query {
      * @throws ClorastoreException if field does not denotes a number
      */
     public List<Document> whereSmaller(@NonNull String field, double value) {
-        return where(stringMap -> ((double) stringMap.getOrDefault(field, 0.0)) < value);
+        var filter = Filter.smaller(field, value);
+        return find(0.0 < value ? filter.or(Filter.missing(field)) : filter);
     }
 
     /**
-     * Sort the documents on the basis of the given field.
+     * Sort the documents on the basis of the given field. Only the documents having the field are returned. Values are
+     * ordered by their type first (booleans, then numbers, then strings, then lists) and then by their value. Documents
+     * having the same value are ordered by their name.
+     * <p>
+     * With a {@link #limit(long)}, only the best documents are kept in the memory while scanning. If the field is indexed
+     * in the collection, the documents are read from the index in order and only the returned ones are opened.
      *
      * @param field     The field to sort on
      * @param ascending Whether to sort in ascending order or not
      * @return List of {@link Document} which are sorted on the basis of the field.
      */
     public List<Document> orderBy(@NonNull String field, boolean ascending) {
-        var docs = FileUtils.listFiles(collection, new String[]{"doc"}, false)
-                .stream()
-                .map(Document::new)
-                .filter(document -> document.data.containsKey(field))
-                .collect(Collectors.toList());
+        try (var documents = orderByStream(field, ascending)) {
+            return documents.collect(Collectors.toList());
+        }
+    }
 
-        var type = docs.get(0).data.get(field);
-        Comparator<Document> comparator;
-        if (type instanceof Number) {
-            comparator = (t0, t1) -> {
-                var field0 = t0.getNumber(field, 0);
-                var field1 = t1.getNumber(field, 0);
-                return (int) (field1.doubleValue() - field0.doubleValue());
-            };
-        } else if (type instanceof Boolean) {
-            comparator = (t0, t1) -> {
-                var field0 = t0.getBoolean(field, false);
-                var field1 = t1.getBoolean(field, false);
-                return Boolean.compare(field0, field1);
-            };
-        } else if (type instanceof String) {
-            comparator = Comparator.comparing(document -> document.getString(field, ""));
+
+    /**
+     * Same as {@link #orderBy(String, boolean)}, but returns the documents lazily. Only the value of the field and the name
+     * of the documents are sorted, spilling to temporary files when they are too many to be sorted in the memory. Documents
+     * are opened only when the stream is consumed. If the query is {@link #parallel(ForkJoinPool) parallel}, the values of
+     * the field are read on the pool. The stream must be closed after use.
+     *
+     * @param field     The field to sort on
+     * @param ascending Whether to sort in ascending order or not
+     * @return {@link Stream} of {@link Document} which are sorted on the basis of the field.
+     * @throws ClorastoreException If the document set by {@link #startAfter(String)} does not exist or does not have the field.
+     */
+    public @NonNull Stream<Document> orderByStream(@NonNull String field, boolean ascending) {
+        db.expirations.reap(collection);
+        var trace = new Trace();
+        var order = Sorter.order(ascending);
+        Sorter.Entry cursor = null;
+        if (startAfter != null) {
+            // The value the document had when it was read, or its current value if it was not read with the field
+            var values = startAfter.values;
+            cursor = values != null && values.containsKey(field)
+                    ? new Sorter.Entry(FieldIndex.Key.of(values.get(field)), Document.nameOf(startAfter.file))
+                    : entry(startAfter.file, field);
+            if (cursor == null)
+                throw new ClorastoreException("The document to start after does not exist or does not have the field '" + field + "'", Reasons.NO_DOC_EXIST);
+        }
+
+        Stream<Sorter.Entry> sorted;
+        var index = db.indexes.get(collection, field);
+        if (index != null) {
+            var count = limit >= Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + limit;
+            sorted = index.sorted(ascending, cursor, count).skip(offset).peek(entry -> trace.scanned.increment());
         } else {
-            throw new ClorastoreException("Unsupported datatype", Reasons.INVALID_DATATYPE);
+            var pool = this.pool == null && parallelism > 0 ? new ForkJoinPool(parallelism) : this.pool;
+            try (var files = list(collection)) {
+                var entries = entries(files.peek(file -> trace.scanned.increment()), field, pool);
+                if (cursor != null) {
+                    var after = cursor;
+                    entries = entries.filter(entry -> order.compare(entry, after) > 0);
+                }
+                if (limit >= Long.MAX_VALUE - offset)
+                    sorted = Sorter.sort(entries, order, Sorter.RUN_SIZE);
+                else
+                    sorted = Sorter.top(entries, order, offset + limit).stream();
+            } finally {
+                if (pool != null && pool != this.pool)
+                    pool.shutdown();
+            }
+            sorted = sorted.skip(offset).limit(limit);
         }
+        return sorted.map(entry -> open(new File(collection, entry.name + ".doc")))
+                .peek(document -> trace.returned.increment())
+                .onClose(trace::report);
+    }
+
+
+    private long countMatching(Filter filter) {
+        return reduce(filter, Set.of(), () -> new long[1], (count, data) -> count[0]++, (count, other) -> count[0] += other[0], (dir, plan) -> {
+            if (!plan.covered())
+                return null;
+            return new long[]{plan.candidates == null ? db.catalog.of(dir).count() : plan.candidates.size()};
+        })[0];
+    }
+
+    /**
+     * Reduces the documents of every collection which match the filter, sequentially or in parallel. A collection is
+     * reduced by the shortcut if it returns a result, from the indexes or the manifest of the collection. Otherwise the
+     * fields of its documents are read, without creating any {@link Document}, and accumulated.
+     *
+     * @param filter   The filter, or null to reduce all the documents
+     * @param fields   The fields which are accumulated
+     * @param shortcut Reduces a collection given its plan without reading its documents, or returns null if it cannot.
+     */
+    private <A> A reduce(Filter filter, Set<String> fields, Supplier<A> supplier, BiConsumer<A, Map<String, Object>> accumulator,
+                         BiConsumer<A, A> combiner, BiFunction<File, Filter.Plan, A> shortcut) {
+        var trace = new Trace();
+        var result = supplier.get();
+        var candidates = collections(collection).flatMap(dir -> {
+            var plan = filter == null ? new Filter.Plan(null, null, null) : plan(dir, filter);
+            var reduced = shortcut.apply(dir, plan);
+            if (reduced != null) {
+                combiner.accept(result, reduced);
+                return Stream.<Candidate>empty();
+            }
+            var files = plan.candidates == null ? list(dir) : plan.candidates.stream().map(name -> new File(dir, name + ".doc"));
+            return files.map(file -> new Candidate(file, plan));
+        });
+
+        try {
+            A reduced;
+            if (pool != null || parallelism > 0) {
+                // The collections are planned on this thread, only the documents are read in parallel
+                var list = candidates.collect(Collectors.toList());
+                var pool = this.pool == null ? new ForkJoinPool(parallelism) : this.pool;
+                try {
+                    reduced = pool.invoke(ForkJoinTask.adapt(() -> list.parallelStream()
+                            .map(candidate -> row(candidate, fields, trace))
+                            .filter(Objects::nonNull)
+                            .collect(supplier, accumulator, combiner)));
+                } finally {
+                    if (pool != this.pool)
+                        pool.shutdown();
+                }
+            } else {
+                reduced = candidates.map(candidate -> row(candidate, fields, trace))
+                        .filter(Objects::nonNull)
+                        .collect(supplier, accumulator, combiner);
+            }
+            combiner.accept(result, reduced);
+            return result;
+        } finally {
+            trace.report();
+        }
+    }
+
+    /**
+     * Reads the fields of a candidate document if it matches the rest of its plan, or returns null. The whole document is
+     * read only if the plan has conditions on the whole document.
+     */
+    private Map<String, Object> row(Candidate candidate, Set<String> fields, Trace trace) {
+        trace.scanned.increment();
+        var plan = candidate.plan;
+        Map<String, Object> data;
+        if (plan.full != null) {
+            data = read(candidate.file);
+            if ((plan.partial != null && !plan.partial.test(data)) || !plan.full.test(data))
+                return null;
+        } else {
+            var needed = fields;
+            if (plan.partial != null) {
+                needed = new HashSet<>(fields);
+                needed.addAll(plan.partial.fields());
+            }
+            data = needed.isEmpty() ? Map.of() : Document.readFields(db, candidate.file, needed);
+            if (plan.partial != null && !plan.partial.test(data))
+                return null;
+        }
+        trace.returned.increment();
+        return data;
+    }
+
+    /**
+     * Reads the whole data of a document, from the cache if it is cached. The returned data must not be modified.
+     */
+    private Map<String, Object> read(File file) {
+        var cached = db.cache.peek(file);
+        if (cached != null)
+            return cached;
+        try {
+            return db.storage.read(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Evaluates a filter in every collection of the query, sequentially or in parallel.
+     */
+    private List<Document> find(Filter filter) {
+        var trace = new Trace();
+        if (pool != null || parallelism > 0) {
+            var pool = this.pool == null ? new ForkJoinPool(parallelism) : this.pool;
+            try {
+                return pool.invoke(ForkJoinTask.adapt(() -> searchParallel(filter, trace)));
+            } finally {
+                if (pool != this.pool)
+                    pool.shutdown();
+                trace.report();
+            }
+        }
+
+        try (var documents = search(filter, trace, null)) {
+            return documents.collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Evaluates a filter in every collection of the query, in parallel. Must be called from a task of the pool.
+     */
+    private List<Document> searchParallel(Filter filter, Trace trace) {
+        var candidates = new ListTask(collection, filter).invoke();
+        if (ordered || startAfter != null) {
+            var positions = new HashMap<Candidate, Position>();
+            for (Candidate candidate : candidates)
+                positions.put(candidate, positionOf(candidate.file));
+            if (startAfter != null)
+                candidates.removeIf(candidate -> positions.get(candidate).compareTo(startAfter.position) <= 0);
+            candidates.sort(Comparator.comparing(positions::get));
+        }
+
+        var documents = candidates.parallelStream();
+        if (!ordered)
+            documents = documents.unordered();
+        return documents.peek(candidate -> trace.scanned.increment())
+                .map(candidate -> match(candidate.file, candidate.plan))
+                .filter(Objects::nonNull)
+                .skip(offset)
+                .limit(limit)
+                .peek(document -> trace.returned.increment())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Evaluates a filter in every collection of the query, lazily. The filter is planned for every collection, as
+     * each of them has its own indexes.
+     *
+     * @param explain Receives the plan of every collection and the documents it reads and returns, or null.
+     */
+    private Stream<Document> search(Filter filter, Trace trace, QueryPlan explain) {
+        var dirs = collections(collection);
+        var cursor = startAfter;
+        var documents = dirs.flatMap(dir -> {
+            // The collections are visited in order, the ones before the cursor are skipped and the one of the cursor seeks to it
+            var position = cursor == null ? 1 : Position.compare(dirsOf(dir), cursor.position.dirs);
+            if (position < 0)
+                return Stream.empty();
+            var after = position == 0 ? cursor.position.name : null;
+            var plan = plan(dir, filter);
+            var files = candidates(dir, plan, after);
+            var step = explain == null ? null : explain.add(collection.toPath().relativize(dir.toPath()).toString(), plan,
+                    plan.candidates == null ? db.catalog.of(dir).count() : plan.candidates.size());
+            return files.peek(file -> {
+                        trace.scanned.increment();
+                        if (step != null)
+                            step.scanned++;
+                    })
+                    .map(file -> match(file, plan))
+                    .filter(Objects::nonNull)
+                    .peek(document -> {
+                        if (step != null)
+                            step.returned++;
+                    });
+        });
+        return documents.skip(offset)
+                .limit(limit)
+                .peek(document -> trace.returned.increment())
+                .onClose(dirs::close)
+                .onClose(trace::report);
+    }
+
+    private Filter.Plan plan(File dir, Filter filter) {
+        return filter.plan(db.indexes.lookup(dir));
+    }
+
+    /**
+     * Returns the document if it matches the rest of the plan, null otherwise. The conditions on some fields are
+     * evaluated on those fields only, which are read without parsing the rest of the document. The whole document is
+     * read only if they match and there are conditions on the whole document.
+     */
+    private Document match(File file, Filter.Plan plan) {
+        if (plan.partial != null && !plan.partial.test(Document.readFields(db, file, plan.partial.fields())))
+            return null;
+        if (plan.full == null)
+            return open(file);
+
+        var document = new Document(db, file);
+        if (!plan.full.test(document.data))
+            return null;
+        return projection == null ? document : open(file);
+    }
+
+    /**
+     * Reads the value of the field in the document for sorting, or returns null if the document does not have it.
+     */
+    private Sorter.Entry entry(File file, String field) {
+        if (!db.storage.exists(file))
+            return null;
+        var value = Document.readFields(db, file, Set.of(field)).get(field);
+        return value == null ? null : new Sorter.Entry(FieldIndex.Key.of(value), Document.nameOf(file));
+    }
+
+    /**
+     * Reads the sort entries of the documents, on the pool if the query is parallel. The documents are read in parallel a
+     * run of the sorter at a time, so that the sorter does not hold more entries in the memory than when they are read
+     * on the calling thread.
+     *
+     * @param pool The pool, or null to read the documents on the calling thread.
+     */
+    private Stream<Sorter.Entry> entries(Stream<File> files, String field, ForkJoinPool pool) {
+        if (pool == null)
+            return files.map(file -> entry(file, field)).filter(Objects::nonNull);
+
+        var list = files.collect(Collectors.toList());
+        return IntStream.range(0, (list.size() + Sorter.RUN_SIZE - 1) / Sorter.RUN_SIZE).boxed().flatMap(run -> {
+            var chunk = list.subList(run * Sorter.RUN_SIZE, Math.min(list.size(), (run + 1) * Sorter.RUN_SIZE));
+            return pool.invoke(ForkJoinTask.adapt(() -> chunk.parallelStream()
+                    .map(file -> entry(file, field))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()))).stream();
+        });
+    }
+
+    /**
+     * Opens a document of the result, with the selected fields only if the query has a projection.
+     */
+    private Document open(File file) {
+        return projection == null ? new Document(db, file) : new Document(db, file, projection);
+    }
+
+    /**
+     * Lists the document files of a collection from its manifest.
+     */
+    private Stream<File> list(File dir) {
+        return db.catalog.of(dir).documents(null, Integer.MAX_VALUE).stream().map(name -> new File(dir, name + ".doc"));
+    }
+
+    /**
+     * Lists the documents of a collection which the plan has to match, in the order of their name.
+     *
+     * @param after The name after which the documents start, or null to start from the first one.
+     */
+    private Stream<File> candidates(File dir, Filter.Plan plan, String after) {
+        Stream<String> names;
+        if (plan.candidates == null)
+            names = db.catalog.of(dir).documents(after, Integer.MAX_VALUE).stream();
+        else
+            names = plan.candidates.stream().filter(name -> after == null || name.compareTo(after) > 0).sorted();
+        return names.map(name -> new File(dir, name + ".doc"));
+    }
+
+    /**
+     * Returns the position of a document in the order in which the query visits the documents, or null if the document
+     * is not in the collection of the query or in one of its sub-collections.
+     */
+    private Position positionOf(File document) {
+        var dirs = dirsOf(document.getAbsoluteFile().getParentFile());
+        return dirs == null ? null : new Position(dirs, Document.nameOf(document));
+    }
+
+    /**
+     * Returns the names of the collections from the collection of the query to the directory, or null if the directory
+     * is not in the collection of the query.
+     */
+    private List<String> dirsOf(File dir) {
+        var dirs = new ArrayList<String>();
+        var root = collection.getAbsoluteFile();
+        for (dir = dir.getAbsoluteFile(); !dir.equals(root); dir = dir.getParentFile()) {
+            if (dir.getParentFile() == null)
+                return null;
+            dirs.add(0, dir.getName());
+        }
+        return dirs;
+    }
+
+    /**
+     * Lists a collection and all its sub-collections, recursively, from their manifests.
+     */
+    private Stream<File> collections(File dir) {
+        db.expirations.reap(dir);
+        return Stream.concat(Stream.of(dir), db.catalog.of(dir).collections().stream().flatMap(name -> collections(new File(dir, name))));
+    }
+
+    /**
+     * Lists the documents of a collection and its sub-collections in parallel, forking a task for every sub-collection.
+     * The filter is planned for every collection, the documents of a collection being looked up from its indexes when possible.
+     */
+    private final class ListTask extends RecursiveTask<List<Candidate>> {
+        private static final long serialVersionUID = 1L;
+        private final File dir;
+        private final Filter filter;
+
+        ListTask(File dir, Filter filter) {
+            this.dir = dir;
+            this.filter = filter;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            db.expirations.reap(dir);
+            var candidates = new ArrayList<Candidate>();
+            var plan = plan(dir, filter);
+            if (plan.candidates != null) {
+                for (String name : plan.candidates)
+                    candidates.add(new Candidate(new File(dir, name + ".doc"), plan));
+            }
+
+            var manifest = db.catalog.of(dir);
+            var tasks = new ArrayList<ListTask>();
+            for (String name : manifest.collections()) {
+                var task = new ListTask(new File(dir, name), filter);
+                task.fork();
+                tasks.add(task);
+            }
+            if (plan.candidates == null) {
+                for (String name : manifest.documents(null, Integer.MAX_VALUE))
+                    candidates.add(new Candidate(new File(dir, name + ".doc"), plan));
+            }
+            for (ListTask task : tasks)
+                candidates.addAll(task.join());
+            return candidates;
+        }
+    }
+
+
+    /**
+     * A document which may match a query, and the plan of its collection.
+     */
+    private static final class Candidate {
+        final File file;
+        final Filter.Plan plan;
+
+        Candidate(File file, Filter.Plan plan) {
+            this.file = file;
+            this.plan = plan;
+        }
+    }
+
+
+    /**
+     * Counts the documents scanned and returned by an execution of the query, and reports them once it completes.
+     */
+    private final class Trace {
+        private final long start = System.nanoTime();
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder returned = new LongAdder();
+
+        void report() {
+            db.events.onQuery(collection.getName(), scanned.sum(), returned.sum(), System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * The position of a document in the order in which a query visits the documents: by the names of the collections
+     * from the collection of the query, a collection before its sub-collections, then by the name of the document.
+     */
+    private static final class Position implements Comparable<Position> {
+        final List<String> dirs;
+        final String name;
+
+        Position(List<String> dirs, String name) {
+            this.dirs = dirs;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            var result = compare(dirs, other.dirs);
+            return result != 0 ? result : name.compareTo(other.name);
+        }
+
+        /**
+         * Compares the collections in the order they are visited, a collection being visited before its sub-collections.
+         */
+        static int compare(List<String> a, List<String> b) {
+            for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+                var result = a.get(i).compareTo(b.get(i));
+                if (result != 0)
+                    return result;
+            }
+            return Integer.compare(a.size(), b.size());
+        }
+    }
+
+
+    /**
+     * The document after which a query starts, with the values of its fields when it was read.
+     */
+    private final class Cursor {
+        final File file;
+        final Position position;
+        final Map<String, Object> values;
 
-        docs.sort(comparator);
-        if (!ascending) {
-            Collections.reverse(docs);
+        /**
+         * @param values The fields of the document, or null to read them when the query runs.
+         */
+        Cursor(File file, Map<String, Object> values) {
+            this.file = file;
+            this.position = positionOf(file);
+            this.values = values;
         }
-        return docs;
     }
 }
@@ -0,0 +1,116 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How a query was evaluated, as returned by {@link Query#explain(Filter)}. A query is planned for every collection it
+ * covers, as every collection has its own indexes. The estimated numbers of documents are those expected by the planner,
+ * the others are those actually read and returned, before the offset and the limit of the query.
+ */
+public final class QueryPlan {
+    private final List<Step> steps = new ArrayList<>();
+
+    QueryPlan() {}
+
+    @NonNull
+    Step add(@NonNull String collection, @NonNull Filter.Plan plan, long estimatedScanned) {
+        var step = new Step(collection, plan.toString(), estimatedScanned, Math.round(plan.estimate(estimatedScanned)));
+        steps.add(step);
+        return step;
+    }
+
+    /**
+     * Returns the plan of every collection of the query, in the order they were evaluated.
+     */
+    public @NonNull List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public long getEstimatedScanned() {
+        return steps.stream().mapToLong(Step::getEstimatedScanned).sum();
+    }
+
+    public long getScanned() {
+        return steps.stream().mapToLong(Step::getScanned).sum();
+    }
+
+    public long getEstimatedReturned() {
+        return steps.stream().mapToLong(Step::getEstimatedReturned).sum();
+    }
+
+    public long getReturned() {
+        return steps.stream().mapToLong(Step::getReturned).sum();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        var text = new StringBuilder();
+        for (Step step : steps)
+            text.append(step).append('\n');
+        text.append("total: scanned ").append(getScanned()).append(" (estimated ").append(getEstimatedScanned())
+                .append("), returned ").append(getReturned()).append(" (estimated ").append(getEstimatedReturned()).append(')');
+        return text.toString();
+    }
+
+
+    /**
+     * The plan of a single collection.
+     */
+    public static final class Step {
+        private final String collection;
+        private final String plan;
+        private final long estimatedScanned;
+        private final long estimatedReturned;
+        long scanned;
+        long returned;
+
+        Step(String collection, String plan, long estimatedScanned, long estimatedReturned) {
+            this.collection = collection;
+            this.plan = plan;
+            this.estimatedScanned = estimatedScanned;
+            this.estimatedReturned = estimatedReturned;
+        }
+
+        /**
+         * Returns the path of the collection, relative to the queried one. Empty for the queried collection itself.
+         */
+        public @NonNull String getCollection() {
+            return collection;
+        }
+
+        /**
+         * Returns a description of how the documents are found and matched.
+         */
+        public @NonNull String getPlan() {
+            return plan;
+        }
+
+        public long getEstimatedScanned() {
+            return estimatedScanned;
+        }
+
+        public long getScanned() {
+            return scanned;
+        }
+
+        public long getEstimatedReturned() {
+            return estimatedReturned;
+        }
+
+        public long getReturned() {
+            return returned;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return (collection.isEmpty() ? "." : collection) + ": " + plan + " | scanned " + scanned + " (estimated " + estimatedScanned
+                    + "), returned " + returned + " (estimated " + estimatedReturned + ")";
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The storage of a {@link Snapshot}. Documents are read by the engine of the database the snapshot was taken from,
+ * every change to them is refused.
+ */
+class ReadOnlyStorage implements Storage {
+    private final Storage storage;
+
+    ReadOnlyStorage(@NonNull Storage storage) {
+        this.storage = storage;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> read(@NonNull File document) throws IOException {
+        return storage.read(document);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, Object> readFields(@NonNull File document, @NonNull Set<String> fields) throws IOException {
+        return storage.readFields(document, fields);
+    }
+
+    @Override
+    public long write(@NonNull File document, @NonNull Map<String, Object> data) {
+        throw refused(document);
+    }
+
+    @Override
+    public long update(@NonNull File document, @NonNull Map<String, Object> data, @NonNull String field) {
+        throw refused(document);
+    }
+
+    @Override
+    public boolean exists(@NonNull File document) {
+        return storage.exists(document);
+    }
+
+    @Override
+    public long size(@NonNull File document) {
+        return storage.size(document);
+    }
+
+    /**
+     * Does nothing for an existing document, which is opened without being created.
+     */
+    @Override
+    public boolean create(@NonNull File document) {
+        if (storage.exists(document))
+            return false;
+        throw new ClorastoreException("Document " + Document.nameOf(document) + " does not exist in the snapshot", Reasons.NO_DOC_EXIST);
+    }
+
+    @Override
+    public void list(@NonNull File collection, @NonNull BiConsumer<String, Long> documents) {
+        storage.list(collection, documents);
+    }
+
+    @Override
+    public void forget(@NonNull File collection) {
+        storage.forget(collection);
+    }
+
+    @Override
+    public void setFormat(@NonNull DocumentFormat format) {
+    }
+
+    @Override
+    public void setDurability(@NonNull Durability durability, long syncInterval) {
+    }
+
+    @Override
+    public boolean delete(@NonNull File document) {
+        throw refused(document);
+    }
+
+    @Override
+    public void sync(@NonNull File document) {
+    }
+
+    @Override
+    public void commit(@NonNull File document) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void flush(@NonNull Set<File> documents) {
+    }
+
+    @Override
+    public void checkpoint() {
+    }
+
+    @Override
+    public void close() {
+        storage.discard();
+    }
+
+    @Override
+    public void discard() {
+        storage.discard();
+    }
+
+    private static ClorastoreException refused(File document) {
+        return new ClorastoreException("Unable to modify document " + Document.nameOf(document) + ", a snapshot is read-only", Reasons.READ_ONLY);
+    }
+}
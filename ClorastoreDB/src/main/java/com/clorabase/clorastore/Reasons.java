@@ -10,5 +10,5 @@ public enum Reasons {
     NO_DOC_EXIST,
     IO_ERROR,
     INVALID_DATATYPE,
-    DATABSE_DIRECTORY_NOT_WRITABLE, DOC_SIZE_EXCEED
+    DATABSE_DIRECTORY_NOT_WRITABLE, DOC_SIZE_EXCEED, READ_ONLY, DATABASE_LOCKED
 }
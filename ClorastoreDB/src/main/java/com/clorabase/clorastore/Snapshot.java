@@ -0,0 +1,63 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+/**
+ * A read-only view of the database as it was when the snapshot was taken, see {@link Clorastore#snapshot()}. Documents,
+ * collections and queries of the snapshot are used like the ones of the database, and do not see the changes made to
+ * the database after the snapshot was taken. Every write to the snapshot throws a {@link ClorastoreException} with
+ * {@link Reasons#READ_ONLY}.
+ * <p>
+ * The files of the snapshot are kept in the database until the snapshot is closed. Close it once it is not used anymore.
+ */
+public class Snapshot implements AutoCloseable {
+    private final Clorastore db;
+    private final File root;
+    private final long time;
+
+    Snapshot(@NonNull Clorastore db, @NonNull File root, long time) {
+        this.db = db;
+        this.root = root;
+        this.time = time;
+    }
+
+    /**
+     * Returns the root of the database, as it was when the snapshot was taken.
+     * @return {@link Collection}
+     */
+    public @NonNull Collection getDatabase() {
+        return db.getDatabase();
+    }
+
+    /**
+     * Returns the collection defined by the relative path from the root of the database, as it was when the snapshot was taken.
+     * @param relativePath Relative path of the connection from the root.
+     * @return {@link Collection}
+     * @throws ClorastoreException If relativePath does not denotes a collection which existed when the snapshot was taken.
+     */
+    public @NonNull Collection getDatabase(@NonNull String relativePath) {
+        return db.getDatabase(relativePath);
+    }
+
+    /**
+     * Returns the time at which the snapshot was taken.
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Deletes the files of the snapshot. The snapshot can not be used anymore.
+     */
+    @Override
+    public void close() {
+        db.expirations.close();
+        db.storage.discard();
+        FileUtils.deleteQuietly(root);
+    }
+}
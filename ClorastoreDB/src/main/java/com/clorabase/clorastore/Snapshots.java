@@ -0,0 +1,316 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Takes the snapshots of a database, and backs it up incrementally from them.
+ * <p>
+ * A snapshot is a copy of the directory of the database, in its metadata directory, made of hard links to the files of
+ * the database. Taking it costs a link per file, whatever the size of the documents is. The documents and the snapshots
+ * of the indexes are never modified in place, a new file is renamed over them, so a linked file keeps the content it had
+ * when the snapshot was taken. The files which are appended to in place (the journals, the logs and the active segment
+ * of a packed collection) are copied instead. The writers are blocked while the files are linked, after the changes
+ * kept in the memory by the storage are written to the files. The files which are appended to are only opened and
+ * measured meanwhile, and copied up to that length once the writers are released.
+ * <p>
+ * A backup keeps the snapshot it was made from, and records its name in the backup. The next backup to the same directory
+ * compares the new snapshot with it: a file linked by both is the same file, so only the files which were replaced,
+ * added or deleted since the previous backup are copied or deleted. The data copied is then proportional to the changes,
+ * not to the size of the database.
+ */
+final class Snapshots {
+    private static final String DIR = "snapshots";
+    private static final String VIEW_PREFIX = "snapshot-";
+    private static final String BACKUP_PREFIX = "backup-";
+    private static final String BACKUP_FILE = "backup.snapshot";
+    private final Clorastore db;
+    private final File root;
+    private final File dir;
+    // Cleared once the file system refused a hard link, the files are then copied
+    private volatile boolean links = true;
+
+    Snapshots(@NonNull Clorastore db, @NonNull File root) {
+        this.db = db;
+        this.root = root;
+        this.dir = new File(Collection.metadataDir(root), DIR);
+    }
+
+    /**
+     * Takes a snapshot, to be read by a {@link Snapshot}.
+     *
+     * @return The directory of the snapshot.
+     */
+    @NonNull
+    File take() throws IOException {
+        return take(VIEW_PREFIX);
+    }
+
+    /**
+     * Copies the files which changed since the previous backup to the directory, and deletes the ones which were deleted.
+     * The directory is entirely copied if it holds no backup, or if the snapshot of its backup is not found.
+     *
+     * @return The number of files copied.
+     */
+    long backup(@NonNull File target) throws IOException {
+        var marker = new File(Collection.metadataDir(target), BACKUP_FILE);
+        File base = null;
+        if (marker.isFile()) {
+            var name = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+            var previous = new File(dir, name);
+            if (name.startsWith(BACKUP_PREFIX) && previous.isDirectory())
+                base = previous;
+        }
+
+        var snapshot = take(BACKUP_PREFIX);
+        long copied;
+        try {
+            copied = copy(snapshot, base, target);
+            AtomicFile.write(marker, snapshot.getName().getBytes(StandardCharsets.UTF_8), true);
+            // Writing the marker may have created the metadata directory of the backup
+            target.setLastModified(snapshot.lastModified());
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(snapshot);
+            throw e;
+        }
+        if (base != null)
+            FileUtils.deleteQuietly(base);
+        return copied;
+    }
+
+    /**
+     * Deletes the snapshots which were not closed before the process stopped. The snapshots of the backups are kept.
+     */
+    void recover() {
+        var views = dir.listFiles((parent, name) -> name.startsWith(VIEW_PREFIX));
+        if (views != null) {
+            for (File view : views)
+                FileUtils.deleteQuietly(view);
+        }
+    }
+
+    @SuppressWarnings("try")
+    private File take(String prefix) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        var snapshot = Files.createTempDirectory(dir.toPath(), prefix).toFile();
+        var appended = new ArrayList<Append>();
+        try {
+            try (var barrier = db.versions.exclusive()) {
+                db.storage.checkpoint();
+                db.catalog.flush();
+                link(root, snapshot, -1, appended);
+            }
+            for (Append append : appended)
+                append.copy();
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(snapshot);
+            throw e;
+        } finally {
+            for (Append append : appended)
+                append.close();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Links, or copies, every file of the directory into the snapshot. The directories of the snapshot get the modification
+     * time of the ones of the database, so that their manifests are not rebuilt. The markers of the modified manifests and
+     * indexes are left out, as they match the documents once they are all written.
+     *
+     * @param active   The id of the first segment of the directory which may be appended to, -1 for the last one.
+     * @param appended Receives the files which are appended to, to be copied later. Their copy is created empty, so that
+     *                 the modification time of the directory does not change when they are copied.
+     */
+    private void link(File source, File target, int active, List<Append> appended) throws IOException {
+        if (!target.isDirectory() && !target.mkdirs())
+            throw new IOException("Unable to create " + target);
+        var files = source.listFiles();
+        if (files == null)
+            throw new IOException("Unable to list " + source);
+
+        if (active < 0) {
+            for (File file : files)
+                active = Math.max(active, segmentId(file.getName()));
+        }
+        for (File file : files) {
+            var name = file.getName();
+            var copy = new File(target, name);
+            if (file.isDirectory()) {
+                if (file.equals(dir))
+                    continue;
+                if (name.equals(Collection.METADATA_DIR) && db.storage instanceof PackedStorage)
+                    ((PackedStorage) db.storage).copySegments(source, id -> link(file, copy, id, appended));
+                else
+                    link(file, copy, -1, appended);
+            } else if (!name.endsWith(".tmp") && !name.equals(Clorastore.LOCK_FILE) && !name.endsWith(FieldIndex.MARKER_SUFFIX)) {
+                try {
+                    var segment = segmentId(name);
+                    if (isAppended(name) || (segment >= 0 && segment >= active))
+                        appended.add(new Append(file, copy));
+                    else if (!links || !createLink(copy, file))
+                        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                } catch (NoSuchFileException e) {
+                    // Deleted by the storage meanwhile, e.g a rotated log which was folded
+                }
+            }
+        }
+        target.setLastModified(source.lastModified());
+    }
+
+    private boolean createLink(File link, File file) throws IOException {
+        try {
+            Files.createLink(link.toPath(), file.toPath());
+            return true;
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            // A file system without hard links
+            links = false;
+            return false;
+        }
+    }
+
+    /**
+     * Copies the files of the snapshot which are not in the base snapshot, or which changed since it, to the target.
+     * The files of the base which are not in the snapshot anymore are deleted from the target.
+     */
+    private long copy(File source, File base, File target) throws IOException {
+        if (!target.isDirectory() && !target.mkdirs())
+            throw new IOException("Unable to create " + target);
+        var files = source.listFiles();
+        if (files == null)
+            throw new IOException("Unable to list " + source);
+
+        var copied = 0L;
+        for (File file : files) {
+            var name = file.getName();
+            var previous = base == null ? null : new File(base, name);
+            var copy = new File(target, name);
+            if (file.isDirectory()) {
+                copied += copy(file, previous != null && previous.isDirectory() ? previous : null, copy);
+            } else if (previous == null || !copy.isFile() || changed(file, previous, isAppended(name) || segmentId(name) >= 0)) {
+                var temp = new File(copy.getPath() + ".tmp");
+                Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                AtomicFile.rename(temp, copy);
+                copied++;
+            }
+        }
+
+        if (base != null) {
+            var names = base.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (!new File(source, name).exists())
+                        FileUtils.deleteQuietly(new File(target, name));
+                }
+            }
+        }
+        target.setLastModified(source.lastModified());
+        return copied;
+    }
+
+    /**
+     * Returns whether the file of a snapshot changed since the base snapshot.
+     *
+     * @param copied Whether the file may be copied into the snapshots instead of linked.
+     */
+    private boolean changed(File file, File previous, boolean copied) throws IOException {
+        BasicFileAttributes old;
+        try {
+            old = Files.readAttributes(previous.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        var attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (attributes.fileKey() != null && attributes.fileKey().equals(old.fileKey()))
+            return false;
+        // A linked file which is not the same file anymore was replaced
+        if (!copied && links && attributes.fileKey() != null)
+            return true;
+        return attributes.size() != old.size() || !attributes.lastModifiedTime().equals(old.lastModifiedTime());
+    }
+
+    /**
+     * Returns whether the file is appended to in place, so that it must be copied into a snapshot.
+     */
+    private static boolean isAppended(String name) {
+        return name.endsWith(".journal") || name.equals(LogStorage.LOG_FILE) || name.equals(LogStorage.ROTATED_FILE) || name.equals(Expirations.REGISTRY_FILE);
+    }
+
+    /**
+     * Returns the id of the segment of a packed collection, or -1 if the file is not a segment.
+     */
+    private static int segmentId(String name) {
+        if (!name.startsWith(PackedStorage.SEGMENT_FILE))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(PackedStorage.SEGMENT_FILE.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * A file which is appended to, opened while the writers are blocked. The records appended after are not copied, the
+     * file is copied up to its length at that time. A log or a journal which is replaced meanwhile is still read, as it
+     * stays open.
+     */
+    private static final class Append implements Closeable {
+        private final File target;
+        private final FileChannel channel;
+        private final long length;
+        private final FileTime modified;
+
+        Append(File source, File target) throws IOException {
+            this.target = target;
+            this.channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            try {
+                this.length = channel.size();
+                this.modified = Files.getLastModifiedTime(source.toPath());
+                Files.createFile(target.toPath());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void copy() throws IOException {
+            try (var out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                var position = 0L;
+                while (position < length) {
+                    var count = channel.transferTo(position, length - position, out);
+                    if (count <= 0)
+                        throw new IOException("Unable to copy " + target.getName() + ", it was truncated");
+                    position += count;
+                }
+            }
+            Files.setLastModifiedTime(target.toPath(), modified);
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Only read
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Sorts documents by the value of a field, without holding the documents in the memory. Only the value of the field
+ * and the name of the document are sorted. A bounded sort keeps the best entries in a heap, an unbounded sort spills
+ * sorted runs to temporary files once they exceeds the memory budget and merges them.
+ */
+final class Sorter {
+    static final int RUN_SIZE = 100_000;
+
+    private Sorter() {}
+
+    /**
+     * Returns the order of the entries. Values are ordered as in {@link FieldIndex.Key}, and documents having the same value
+     * are ordered by their name, so that the order is always the same.
+     */
+    static Comparator<Entry> order(boolean ascending) {
+        Comparator<Entry> order = Comparator.comparing((Entry entry) -> entry.key).thenComparing(entry -> entry.name);
+        return ascending ? order : order.reversed();
+    }
+
+    /**
+     * Returns the first <code>k</code> entries in the order, sorted. Only <code>k</code> entries are held in the memory.
+     */
+    @NonNull
+    static List<Entry> top(@NonNull Stream<Entry> entries, @NonNull Comparator<Entry> order, long k) {
+        if (k == 0)
+            return new ArrayList<>();
+
+        var heap = new PriorityQueue<>(order.reversed());
+        entries.forEach(entry -> {
+            if (heap.size() < k) {
+                heap.add(entry);
+            } else if (order.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        });
+
+        var top = new ArrayList<>(heap);
+        top.sort(order);
+        return top;
+    }
+
+    /**
+     * Sorts all the entries. Entries are sorted in runs of {@link #RUN_SIZE}, which are written to temporary files
+     * if there are more than one, and then merged lazily. The temporary files are deleted when the stream is closed.
+     */
+    @NonNull
+    static Stream<Entry> sort(@NonNull Stream<Entry> entries, @NonNull Comparator<Entry> order, int runSize) {
+        var runs = new ArrayList<File>();
+        var run = new ArrayList<Entry>();
+        try {
+            var iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                run.add(iterator.next());
+                if (run.size() >= runSize) {
+                    runs.add(spill(run, order));
+                    run.clear();
+                }
+            }
+        } catch (IOException e) {
+            runs.forEach(File::delete);
+            throw new UncheckedIOException(e);
+        }
+
+        run.sort(order);
+        if (runs.isEmpty())
+            return run.stream();
+
+        var merge = new Merge(runs, run, order);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merge, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(merge::close);
+    }
+
+    private static File spill(List<Entry> run, Comparator<Entry> order) throws IOException {
+        run.sort(order);
+        var file = File.createTempFile("clorastore-sort", ".run");
+        try (var writer = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8))) {
+            for (Entry entry : run) {
+                var line = new JsonArray();
+                line.add(entry.name);
+                line.add(entry.key.toJson());
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+
+    /**
+     * A document and the value of the sorted field in it.
+     */
+    static final class Entry {
+        final FieldIndex.Key key;
+        final String name;
+
+        Entry(FieldIndex.Key key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+    }
+
+
+    /**
+     * Merges sorted runs, holding only the head of every run in the memory.
+     */
+    private static final class Merge implements Iterator<Entry> {
+        private final List<File> files;
+        private final List<BufferedReader> readers = new ArrayList<>();
+        private final PriorityQueue<Head> heads;
+
+        Merge(List<File> files, List<Entry> memory, Comparator<Entry> order) {
+            this.files = files;
+            this.heads = new PriorityQueue<>((a, b) -> order.compare(a.entry, b.entry));
+            var iterator = memory.iterator();
+            if (iterator.hasNext())
+                heads.add(new Head(iterator.next(), iterator::hasNext, iterator::next));
+
+            try {
+                for (File file : files) {
+                    var reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8));
+                    readers.add(reader);
+                    var head = read(reader);
+                    if (head != null)
+                        heads.add(new Head(head, () -> true, () -> read(reader)));
+                }
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Entry next() {
+            var head = heads.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+
+            var entry = head.entry;
+            if (head.more.getAsBoolean()) {
+                var next = head.next.get();
+                if (next != null)
+                    heads.add(new Head(next, head.more, head.next));
+            }
+            if (heads.isEmpty())
+                close();
+            return entry;
+        }
+
+        void close() {
+            for (BufferedReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // The run is deleted anyway
+                }
+            }
+            readers.clear();
+            files.forEach(File::delete);
+        }
+
+        private static Entry read(BufferedReader reader) {
+            try {
+                var line = reader.readLine();
+                if (line == null)
+                    return null;
+                var array = JsonParser.parseString(line).getAsJsonArray();
+                return new Entry(FieldIndex.Key.of(array.get(1)), array.get(0).getAsString());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static final class Head {
+            final Entry entry;
+            final BooleanSupplier more;
+            final Supplier<Entry> next;
+
+            Head(Entry entry, BooleanSupplier more, Supplier<Entry> next) {
+                this.entry = entry;
+                this.more = more;
+                this.next = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A storage engine, which decides how the documents are laid out on the disk. A document is identified by the path
+ * of its <code>.doc</code> file in its collection, whatever the engine is, but the file exists only if the engine
+ * stores the document in it. Existence, size and listing of the documents are then always asked to the engine.
+ *
+ * @see StorageMode
+ */
+interface Storage {
+
+    /**
+     * Reads the data of the document, including the changes which are not yet written to the disk.
+     *
+     * @return The data of the document, empty if the document is empty.
+     */
+    @NonNull
+    Map<String, Object> read(@NonNull File document) throws IOException;
+
+    /**
+     * Reads only the provided fields of the document, skipping the others without parsing them.
+     *
+     * @return The fields of the document which are present, among the provided ones.
+     */
+    @NonNull
+    Map<String, Object> readFields(@NonNull File document, @NonNull Set<String> fields) throws IOException;
+
+    /**
+     * Replaces all the data of the document.
+     *
+     * @return The approximate size of the document, in bytes.
+     */
+    long write(@NonNull File document, @NonNull Map<String, Object> data);
+
+    /**
+     * Writes a single field of the document.
+     *
+     * @param data  The whole data of the document, including the new value of the field.
+     * @param field The field which has changed.
+     * @return The approximate size of the document, in bytes.
+     */
+    long update(@NonNull File document, @NonNull Map<String, Object> data, @NonNull String field);
+
+    /**
+     * Returns whether the document exists, even if it is empty.
+     */
+    boolean exists(@NonNull File document);
+
+    /**
+     * Returns the size of the stored document in bytes, 0 if it is empty or does not exist.
+     */
+    long size(@NonNull File document);
+
+    /**
+     * Creates the document, empty, if it does not exist.
+     *
+     * @return true if the document is created, false if it already existed.
+     */
+    boolean create(@NonNull File document) throws IOException;
+
+    /**
+     * Lists the documents stored in the collection, with their size. Used to rebuild the manifest of the collection.
+     *
+     * @param documents Receives the name of every document, without the .doc extension, and its size.
+     */
+    void list(@NonNull File collection, @NonNull BiConsumer<String, Long> documents);
+
+    /**
+     * Releases the resources of a collection which is deleted.
+     */
+    void forget(@NonNull File collection);
+
+    /**
+     * Sets the format in which the documents are written from now on. Documents are read in any format.
+     */
+    void setFormat(@NonNull DocumentFormat format);
+
+    /**
+     * Sets how the changes are synced to the device from now on.
+     *
+     * @param syncInterval The interval at which the changes are synced with {@link Durability#PERIODIC}, in milliseconds.
+     */
+    void setDurability(@NonNull Durability durability, long syncInterval);
+
+    /**
+     * Deletes the document.
+     *
+     * @return true if the document existed and is deleted, false otherwise.
+     */
+    boolean delete(@NonNull File document);
+
+    /**
+     * Blocks until the changes of the document are written to its file.
+     *
+     * @throws ClorastoreException If writing the changes of the document failed.
+     */
+    void sync(@NonNull File document);
+
+    /**
+     * Blocks until the changes of the document are synced to the device, if the durability requires the writes to wait
+     * for it. Called by the writes after releasing the lock of the document, so that other writers are not blocked meanwhile.
+     *
+     * @throws ClorastoreException If writing the changes of the document failed.
+     */
+    void commit(@NonNull File document);
+
+    /**
+     * Blocks until all the changes are written to the disk.
+     *
+     * @throws ClorastoreException If writing any change failed.
+     */
+    void flush();
+
+    /**
+     * Blocks until the changes of the documents are written to the disk, and synced to the device whatever the durability is.
+     * The changes of the other documents are not waited for, and every collection is synced once.
+     *
+     * @throws ClorastoreException If writing the changes of any of the documents failed.
+     */
+    void flush(@NonNull Set<File> documents);
+
+    /**
+     * Writes the changes kept in the memory to the files, so that a copy of the files holds all the documents. Called
+     * by a {@link Snapshot} while the writes are blocked, the resources of the engine are kept.
+     */
+    void checkpoint();
+
+    /**
+     * Writes all the changes to the disk and releases the resources (threads, open files) held by the engine.
+     * The engine can still be used after closing it.
+     */
+    void close();
+
+    /**
+     * Discards all the changes which are not yet written. Used when the whole database is deleted.
+     */
+    void discard();
+}
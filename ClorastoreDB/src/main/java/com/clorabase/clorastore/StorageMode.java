@@ -0,0 +1,26 @@
+package com.clorabase.clorastore;
+
+/**
+ * The storage engines which a database can use to store its documents.
+ *
+ * @see Clorastore#setStorageMode(StorageMode)
+ */
+public enum StorageMode {
+    /**
+     * Every document is stored as a JSON file, which is rewritten on every change. This is the default mode.
+     */
+    FILES,
+    /**
+     * Changes to the documents are appended as small records to a log in their collection, and folded into the
+     * document files in the background once the log grows large. Changing a field of a large document then costs
+     * only the size of the change, instead of the size of the document.
+     */
+    LOG,
+    /**
+     * The documents of a collection are appended to a few large segment files, with an index of their offsets, instead
+     * of a file per document. Opening a document reads it from the segment mapped in the memory, without opening a file,
+     * and small documents do not take a block of the disk each. Scanning large collections of small documents is then
+     * much faster. The segments are compacted in the background once they hold more overwritten documents than live ones.
+     */
+    PACKED
+}
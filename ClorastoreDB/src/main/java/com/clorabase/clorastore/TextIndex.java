@@ -0,0 +1,349 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An inverted index of the words of a string field of the documents of a single collection. Every word is mapped
+ * to the documents containing it (its posting list), and the words are kept sorted so that all the words starting
+ * with a prefix are found in O(log n). Documents containing some words, or words starting with a prefix, are then
+ * found without opening any document.
+ * <p>
+ * Words are split on every character which is not a letter or a digit, and are compared in lower case and without
+ * accents. The strings of a list are indexed as well.
+ * <p>
+ * Like {@link FieldIndex}, the index is persisted as a snapshot file holding the words of every document and a journal
+ * of the changes made after the snapshot was written, which is folded back into the snapshot once it grows larger than it.
+ * It is also marked as modified until the database is closed, and rebuilt from the documents if it was left marked.
+ */
+class TextIndex {
+    private static final int MIN_JOURNAL_SIZE = 1024;
+    private static final String[] NO_WORDS = new String[0];
+    private final String field;
+    private final File snapshot;
+    private final File journal;
+    private final File marker;
+    private final TreeMap<String, Set<String>> postings = new TreeMap<>();
+    private final Map<String, String[]> words = new HashMap<>();
+    private int journalSize;
+    private boolean dirty;
+
+    TextIndex(@NonNull String field, @NonNull File snapshot) {
+        this.field = field;
+        this.snapshot = snapshot;
+        this.journal = new File(snapshot.getPath() + ".journal");
+        this.marker = new File(snapshot.getPath() + FieldIndex.MARKER_SUFFIX);
+    }
+
+    @NonNull
+    String getField() {
+        return field;
+    }
+
+    /**
+     * Splits the value of a field into its distinct words, in lower case and without accents. Returns no word if the
+     * value is not a string or a list.
+     */
+    @NonNull
+    static String[] words(Object value) {
+        if (value instanceof String)
+            return tokenize((String) value).toArray(NO_WORDS);
+        if (value instanceof List) {
+            var words = new LinkedHashSet<String>();
+            for (Object item : (List<?>) value) {
+                if (item instanceof String)
+                    words.addAll(tokenize((String) item));
+            }
+            return words.toArray(NO_WORDS);
+        }
+        return NO_WORDS;
+    }
+
+    private static Set<String> tokenize(String text) {
+        var normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        var words = new LinkedHashSet<String>();
+        var word = new StringBuilder();
+        for (int i = 0; i < normalized.length(); ) {
+            var c = normalized.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c))
+                word.appendCodePoint(c);
+            else if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0)
+            words.add(word.toString());
+        return words;
+    }
+
+    /**
+     * Loads the index from the snapshot and replays the journal on top of it.
+     *
+     * @return false if the index was modified by a process which stopped without closing the database. The index may then
+     * not match the documents on the disk, it must be rebuilt from them.
+     */
+    synchronized boolean load() throws IOException {
+        clear();
+        dirty = marker.exists();
+        if (dirty)
+            return false;
+        if (snapshot.exists()) {
+            try (var reader = new JsonReader(new FileReader(snapshot, StandardCharsets.UTF_8))) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    var entry = JsonParser.parseReader(reader).getAsJsonArray();
+                    apply(entry.get(0).getAsString(), toWords(entry.get(1).getAsJsonArray()));
+                }
+                reader.endArray();
+            }
+        }
+
+        journalSize = 0;
+        var torn = false;
+        if (journal.exists()) {
+            try (var reader = new BufferedReader(new FileReader(journal, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty())
+                        continue;
+                    // Only the last line may be partially written
+                    if (torn)
+                        throw new IOException("Corrupted journal " + journal.getName());
+                    JsonArray entry;
+                    try {
+                        entry = JsonParser.parseString(line).getAsJsonArray();
+                    } catch (RuntimeException e) {
+                        torn = true;
+                        continue;
+                    }
+                    apply(entry.get(0).getAsString(), entry.size() > 1 ? toWords(entry.get(1).getAsJsonArray()) : null);
+                    journalSize++;
+                }
+            }
+        }
+        if (torn)
+            // The next changes are not appended after the partially written line
+            compact();
+        return true;
+    }
+
+    /**
+     * Rebuilds the index from scratch with the provided document values.
+     *
+     * @param values Document name and the value of the field in it (may be null when the field is absent).
+     */
+    synchronized void rebuild(@NonNull Map<String, Object> values) throws IOException {
+        markDirty();
+        clear();
+        values.forEach((doc, value) -> apply(doc, words(value)));
+        compact();
+    }
+
+    /**
+     * Updates the words of the field for a document.
+     */
+    synchronized void update(@NonNull String doc, Object value) {
+        var updated = words(value);
+        var old = words.get(doc);
+        if (old == null ? updated.length == 0 : Arrays.equals(old, updated))
+            return;
+        apply(doc, updated);
+        log(doc, updated);
+    }
+
+    /**
+     * Removes a document from the index.
+     */
+    synchronized void remove(@NonNull String doc) {
+        if (words.containsKey(doc)) {
+            apply(doc, null);
+            log(doc, null);
+        }
+    }
+
+    /**
+     * Returns the documents containing all the words, the last one being only a prefix of a word if prefix is true.
+     * Looks up the rarest word first and stops as soon as no document is left.
+     */
+    synchronized Set<String> search(@NonNull String[] terms, boolean prefix) {
+        if (terms.length == 0)
+            return new LinkedHashSet<>();
+
+        var exact = prefix ? terms.length - 1 : terms.length;
+        var lookups = new ArrayList<Set<String>>(exact);
+        for (int i = 0; i < exact; i++) {
+            var docs = postings.get(terms[i]);
+            if (docs == null)
+                return new LinkedHashSet<>();
+            lookups.add(docs);
+        }
+        lookups.sort(Comparator.comparingInt(Set::size));
+
+        Set<String> matched;
+        var next = 0;
+        if (prefix) {
+            // The words starting with the prefix are contiguous in the sorted words
+            var last = terms[exact];
+            var smallest = lookups.isEmpty() ? null : lookups.get(next++);
+            matched = new LinkedHashSet<>();
+            for (Set<String> docs : postings.subMap(last, true, last + Character.MAX_VALUE, true).values()) {
+                if (smallest == null) {
+                    matched.addAll(docs);
+                } else {
+                    for (String doc : docs) {
+                        if (smallest.contains(doc))
+                            matched.add(doc);
+                    }
+                }
+            }
+        } else {
+            matched = new LinkedHashSet<>(lookups.get(next++));
+        }
+        for (int i = next; i < lookups.size() && !matched.isEmpty(); i++)
+            matched.retainAll(lookups.get(i));
+        return matched;
+    }
+
+    /**
+     * Returns the number of distinct words in the index.
+     */
+    synchronized int size() {
+        return postings.size();
+    }
+
+    /**
+     * Writes a new snapshot if the index was modified, and records that it matches the documents. Called when the database
+     * is closed, once all its documents are written.
+     */
+    synchronized void close() {
+        if (!dirty)
+            return;
+        try {
+            compact();
+            if (marker.delete())
+                dirty = false;
+        } catch (IOException e) {
+            // The index is rebuilt the next time it is loaded
+        }
+    }
+
+    synchronized void delete() {
+        clear();
+        snapshot.delete();
+        journal.delete();
+        marker.delete();
+        dirty = false;
+    }
+
+    private void clear() {
+        postings.clear();
+        words.clear();
+    }
+
+    private void apply(String doc, String[] updated) {
+        var old = words.remove(doc);
+        if (old != null) {
+            for (String word : old) {
+                var docs = postings.get(word);
+                docs.remove(doc);
+                if (docs.isEmpty())
+                    postings.remove(word);
+            }
+        }
+        if (updated != null && updated.length > 0) {
+            words.put(doc, updated);
+            for (String word : updated)
+                postings.computeIfAbsent(word, k -> new TreeSet<>()).add(doc);
+        }
+    }
+
+    private static String[] toWords(JsonArray array) {
+        var words = new String[array.size()];
+        for (int i = 0; i < words.length; i++)
+            words[i] = array.get(i).getAsString();
+        return words;
+    }
+
+    private void log(String doc, String[] updated) {
+        try {
+            markDirty();
+            if (journalSize >= Math.max(MIN_JOURNAL_SIZE, words.size())) {
+                compact();
+                return;
+            }
+
+            var entry = new JsonArray();
+            entry.add(doc);
+            if (updated != null) {
+                var array = new JsonArray(updated.length);
+                for (String word : updated)
+                    array.add(word);
+                entry.add(array);
+            }
+            try (var writer = new FileWriter(journal, StandardCharsets.UTF_8, true)) {
+                writer.write(entry + "\n");
+            }
+            journalSize++;
+        } catch (IOException e) {
+            throw new ClorastoreException("An IO error occurred while updating text index of field '" + field + "'. Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+        }
+    }
+
+    private void compact() throws IOException {
+        var temp = new File(snapshot.getPath() + ".tmp");
+        try (var writer = new JsonWriter(new BufferedWriter(new FileWriter(temp, StandardCharsets.UTF_8)))) {
+            writer.beginArray();
+            for (var entry : words.entrySet()) {
+                writer.beginArray().value(entry.getKey()).beginArray();
+                for (String word : entry.getValue())
+                    writer.value(word);
+                writer.endArray().endArray();
+            }
+            writer.endArray();
+        }
+        if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot)))
+            throw new IOException("Unable to replace " + snapshot.getName());
+        journal.delete();
+        journalSize = 0;
+    }
+
+    /**
+     * Records that the index may be ahead of the documents on the disk, which are written in the background, until the
+     * database is closed. The index is rebuilt from the documents if the process stops before.
+     */
+    private void markDirty() throws IOException {
+        if (dirty)
+            return;
+        AtomicFile.write(marker, new byte[0], true);
+        AtomicFile.syncDirectory(marker.getParentFile());
+        dirty = true;
+    }
+}
@@ -0,0 +1,141 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel, which runs tasks at their deadline on a single background thread. The wheel is a ring of slots,
+ * each covering one tick of time. A task is put in the slot of its deadline, in O(1), whatever the number of pending
+ * tasks is. At every tick, the thread visits the slot of the current tick only, and runs the tasks of that slot which
+ * are due; the tasks due in a later round of the wheel stay in it. So the work of the wheel depends on the number of
+ * tasks which are due, not on the number of pending tasks.
+ * <p>
+ * Tasks run with a precision of one tick. The thread is started by the first task and stopped by {@link #stop()}; the
+ * pending tasks are kept and the thread is started again by the next task, catching up with the ticks it missed.
+ */
+final class TimerWheel {
+    private final long tick;
+    private final Slot[] slots;
+    private final String name;
+    // The first tick whose slot was not visited yet
+    private long current;
+    private Thread thread;
+
+    TimerWheel(@NonNull String name, long tick, int size) {
+        if (Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("The size of the wheel must be a power of 2");
+        this.name = name;
+        this.tick = tick;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot();
+    }
+
+    /**
+     * Runs the task at the deadline, or at the next tick if it is already passed.
+     *
+     * @param deadline The time to run the task at, in milliseconds since the epoch.
+     */
+    synchronized void schedule(long deadline, @NonNull Runnable task) {
+        if (thread == null) {
+            // Restarted, the ticks missed while stopped are visited first
+            var now = System.currentTimeMillis() / tick;
+            current = current == 0 ? now : Math.min(current, now);
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        var ticks = Math.max(deadline / tick, current);
+        slots[(int) (ticks & (slots.length - 1))].timeouts.add(new Timeout(deadline, task));
+    }
+
+    /**
+     * Stops the thread of the wheel. The pending tasks are not run until a new task is scheduled.
+     */
+    synchronized void stop() {
+        // Not interrupted, as an interrupt would close the channels used by a running task
+        thread = null;
+        notifyAll();
+    }
+
+    /**
+     * Stops the thread of the wheel and forgets the pending tasks.
+     */
+    synchronized void clear() {
+        stop();
+        for (Slot slot : slots)
+            slot.timeouts.clear();
+    }
+
+    private void run() {
+        var self = Thread.currentThread();
+        while (true) {
+            List<Runnable> due;
+            synchronized (this) {
+                if (thread != self)
+                    return;
+                var now = System.currentTimeMillis();
+                var wait = (current + 1) * tick - now;
+                if (wait > 0) {
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        thread = null;
+                        return;
+                    }
+                    continue;
+                }
+                due = expire(now);
+            }
+            for (Runnable task : due) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // A task reports its own failures, the other tasks must still run
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the due tasks of the slots of the ticks which ended since the last call. If the thread was late by more than
+     * a whole round, every slot is visited once.
+     */
+    private List<Runnable> expire(long now) {
+        var due = new ArrayList<Runnable>();
+        var last = now / tick - 1;
+        var passed = Math.min(last - current + 1, slots.length);
+        for (long i = 0; i < passed; i++) {
+            var slot = slots[(int) ((current + i) & (slots.length - 1))];
+            slot.timeouts.removeIf(timeout -> {
+                if (timeout.deadline > now)
+                    return false;
+                due.add(timeout.task);
+                return true;
+            });
+        }
+        current = last + 1;
+        return due;
+    }
+
+
+    /**
+     * The timeouts of a slot of the wheel.
+     */
+    private static final class Slot {
+        private final List<Timeout> timeouts = new ArrayList<>();
+    }
+
+
+    private static final class Timeout {
+        private final long deadline;
+        private final Runnable task;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Imports and exports the documents of a collection as a stream, without going through {@link Document}.
+ * <p>
+ * In the {@link DocumentFormat#JSON JSON} format, the stream is newline delimited JSON: one object per line, holding the
+ * name of the document and its data, e.g <code>{"id":"user1","data":{"name":"John","age":25}}</code>. In the
+ * {@link DocumentFormat#BINARY BINARY} format, the stream starts with a magic number, followed by the name of every
+ * document and its content in the binary format of the documents, so numbers keep their exact type.
+ * <p>
+ * An export reads the documents one by one, in the order of their name. An import reads the stream on the calling thread
+ * and parses and writes the documents on the executor of the database, in chunks. Documents are spread among a fixed number
+ * of lanes by their name and every lane writes its chunks in order, so when a document appears more than once in the
+ * stream the last one wins. Only a few chunks are held in the memory at any time, whatever the size of the stream is.
+ */
+final class Transfer {
+    private static final int MAGIC = 0x43534458; // CSDX
+    private static final int CHUNK_SIZE = 1000;
+    private static final String ID = "id";
+    private static final String DATA = "data";
+    private static final Gson gson = new Gson();
+
+    private Transfer() {}
+
+    /**
+     * Writes all the documents of the collection to the stream.
+     *
+     * @return The number of documents written.
+     */
+    static long export(@NonNull Clorastore db, @NonNull File collection, @NonNull OutputStream out, @NonNull DocumentFormat format) throws IOException {
+        db.expirations.reap(collection);
+        var count = 0L;
+        if (format == DocumentFormat.BINARY) {
+            var stream = new DataOutputStream(new BufferedOutputStream(out));
+            stream.writeInt(MAGIC);
+            for (String name : db.catalog.of(collection).documents(null, Integer.MAX_VALUE)) {
+                var data = read(db, new File(collection, name + ".doc"));
+                if (data == null)
+                    continue;
+                var content = BinaryCodec.encode(data);
+                stream.writeUTF(name);
+                stream.writeInt(content.length);
+                stream.write(content);
+                count++;
+            }
+            stream.flush();
+        } else {
+            Writer writer = new OutputStreamWriter(new BufferedOutputStream(out), StandardCharsets.UTF_8);
+            for (String name : db.catalog.of(collection).documents(null, Integer.MAX_VALUE)) {
+                var data = read(db, new File(collection, name + ".doc"));
+                if (data == null)
+                    continue;
+                var record = new JsonObject();
+                record.addProperty(ID, name);
+                record.add(DATA, gson.toJsonTree(data));
+                writer.write(record.toString());
+                writer.write('\n');
+                count++;
+            }
+            writer.flush();
+        }
+        return count;
+    }
+
+    /**
+     * Reads all the documents of the stream and writes them to the collection, replacing the existing ones.
+     *
+     * @return The number of documents read from the stream.
+     */
+    static long ingest(@NonNull Clorastore db, @NonNull File collection, @NonNull InputStream in, @NonNull DocumentFormat format) throws IOException {
+        if (!db.catalog.mkdirs(collection))
+            throw new IOException("Unable to create " + collection);
+
+        var lanes = Math.max(1, Runtime.getRuntime().availableProcessors());
+        var pending = new ArrayList<List<Record>>(lanes);
+        var tails = new ArrayList<CompletableFuture<Void>>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            pending.add(new ArrayList<>(CHUNK_SIZE));
+            tails.add(CompletableFuture.completedFuture(null));
+        }
+        // At most two chunks per lane are parsed or written at once, the reading waits for the others
+        var inFlight = new Semaphore(2 * lanes);
+        var failure = new AtomicReference<Throwable>();
+
+        var count = 0L;
+        var records = reader(in, format);
+        try {
+            Record record;
+            while (failure.get() == null && (record = records.next()) != null) {
+                var lane = Math.floorMod(record.name.hashCode(), lanes);
+                var chunk = pending.get(lane);
+                chunk.add(record);
+                count++;
+                if (chunk.size() == CHUNK_SIZE) {
+                    submit(db, collection, chunk, lane, tails, inFlight, failure);
+                    pending.set(lane, new ArrayList<>(CHUNK_SIZE));
+                }
+            }
+            for (int lane = 0; lane < lanes; lane++) {
+                if (!pending.get(lane).isEmpty())
+                    submit(db, collection, pending.get(lane), lane, tails, inFlight, failure);
+            }
+        } finally {
+            // Failures of the lanes are recorded, their futures always complete normally
+            CompletableFuture.allOf(tails.toArray(new CompletableFuture<?>[0])).join();
+        }
+
+        var error = failure.get();
+        if (error instanceof ClorastoreException)
+            throw (ClorastoreException) error;
+        if (error != null)
+            throw new ClorastoreException("An error occurred while importing documents .Error details:-\n" + error.getLocalizedMessage(), Reasons.ERROR_UNKNOWN);
+        return count;
+    }
+
+    private static void submit(Clorastore db, File collection, List<Record> chunk, int lane, List<CompletableFuture<Void>> tails,
+                               Semaphore inFlight, AtomicReference<Throwable> failure) {
+        inFlight.acquireUninterruptibly();
+        tails.set(lane, tails.get(lane).thenRunAsync(() -> {
+            try {
+                if (failure.get() == null)
+                    write(db, collection, chunk);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        }, db.executor));
+    }
+
+    /**
+     * Parses a chunk of records, then writes all of its documents through the storage.
+     */
+    private static void write(Clorastore db, File collection, List<Record> chunk) {
+        var documents = new TreeMap<File, Map<String, Object>>();
+        for (Record record : chunk) {
+            var data = record.parse();
+            data.values().forEach(Document::validateDatatype);
+            documents.put(new File(collection, record.name + ".doc").getAbsoluteFile(), data);
+        }
+        WriteBatch.apply(db, documents);
+    }
+
+    private static Map<String, Object> read(Clorastore db, File document) throws IOException {
+        var cached = db.cache.peek(document);
+        if (cached != null)
+            return cached;
+        try {
+            return db.storage.exists(document) ? db.storage.read(document) : null;
+        } catch (NoSuchFileException e) {
+            // Deleted while exporting
+            return null;
+        }
+    }
+
+    private static String checkName(String name, long position) {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.startsWith("."))
+            throw new ClorastoreException("Invalid document name '" + name + "' in record " + position + " of the import", Reasons.ERROR_UNKNOWN);
+        return name;
+    }
+
+    private static RecordReader reader(InputStream in, DocumentFormat format) throws IOException {
+        if (format == DocumentFormat.BINARY) {
+            var stream = new DataInputStream(new BufferedInputStream(in));
+            if (stream.readInt() != MAGIC)
+                throw new ClorastoreException("The stream is not a binary export of Clorastore", Reasons.ERROR_UNKNOWN);
+            return new RecordReader() {
+                private long position;
+
+                @Override
+                public Record next() throws IOException {
+                    String name;
+                    try {
+                        name = stream.readUTF();
+                    } catch (EOFException e) {
+                        return null;
+                    }
+                    // Checked before allocating, a corrupted length must not exhaust the memory
+                    var length = stream.readInt();
+                    position++;
+                    if (length < 0 || length > Document.DOCUMENT_MAX_SIZE)
+                        throw new ClorastoreException("Invalid size " + length + " of document '" + name + "' in record " + position + " of the import", length < 0 ? Reasons.ERROR_UNKNOWN : Reasons.DOC_SIZE_EXCEED);
+                    var content = new byte[length];
+                    stream.readFully(content);
+                    return new Record(checkName(name, position), null, content);
+                }
+            };
+        }
+
+        var lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        return new RecordReader() {
+            private long position;
+
+            @Override
+            public Record next() throws IOException {
+                String line;
+                do {
+                    line = lines.readLine();
+                    position++;
+                } while (line != null && line.isBlank());
+                if (line == null)
+                    return null;
+
+                // Only the name is read here, the data is parsed by the lane which writes the document
+                try (var json = new JsonReader(new StringReader(line))) {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        if (json.nextName().equals(ID))
+                            return new Record(checkName(json.nextString(), position), line, null);
+                        json.skipValue();
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    throw new ClorastoreException("Invalid JSON at line " + position + " of the import .Error details:-\n" + e.getLocalizedMessage(), Reasons.ERROR_UNKNOWN);
+                }
+                throw new ClorastoreException("Missing '" + ID + "' at line " + position + " of the import", Reasons.ERROR_UNKNOWN);
+            }
+        };
+    }
+
+
+    private interface RecordReader {
+        /**
+         * Returns the next record of the stream, or null at its end.
+         */
+        Record next() throws IOException;
+    }
+
+
+    /**
+     * A document read from the stream, not parsed yet.
+     */
+    private static final class Record {
+        private final String name;
+        private final String line;
+        private final byte[] content;
+
+        Record(String name, String line, byte[] content) {
+            this.name = name;
+            this.line = line;
+            this.content = content;
+        }
+
+        Map<String, Object> parse() {
+            if (content != null)
+                return BinaryCodec.decode(content);
+            try {
+                var data = JsonParser.parseString(line).getAsJsonObject().get(DATA);
+                if (data == null || data.isJsonNull())
+                    return new HashMap<>();
+                return gson.fromJson(data, FileStorage.TYPE);
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new ClorastoreException("Invalid data of document '" + name + "' in the import .Error details:-\n" + e.getLocalizedMessage(), Reasons.ERROR_UNKNOWN);
+            }
+        }
+    }
+}
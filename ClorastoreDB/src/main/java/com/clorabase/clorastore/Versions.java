@@ -0,0 +1,129 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The versions and the locks of the documents of a database. The version of a document is increased by every write
+ * to it, so a writer can tell whether the document changed since it read it.
+ * <p>
+ * Documents are locked by stripes: a read/write lock is shared by all the documents of the same stripe, so that locks
+ * are never allocated. Readers of a document do not block each other, writers are serialized by the write lock of
+ * the document. Other processes do not write the database while it is open, see {@link ProcessLock}.
+ * <p>
+ * Versions are persisted in the manifest of the collection of the document, so they keep increasing when the database
+ * is opened again. The versions of the deleted documents are kept in the memory only.
+ * <p>
+ * Every writer also shares a barrier, which a {@link Snapshot} holds exclusively while it is taken, so that it sees
+ * either all or none of the changes of a write, or of a {@link WriteBatch}.
+ */
+final class Versions {
+    private static final int STRIPES = 256;
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[STRIPES];
+    private final ReentrantReadWriteLock barrier = new ReentrantReadWriteLock();
+    private final Map<File, Long> versions = new ConcurrentHashMap<>();
+    private final Clorastore db;
+
+    Versions(@NonNull Clorastore db) {
+        this.db = db;
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Locks the document for reading, so that its version and its data are read together. Readers of a document do not wait for each other.
+     */
+    @NonNull
+    Guard read(@NonNull File document) {
+        var lock = locks[Math.floorMod(hash(document), STRIPES)].readLock();
+        lock.lock();
+        return new Guard(lock, null);
+    }
+
+    /**
+     * Locks the document for writing. The lock must be held while reading, writing and increasing the version of the document.
+     */
+    @NonNull
+    Guard write(@NonNull File document) {
+        var shared = barrier.readLock();
+        var lock = locks[Math.floorMod(hash(document), STRIPES)].writeLock();
+        shared.lock();
+        lock.lock();
+        return new Guard(lock, shared);
+    }
+
+    /**
+     * Holds the barrier of the writers for a batch of writes, so that a snapshot is not taken in the middle of it.
+     * The documents of the batch are still locked one by one.
+     */
+    @NonNull
+    Guard batch() {
+        var shared = barrier.readLock();
+        shared.lock();
+        return new Guard(shared, null);
+    }
+
+    /**
+     * Waits for the running writes to finish and blocks the new ones, until the guard is closed. Readers are not blocked.
+     */
+    @NonNull
+    Guard exclusive() {
+        var lock = barrier.writeLock();
+        lock.lock();
+        return new Guard(lock, null);
+    }
+
+    /**
+     * Returns the current version of the document, 0 if it was never written.
+     */
+    long get(@NonNull File document) {
+        var version = versions.get(document.getAbsoluteFile());
+        return version == null ? db.catalog.version(document) : version;
+    }
+
+    /**
+     * Increases the version of the document after a write. Must be called while holding the write lock of the document.
+     * The caller records the new version in the {@link Catalog}.
+     *
+     * @return The new version.
+     */
+    long increment(@NonNull File document) {
+        return versions.compute(document.getAbsoluteFile(), (file, version) -> (version == null ? db.catalog.version(file) : version) + 1);
+    }
+
+    void clear() {
+        versions.clear();
+    }
+
+    private static int hash(File document) {
+        return document.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * A held lock of a document, released by closing it.
+     */
+    static final class Guard implements AutoCloseable {
+        private final Lock lock;
+        private final Lock barrier;
+
+        private Guard(Lock lock, Lock barrier) {
+            this.lock = lock;
+            this.barrier = barrier;
+        }
+
+        /**
+         * Releases the lock.
+         */
+        @Override
+        public void close() {
+            lock.unlock();
+            if (barrier != null)
+                barrier.unlock();
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.clorabase.clorastore;
+
+import androidx.annotation.NonNull;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of writes to many documents, which are committed together. Writes are buffered in the memory until
+ * {@link #commit()}, so a document which is written many times in a batch is written only once, and the documents
+ * are not read or created one by one.
+ * <p>
+ * A batch is atomic: before any document is written, all the writes of the batch are written to a journal, which is
+ * synced to the disk once. If the process stops while the documents are being written, the journal is replayed the
+ * next time the database is opened, so either all the writes of the batch are applied or none of them. Every commit
+ * has its own journal, and the fields written by a batch are merged into a document under the lock of the document,
+ * so concurrent batches and writes do not lose each other's changes. Replaying a journal merges the same fields again,
+ * which leaves the documents already written as they were.
+ * <p>
+ * A batch is not thread safe, and can not be used anymore after it is committed.
+ *
+ * @see Clorastore#batch()
+ * @see Collection#batch()
+ */
+public class WriteBatch {
+    private static final String JOURNAL_PREFIX = "batch.";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String COMMIT = "commit";
+    private static final AtomicLong sequence = new AtomicLong();
+    private final Clorastore db;
+    private final File root;
+    private final Map<File, Write> writes = new HashMap<>();
+    private boolean committed;
+
+    WriteBatch(@NonNull Clorastore db, @NonNull File root) {
+        this.db = db;
+        this.root = root;
+    }
+
+    /**
+     * Replaces all the data of the document, or creates it.
+     *
+     * @param collection The collection of the document.
+     * @param document   The name of the document.
+     * @param data       The new data of the document.
+     * @return This batch, to chain the writes.
+     * @throws ClorastoreException If the data contains a value that is not a valid datatype.
+     */
+    public @NonNull WriteBatch set(@NonNull Collection collection, @NonNull String document, @NonNull Map<String, Object> data) {
+        data.values().forEach(Document::validateDatatype);
+        var write = write(collection, document);
+        write.data.clear();
+        write.data.putAll(Document.copyOf(data));
+        write.replace = true;
+        write.delete = false;
+        return this;
+    }
+
+    /**
+     * Creates or updates a field of the document. The document is created if it does not exist.
+     *
+     * @param collection The collection of the document.
+     * @param document   The name of the document.
+     * @param field      The name of the field.
+     * @param value      The value of the field.
+     * @return This batch, to chain the writes.
+     * @throws ClorastoreException If the value is not a valid datatype.
+     */
+    public @NonNull WriteBatch put(@NonNull Collection collection, @NonNull String document, @NonNull String field, @NonNull Object value) {
+        Document.validateDatatype(value);
+        var write = write(collection, document);
+        if (write.delete) {
+            write.delete = false;
+            write.replace = true;
+        }
+        write.data.put(field, Document.copyValue(value));
+        return this;
+    }
+
+    /**
+     * Deletes the document, if it exists.
+     *
+     * @param collection The collection of the document.
+     * @param document   The name of the document.
+     * @return This batch, to chain the writes.
+     */
+    public @NonNull WriteBatch delete(@NonNull Collection collection, @NonNull String document) {
+        var write = write(collection, document);
+        write.data.clear();
+        write.replace = true;
+        write.delete = true;
+        return this;
+    }
+
+    /**
+     * Returns the number of documents written by this batch.
+     */
+    public int size() {
+        return writes.size();
+    }
+
+    /**
+     * Writes all the documents of the batch. The documents are written in the order of their path, so that the documents
+     * of a collection are written together. Once this returns, the batch is on the disk, even if the documents
+     * are still written in the background.
+     *
+     * @throws ClorastoreException If the batch was already committed, if a document exceeds {@link Document#DOCUMENT_MAX_SIZE},
+     *                             or if an IO error occurred. If the error occurred
+     *                             while writing the documents, they are written again when the database is opened.
+     */
+    @SuppressWarnings("try")
+    public void commit() {
+        if (committed)
+            throw new ClorastoreException("The batch is already committed", Reasons.ERROR_UNKNOWN);
+        committed = true;
+        if (writes.isEmpty())
+            return;
+        db.checkWritable();
+
+        var start = System.nanoTime();
+        var documents = new TreeMap<>(writes);
+        var journal = journal(root);
+        // A snapshot sees either the whole batch or none of it, never its journal
+        try (var barrier = db.versions.batch()) {
+            try {
+                writeJournal(journal, documents);
+            } catch (IOException e) {
+                journal.delete();
+                throw new ClorastoreException("An IO error occurred while writing the batch journal .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            } catch (ClorastoreException e) {
+                journal.delete();
+                throw e;
+            }
+
+            write(db, documents);
+            journal.delete();
+        }
+        db.events.since(Operation.BATCH, start);
+    }
+
+    /**
+     * Same as {@link #commit()}, but commits the batch on the {@link Clorastore#setExecutor(java.util.concurrent.Executor) executor}
+     * of the database. The future completes once the batch is on the disk, and all its documents are written to their files.
+     *
+     * @return A future completed when the batch is written, or with the {@link ClorastoreException} thrown by the commit,
+     * which includes the error of any document of the batch the writer failed to write.
+     */
+    public @NonNull CompletableFuture<Void> commitAsync() {
+        // The commit waits until the documents are written and synced, and throws the errors of their writes
+        return Async.run(db.executor, this::commit);
+    }
+
+    /**
+     * Applies the batches left behind by a process which stopped while committing them, if any, in the order they
+     * were committed. A journal which was not completely written is discarded, as none of its documents were written yet.
+     */
+    static void recover(@NonNull Clorastore db, @NonNull File root) {
+        var journals = Collection.metadataDir(root).listFiles((dir, name) -> journalId(name) != null);
+        if (journals == null || journals.length == 0)
+            return;
+
+        Arrays.sort(journals, Comparator.comparing(journal -> journalId(journal.getName()), Arrays::compare));
+        for (File journal : journals) {
+            var documents = new TreeMap<File, Write>();
+            var complete = false;
+            try (var reader = new BufferedReader(new FileReader(journal, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    var record = JsonParser.parseString(line).getAsJsonObject();
+                    if (record.has(COMMIT)) {
+                        complete = true;
+                        break;
+                    }
+                    var file = new File(root, record.get("d").getAsString()).getAbsoluteFile();
+                    documents.put(file, Write.of(record));
+                }
+            } catch (IOException e) {
+                throw new ClorastoreException("Unable to read the batch journal " + journal.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            } catch (RuntimeException e) {
+                // A partially written journal was never committed
+            }
+
+            if (complete)
+                write(db, documents);
+            journal.delete();
+        }
+    }
+
+    private Write write(Collection collection, String document) {
+        if (committed)
+            throw new ClorastoreException("The batch is already committed", Reasons.ERROR_UNKNOWN);
+        return writes.computeIfAbsent(new File(collection.root, document + ".doc").getAbsoluteFile(), file -> new Write());
+    }
+
+    private void writeJournal(File journal, Map<File, Write> documents) throws IOException {
+        journal.getParentFile().mkdirs();
+        var base = root.getAbsoluteFile().toPath();
+        var format = db.getDocumentFormat();
+        try (var out = new FileOutputStream(journal);
+             var writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (var entry : documents.entrySet()) {
+                var record = entry.getValue().record(db, entry.getKey(), format);
+                record.addProperty("d", base.relativize(entry.getKey().toPath()).toString());
+                writer.write(record.toString());
+                writer.newLine();
+            }
+            var commit = new JsonObject();
+            commit.addProperty(COMMIT, documents.size());
+            writer.write(commit.toString());
+            writer.newLine();
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Writes the documents through the storage of the database, and waits until they are written.
+     *
+     * @param documents The data of the documents by their file, null for the documents to delete.
+     */
+    static void apply(@NonNull Clorastore db, @NonNull Map<File, Map<String, Object>> documents) {
+        var writes = new TreeMap<File, Write>();
+        documents.forEach((file, data) -> writes.put(file, Write.of(data)));
+        write(db, writes);
+    }
+
+    /**
+     * Merges the writes into their documents, and waits until the documents are written and synced.
+     */
+    @SuppressWarnings("try")
+    private static void write(Clorastore db, Map<File, Write> writes) {
+        try (var barrier = db.versions.batch()) {
+            File collection = null;
+            for (var entry : writes.entrySet()) {
+                var file = entry.getKey();
+                var write = entry.getValue();
+                // Documents are sorted by path, so every collection is created only once
+                if (!write.delete && !file.getParentFile().equals(collection)) {
+                    collection = file.getParentFile();
+                    db.catalog.mkdirs(collection);
+                }
+
+                try (var lock = db.versions.write(file)) {
+                    // Merged under the lock, so that the changes written to the document since the commit began are kept
+                    var data = write.apply(db, file);
+                    db.cache.invalidate(file);
+                    if (data == null) {
+                        if (db.storage.delete(file))
+                            db.indexes.onDelete(file);
+                        db.expirations.onDelete(file);
+                        db.catalog.onDelete(file);
+                        db.versions.increment(file);
+                    } else {
+                        var size = db.storage.write(file, data);
+                        db.cache.put(file, data, size);
+                        db.indexes.onWrite(file, data);
+                        db.expirations.onWrite(file);
+                        db.catalog.onWrite(file, size, db.versions.increment(file));
+                    }
+                    db.changes.publish(file, data);
+                }
+            }
+        }
+        db.storage.flush(writes.keySet());
+    }
+
+    /**
+     * Returns a new journal, named after the time and the order of its commit so that the journals are replayed in order.
+     */
+    private static File journal(File root) {
+        return new File(Collection.metadataDir(root), JOURNAL_PREFIX + System.nanoTime() + "." + sequence.incrementAndGet() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Returns the time and the order of the commit of a journal, or null if the file is not a journal.
+     */
+    private static long[] journalId(String name) {
+        if (!name.startsWith(JOURNAL_PREFIX) || !name.endsWith(JOURNAL_SUFFIX))
+            return null;
+        var parts = name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length()).split("\\.");
+        if (parts.length != 2)
+            return null;
+        try {
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * The writes of a batch to a single document.
+     */
+    private static final class Write {
+        private final Map<String, Object> data = new HashMap<>();
+        private boolean replace;
+        private boolean delete;
+
+        /**
+         * Returns a write replacing the document with the data, or deleting it if the data is null.
+         */
+        static Write of(Map<String, Object> data) {
+            var write = new Write();
+            write.replace = true;
+            if (data == null)
+                write.delete = true;
+            else
+                write.data.putAll(data);
+            return write;
+        }
+
+        /**
+         * Reads a write from its record in a journal.
+         */
+        static Write of(JsonObject record) {
+            if (!record.has("v"))
+                return of((Map<String, Object>) null);
+            var write = of(FileStorage.decode(Base64.getDecoder().decode(record.get("v").getAsString())));
+            write.replace = !record.has("r") || record.get("r").getAsBoolean();
+            return write;
+        }
+
+        /**
+         * Returns the record of the write in a journal. The final size of the document is checked first, so that no
+         * document of a batch is written if one of them is too large.
+         */
+        JsonObject record(Clorastore db, File file, DocumentFormat format) {
+            var record = new JsonObject();
+            if (delete)
+                return record;
+            var content = FileStorage.encode(data, format);
+            Document.checkSize(replace ? content.length : FileStorage.encode(apply(db, file), format).length);
+            record.addProperty("r", replace);
+            record.addProperty("v", Base64.getEncoder().encodeToString(content));
+            return record;
+        }
+
+        /**
+         * Returns the final data of the document, reading the fields which are not written by the batch, or null if it
+         * is deleted.
+         */
+        Map<String, Object> apply(Clorastore db, File file) {
+            if (delete)
+                return null;
+            if (replace || !db.storage.exists(file))
+                return new HashMap<>(data);
+
+            var base = db.cache.peek(file);
+            var result = new HashMap<String, Object>(base == null ? readData(db, file) : base);
+            result.putAll(data);
+            return result;
+        }
+
+        private static Map<String, Object> readData(Clorastore db, File file) {
+            try {
+                return db.storage.read(file);
+            } catch (IOException e) {
+                throw new ClorastoreException("An IO error occurred while reading document " + file.getName() + " .Error details:-\n" + e.getLocalizedMessage(), Reasons.IO_ERROR);
+            }
+        }
+    }
+}
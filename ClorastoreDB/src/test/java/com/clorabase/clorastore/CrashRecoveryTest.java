@@ -0,0 +1,253 @@
+package com.clorabase.clorastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kills a process while it writes to a database, then opens the database again and checks what it recovered. The
+ * writes are made by {@link Writer} in a child process, which is stopped with {@link Runtime#halt(int)} so that no
+ * shutdown hook and no close runs, like when the process is killed.
+ */
+public class CrashRecoveryTest {
+    private static final String NAME = "db";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysCompleteBatchJournals() throws IOException {
+        var dir = folder.getRoot();
+        var metadata = Collection.metadataDir(new File(dir, NAME));
+        assertTrue(metadata.mkdirs());
+        // Left by processes killed after writing their journals, before writing the documents
+        journal(new File(metadata, "batch.1.1.journal"), Map.of("users/a.doc", 1, "users/b.doc", 1), true);
+        journal(new File(metadata, "batch.2.1.journal"), Map.of("users/a.doc", 2), true);
+        journal(new File(metadata, "batch.3.1.journal"), Map.of("users/a.doc", 3, "users/c.doc", 3), false);
+
+        var db = Clorastore.getInstance(dir, NAME);
+        var users = db.getDatabase().collection("users");
+        assertEquals(2, number(users.document("a"), "n"));
+        assertEquals(1, number(users.document("b"), "n"));
+        assertFalse(users.exists("c"));
+        assertEquals(0, metadata.list((parent, name) -> name.endsWith(".journal")).length);
+        db.close();
+    }
+
+    @Test
+    public void batchesAreAtomicAfterACrash() throws Exception {
+        var dir = folder.getRoot();
+        crash(dir, "batches");
+
+        var db = Clorastore.getInstance(dir, NAME);
+        var users = db.getDatabase().collection("users");
+        var values = new HashSet<Integer>();
+        for (int i = 0; i < Writer.BATCH_SIZE; i++)
+            values.add(users.exists("u" + i) ? number(users.document("u" + i), "n") : -1);
+        assertEquals("Every document of a batch has the same value " + values, 1, values.size());
+        db.close();
+    }
+
+    @Test
+    public void replaysTheLog() throws Exception {
+        var dir = folder.getRoot();
+        crash(dir, "log");
+
+        var db = Clorastore.getInstance(dir, NAME);
+        assertEquals(StorageMode.LOG, db.getStorageMode());
+        var users = db.getDatabase().collection("users");
+        assertEquals(Writer.DOCUMENTS - 1, users.count());
+        for (int i = 1; i < Writer.DOCUMENTS; i++) {
+            var data = users.document("u" + i).getData();
+            assertEquals(Writer.LARGE + i, data.get("id"));
+            assertEquals("user " + i, data.get("name"));
+        }
+        assertFalse(users.exists("u0"));
+        db.close();
+    }
+
+    @Test
+    public void truncatesTheTornTailOfASegment() throws Exception {
+        var dir = folder.getRoot();
+        crash(dir, "packed");
+
+        // A record whose header was written but not its content
+        var segment = lastSegment(Collection.metadataDir(new File(dir, NAME + "/users")));
+        var length = segment.length();
+        try (var out = new FileOutputStream(segment, true)) {
+            out.write(ByteBuffer.allocate(12).putInt(1000).putInt(0).putInt(42).array());
+        }
+
+        var db = Clorastore.getInstance(dir, NAME);
+        assertEquals(StorageMode.PACKED, db.getStorageMode());
+        var users = db.getDatabase().collection("users");
+        for (int i = 0; i < Writer.DOCUMENTS; i++)
+            assertEquals(i, number(users.document("u" + i), "n"));
+        assertEquals(length, segment.length());
+        db.close();
+    }
+
+    @Test
+    public void rebuildsTheManifestAfterACrash() throws Exception {
+        var dir = folder.getRoot();
+        crash(dir, "manifest");
+
+        var db = Clorastore.getInstance(dir, NAME);
+        var users = db.getDatabase().collection("users");
+        var expected = new ArrayList<String>();
+        for (int i = Writer.DOCUMENTS / 2; i < Writer.DOCUMENTS * 2; i++)
+            expected.add("u" + i);
+        expected.sort(null);
+        assertEquals(expected.size(), users.count());
+        assertEquals(expected, users.getDocuments());
+        db.close();
+    }
+
+    @Test
+    public void rebuildsAManifestChangedByAnotherProgram() throws Exception {
+        var dir = folder.getRoot();
+        crash(dir, "closed");
+        // Changed after the database was closed
+        assertTrue(new File(dir, NAME + "/users/u0.doc").delete());
+        Files.write(new File(dir, NAME + "/users/other.doc").toPath(), "{\"n\":-1}".getBytes(StandardCharsets.UTF_8));
+
+        var db = Clorastore.getInstance(dir, NAME);
+        var users = db.getDatabase().collection("users");
+        assertEquals(Writer.DOCUMENTS, users.count());
+        assertFalse(users.exists("u0"));
+        assertEquals(-1, number(users.document("other"), "n"));
+        db.close();
+    }
+
+    private void crash(File dir, String scenario) throws Exception {
+        var java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        var process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Writer.class.getName(), dir.getPath(), scenario)
+                .redirectErrorStream(true)
+                .redirectOutput(folder.newFile(scenario + ".out"))
+                .start();
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(Writer.KILLED, process.exitValue());
+    }
+
+    private static void journal(File journal, Map<String, Integer> documents, boolean committed) throws IOException {
+        var lines = new ArrayList<String>();
+        for (var entry : new TreeMap<>(documents).entrySet()) {
+            var content = FileStorage.encode(Map.of("n", entry.getValue()), DocumentFormat.JSON);
+            lines.add("{\"r\":true,\"v\":\"" + Base64.getEncoder().encodeToString(content) + "\",\"d\":\"" + entry.getKey() + "\"}");
+        }
+        if (committed)
+            lines.add("{\"commit\":" + documents.size() + "}");
+        else
+            lines.add("{\"com");
+        Files.write(journal.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private static File lastSegment(File dir) {
+        var segments = dir.listFiles((parent, name) -> name.startsWith(PackedStorage.SEGMENT_FILE));
+        assertTrue(segments != null && segments.length > 0);
+        File last = null;
+        for (File segment : segments) {
+            if (last == null || segmentId(segment) > segmentId(last))
+                last = segment;
+        }
+        return last;
+    }
+
+    private static int segmentId(File segment) {
+        return Integer.parseInt(segment.getName().substring(PackedStorage.SEGMENT_FILE.length()));
+    }
+
+    private static int number(Document document, String field) {
+        return ((Number) document.getData().get(field)).intValue();
+    }
+
+
+    /**
+     * Writes to the database in the child process, then kills it.
+     */
+    public static final class Writer {
+        static final int KILLED = 3;
+        static final int DOCUMENTS = 200;
+        static final int BATCH_SIZE = 20;
+        static final long LARGE = 9_007_199_254_740_993L;
+
+        public static void main(String[] args) throws Exception {
+            var db = Clorastore.getInstance(new File(args[0]), NAME);
+            var users = db.getDatabase().collection("users");
+            switch (args[1]) {
+                case "batches":
+                    // Killed while the batches are written, whichever step they are at
+                    var killer = new Thread(() -> {
+                        try {
+                            Thread.sleep(300);
+                        } catch (InterruptedException e) {
+                            // Killed now
+                        }
+                        Runtime.getRuntime().halt(KILLED);
+                    });
+                    killer.start();
+                    for (int n = 0; ; n++) {
+                        var batch = users.batch();
+                        for (int i = 0; i < BATCH_SIZE; i++)
+                            batch.set(users, "u" + i, Map.of("n", n));
+                        batch.commit();
+                    }
+                case "log":
+                    db.setStorageMode(StorageMode.LOG);
+                    db.setDocumentFormat(DocumentFormat.BINARY);
+                    db.setDurability(Durability.ALWAYS);
+                    for (int i = 0; i < DOCUMENTS; i++) {
+                        users.document("u" + i).setData(Map.of("id", LARGE + i));
+                        users.document("u" + i).put("name", "user " + i);
+                    }
+                    users.document("u0").delete();
+                    break;
+                case "packed":
+                    db.setStorageMode(StorageMode.PACKED);
+                    db.setDurability(Durability.ALWAYS);
+                    // The index is saved for the first half, the second half is scanned from the segment
+                    for (int i = 0; i < DOCUMENTS / 2; i++)
+                        users.document("u" + i).setData(Map.of("n", i));
+                    db.close();
+                    for (int i = DOCUMENTS / 2; i < DOCUMENTS; i++)
+                        users.document("u" + i).setData(Map.of("n", i));
+                    break;
+                case "manifest":
+                    for (int i = 0; i < DOCUMENTS; i++)
+                        users.document("u" + i).setData(Map.of("n", i));
+                    db.close();
+                    for (int i = DOCUMENTS; i < DOCUMENTS * 2; i++)
+                        users.document("u" + i).setData(Map.of("n", i));
+                    for (int i = 0; i < DOCUMENTS / 2; i++)
+                        users.document("u" + i).delete();
+                    db.flush();
+                    break;
+                case "closed":
+                    for (int i = 0; i < DOCUMENTS; i++)
+                        users.document("u" + i).setData(Map.of("n", i));
+                    db.close();
+                    break;
+                default:
+                    throw new IllegalArgumentException(args[1]);
+            }
+            Runtime.getRuntime().halt(KILLED);
+        }
+    }
+}
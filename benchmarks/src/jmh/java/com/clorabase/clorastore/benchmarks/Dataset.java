@@ -0,0 +1,114 @@
+package com.clorabase.clorastore.benchmarks;
+
+import com.clorabase.clorastore.Clorastore;
+import com.clorabase.clorastore.Collection;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A synthetic collection, shared by all the threads of a benchmark. Every document has a numeric <code>score</code>
+ * field, an integer <code>group</code> field, and <code>width</code> other fields of mixed types, some of which are
+ * lists nested <code>nesting</code> levels deep. The data is generated from a fixed seed, so that every run and every
+ * version of the library benchmarks the same documents.
+ */
+@State(Scope.Benchmark)
+public class Dataset {
+    static final String SCORE = "score";
+    static final String GROUP = "group";
+    static final int GROUPS = 10;
+
+    @Param({"1000"})
+    public int documents;
+    @Param({"10"})
+    public int width;
+    @Param({"1"})
+    public int nesting;
+
+    Clorastore db;
+    Collection collection;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void create() throws IOException {
+        dir = Files.createTempDirectory("clorastore-benchmark").toFile();
+        db = Clorastore.getInstance(dir, "db");
+        collection = db.getDatabase().collection("benchmark");
+
+        var random = new Random(42);
+        for (int i = 0; i < documents; i++)
+            collection.document(name(i)).setData(document(random, i));
+        db.flush();
+    }
+
+    /**
+     * Waits for the background writes of the iteration, so that they are not left to the next one.
+     */
+    @TearDown(Level.Iteration)
+    public void flush() {
+        db.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        db.close();
+        db.delete();
+        dir.delete();
+    }
+
+    /**
+     * Returns the name of a random document of the collection.
+     */
+    String randomName() {
+        return name(ThreadLocalRandom.current().nextInt(documents));
+    }
+
+    Map<String, Object> document(Random random, int index) {
+        var data = new HashMap<String, Object>();
+        data.put(SCORE, random.nextDouble() * 1000);
+        data.put(GROUP, index % GROUPS);
+        for (int field = 0; field < width; field++) {
+            if (nesting > 0 && field % 4 == 3)
+                data.put("field" + field, list(random, nesting));
+            else
+                data.put("field" + field, value(random, field));
+        }
+        return data;
+    }
+
+    private static String name(int index) {
+        return "document" + index;
+    }
+
+    private static List<Object> list(Random random, int depth) {
+        var list = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            list.add(depth > 1 ? list(random, depth - 1) : value(random, i));
+        return list;
+    }
+
+    private static Object value(Random random, int field) {
+        switch (field % 3) {
+            case 0:
+                return random.nextInt(100_000);
+            case 1:
+                return Long.toHexString(random.nextLong());
+            default:
+                return random.nextBoolean();
+        }
+    }
+}
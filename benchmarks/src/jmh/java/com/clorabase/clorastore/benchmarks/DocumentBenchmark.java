@@ -0,0 +1,52 @@
+package com.clorabase.clorastore.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmarks reading and writing single documents. The contended variants run the same operation from several threads
+ * on the same collection.
+ */
+public class DocumentBenchmark {
+    private static final int CONTENDED_THREADS = 4;
+
+    @Benchmark
+    public void put(Dataset data) {
+        data.collection.document(data.randomName()).put(Dataset.SCORE, ThreadLocalRandom.current().nextDouble() * 1000);
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public void putContended(Dataset data) {
+        put(data);
+    }
+
+    @Benchmark
+    public void setData(Dataset data) {
+        var random = ThreadLocalRandom.current();
+        data.collection.document(data.randomName()).setData(data.document(new Random(random.nextLong()), random.nextInt()));
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public void setDataContended(Dataset data) {
+        setData(data);
+    }
+
+    /**
+     * Opens a document and reads a field of it, which is how the data of a document is read through the public API.
+     */
+    @Benchmark
+    public Number getData(Dataset data) {
+        return data.collection.document(data.randomName()).getNumber(Dataset.SCORE, 0);
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public Number getDataContended(Dataset data) {
+        return getData(data);
+    }
+}
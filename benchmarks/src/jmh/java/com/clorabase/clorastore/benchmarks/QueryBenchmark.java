@@ -0,0 +1,50 @@
+package com.clorabase.clorastore.benchmarks;
+
+import com.clorabase.clorastore.Document;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmarks the queries over the whole collection. The contended variants run the same query from several threads.
+ */
+public class QueryBenchmark {
+    private static final int CONTENDED_THREADS = 4;
+
+    @Benchmark
+    public List<Document> where(Dataset data) {
+        var group = ThreadLocalRandom.current().nextInt(Dataset.GROUPS);
+        return data.collection.query().where(document -> ((Number) document.get(Dataset.GROUP)).intValue() == group);
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public List<Document> whereContended(Dataset data) {
+        return where(data);
+    }
+
+    @Benchmark
+    public List<Document> orderBy(Dataset data) {
+        return data.collection.query().orderBy(Dataset.SCORE, true);
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public List<Document> orderByContended(Dataset data) {
+        return orderBy(data);
+    }
+
+    @Benchmark
+    public List<String> getDocuments(Dataset data) {
+        return data.collection.getDocuments();
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public List<String> getDocumentsContended(Dataset data) {
+        return getDocuments(data);
+    }
+}